@@ -0,0 +1,103 @@
+/*
+ * AllocationBenchmark.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vpp.Vpp;
+import vpp.VppEngine;
+import vpp.VppException;
+import vpp.VppOptions;
+
+/**
+ * Measures the cost per file of rendering many small files, each to its own
+ * output file, with a long-lived engine, as the daemon and embedding
+ * applications do. Run it with the gc profiler to see the bytes allocated per
+ * rendered file, which is reported as "gc.alloc.rate.norm":
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AllocationBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+
+    /**
+     * The number of files rendered by each invocation.
+     */
+    public static final int NUM_FILES = 200;
+
+    /**
+     * The number of template lines of each file.
+     */
+    public static final int LINES_PER_FILE = 20;
+
+    /**
+     * The number of defines that the templates may reference.
+     */
+    public static final int NUM_DEFINES = 10;
+
+    private File dir;
+    private VppEngine engine;
+    private VppOptions options;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.dir = Fixtures.createTempDir();
+        final File[] files =
+            FixtureGenerator.writeTemplates(new File(this.dir, "in"),
+                NUM_FILES, LINES_PER_FILE, NUM_DEFINES,
+                FixtureGenerator.DEFAULT_SEED);
+
+        this.options = new VppOptions();
+        for (final File file : files) {
+            this.options.addInputPath(file.getPath());
+        }
+        final Map<String, String> defines =
+            FixtureGenerator.generateDefines(NUM_DEFINES);
+        for (final Map.Entry<String, String> define : defines.entrySet()) {
+            this.options.setDefine(define.getKey(), define.getValue());
+        }
+        this.options.setOutputDirectory(new File(this.dir, "out").getPath());
+        this.engine = new VppEngine();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(this.dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_FILES)
+    public void renderFile() throws VppException {
+        new Vpp(this.options, this.engine).run();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * EngineBenchmark.java
+ * By: Denver Coneybeare
+ * Oct 11, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vpp.VppEngine;
+
+/**
+ * Measures the cost of constructing and initializing an engine, which is paid
+ * once per invocation of the command-line application unless the daemon is
+ * used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Benchmark
+    public VppEngine construct() {
+        return new VppEngine();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * FixtureGenerator.java
+ * By: Denver Coneybeare
+ * Oct 11, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic templates and defines for the benchmarks.
+ * <p>
+ * The output is a pure function of the arguments, so that the same fixtures
+ * are used by every run of the benchmarks and results can be compared across
+ * releases. Each generated line is one of a small number of shapes that cover
+ * the constructs commonly found in real templates: plain text, references to
+ * defines, <code>#if</code>/<code>#else</code>, <code>#foreach</code>,
+ * <code>#set</code> and comments.
+ */
+public final class FixtureGenerator {
+
+    /**
+     * The seed used when none is specified.
+     */
+    public static final long DEFAULT_SEED = 20111011L;
+
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta",
+        "epsilon", "zeta", "eta", "theta", "iota", "kappa", "lambda", "mu" };
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private FixtureGenerator() {
+    }
+
+    /**
+     * Generates the defines referenced by generated templates.
+     *
+     * @param numDefines the number of defines to generate, which are named
+     * "def0", "def1", and so on
+     * @return a newly-created map of the defines, in order of their names'
+     * numbers; never returns null
+     */
+    public static Map<String, String> generateDefines(int numDefines) {
+        final Map<String, String> defines =
+            new LinkedHashMap<String, String>(numDefines * 2);
+        for (int i = 0; i < numDefines; i++) {
+            defines.put("def" + i, WORDS[i % WORDS.length] + i);
+        }
+        return defines;
+    }
+
+    /**
+     * Generates the text of a template.
+     *
+     * @param seed the seed of the random number generator
+     * @param numLines the number of lines of template text to generate
+     * @param numDefines the number of defines that the template may reference
+     * (see {@link #generateDefines(int)}); must be at least 1
+     * @return the text of the template; never returns null
+     */
+    public static String generateTemplate(long seed, int numLines,
+            int numDefines) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(numLines * 40);
+        int line = 0;
+        while (line < numLines) {
+            final String word = WORDS[random.nextInt(WORDS.length)];
+            final String define = "$def" + random.nextInt(numDefines);
+            switch (random.nextInt(8)) {
+            case 0:
+                sb.append("## ").append(word).append(" comment\n");
+                line++;
+                break;
+            case 1:
+                sb.append("#set($v").append(line).append(" = \"")
+                    .append(word).append("\")").append(word).append(" $v")
+                    .append(line).append('\n');
+                line++;
+                break;
+            case 2:
+                sb.append("#if(").append(define).append(")\n");
+                sb.append("    ").append(word).append(" is ").append(define)
+                    .append('\n');
+                sb.append("#else\n");
+                sb.append("    ").append(word).append(" is unset\n");
+                sb.append("#end\n");
+                line += 5;
+                break;
+            case 3:
+                sb.append("#foreach($i in [1..").append(1 + random.nextInt(5))
+                    .append("])\n");
+                sb.append("    ").append(word).append("[$i] = ")
+                    .append(define).append('\n');
+                sb.append("#end\n");
+                line += 3;
+                break;
+            default:
+                sb.append("public static final String ")
+                    .append(word.toUpperCase()).append(line).append(" = \"")
+                    .append(define).append("\";\n");
+                line++;
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates templates and writes them, encoded as UTF-8, to files named
+     * "fixture0.vm", "fixture1.vm", and so on in the given directory.
+     *
+     * @param dir the directory in which to write the templates; it is created
+     * if it does not exist
+     * @param numFiles the number of templates to generate
+     * @param linesPerFile the number of lines of each template
+     * @param numDefines the number of defines that the templates may reference
+     * @param seed the seed of the random number generator
+     * @return the files that were written, in order; never returns null
+     * @throws IOException if writing the files fails
+     */
+    public static File[] writeTemplates(File dir, int numFiles,
+            int linesPerFile, int numDefines, long seed) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create directory: "
+                + dir.getPath());
+        }
+        final File[] files = new File[numFiles];
+        for (int i = 0; i < numFiles; i++) {
+            final String text =
+                generateTemplate(seed + i, linesPerFile, numDefines);
+            files[i] = new File(dir, "fixture" + i + ".vm");
+            final OutputStream out = new FileOutputStream(files[i]);
+            try {
+                out.write(text.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes fixture templates to a directory.
+     *
+     * @param args the directory, followed optionally by the number of files,
+     * the number of lines per file, the number of defines and the seed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 5) {
+            System.err.println("usage: FixtureGenerator <dir> [numFiles] "
+                + "[linesPerFile] [numDefines] [seed]");
+            System.exit(2);
+        }
+        final File dir = new File(args[0]);
+        final int numFiles =
+            (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        final int linesPerFile =
+            (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        final int numDefines =
+            (args.length > 3) ? Integer.parseInt(args[3]) : 100;
+        final long seed =
+            (args.length > 4) ? Long.parseLong(args[4]) : DEFAULT_SEED;
+
+        final File[] files =
+            writeTemplates(dir, numFiles, linesPerFile, numDefines, seed);
+        System.out.println("wrote " + files.length + " templates to "
+            + dir.getPath());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Fixtures.java
+ * By: Denver Coneybeare
+ * Oct 11, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Helpers shared by the benchmarks for managing fixture files.
+ */
+final class Fixtures {
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a new, empty temporary directory.
+     */
+    public static File createTempDir() throws IOException {
+        final File file = File.createTempFile("vpp-benchmarks", "");
+        if (!file.delete() || !file.mkdir()) {
+            throw new IOException("unable to create temporary directory: "
+                + file.getPath());
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a file or a directory and everything in it.
+     */
+    public static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * An output stream that discards everything written to it, used in place
+     * of standard output.
+     */
+    public static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
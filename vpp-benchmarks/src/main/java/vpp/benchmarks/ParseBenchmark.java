@@ -0,0 +1,63 @@
+/*
+ * ParseBenchmark.java
+ * By: Denver Coneybeare
+ * Oct 11, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vpp.TemplateCache;
+import vpp.TemplateSource;
+import vpp.VppEngine;
+
+/**
+ * Measures the cost of parsing a template, without rendering it. The engine's
+ * template cache is disabled so that every invocation parses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({ "100", "10000" })
+    public int numLines;
+
+    private VppEngine engine;
+    private TemplateSource source;
+
+    @Setup
+    public void setUp() {
+        this.engine =
+            new VppEngine(new File("."), new TemplateCache(0, 0), null);
+        this.source =
+            TemplateSource.fromString(FixtureGenerator.generateTemplate(
+                FixtureGenerator.DEFAULT_SEED, this.numLines, 100));
+    }
+
+    @Benchmark
+    public Template parse() {
+        return this.engine.getTemplate("fixture.vm", this.source);
+    }
+}
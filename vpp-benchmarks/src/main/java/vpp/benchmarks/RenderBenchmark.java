@@ -0,0 +1,122 @@
+/*
+ * RenderBenchmark.java
+ * By: Denver Coneybeare
+ * Oct 11, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vpp.Vpp;
+import vpp.VppEngine;
+import vpp.VppException;
+import vpp.VppOptions;
+
+/**
+ * Measures the cost of {@link Vpp#run()} with a warm engine, which includes
+ * loading the input files, looking them up in the template cache, rendering
+ * them and writing the output.
+ * <p>
+ * Both layouts render the same total number of template lines: either many
+ * small files or one huge file. Output is either written to a file or to
+ * standard output, which is redirected to a stream that discards it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+
+    /**
+     * The total number of template lines rendered by each invocation.
+     */
+    public static final int TOTAL_LINES = 20000;
+
+    public enum Layout {
+        MANY_SMALL_FILES(200), ONE_HUGE_FILE(1);
+
+        final int numFiles;
+
+        Layout(int numFiles) {
+            this.numFiles = numFiles;
+        }
+    }
+
+    public enum Output {
+        FILE, STDOUT
+    }
+
+    @Param({ "10", "1000" })
+    public int numDefines;
+
+    @Param
+    public Layout layout;
+
+    @Param
+    public Output output;
+
+    private File dir;
+    private VppEngine engine;
+    private VppOptions options;
+    private PrintStream savedStdout;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.dir = Fixtures.createTempDir();
+        final File[] files =
+            FixtureGenerator.writeTemplates(new File(this.dir, "in"),
+                this.layout.numFiles, TOTAL_LINES / this.layout.numFiles,
+                this.numDefines, FixtureGenerator.DEFAULT_SEED);
+
+        this.options = new VppOptions();
+        for (final File file : files) {
+            this.options.addInputPath(file.getPath());
+        }
+        final Map<String, String> defines =
+            FixtureGenerator.generateDefines(this.numDefines);
+        for (final Map.Entry<String, String> define : defines.entrySet()) {
+            this.options.setDefine(define.getKey(), define.getValue());
+        }
+        if (this.output == Output.FILE) {
+            this.options.setOutputPath(new File(this.dir, "out.txt").getPath());
+        }
+
+        this.savedStdout = System.out;
+        System.setOut(new PrintStream(new Fixtures.NullOutputStream()));
+        this.engine = new VppEngine();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(this.savedStdout);
+        Fixtures.delete(this.dir);
+    }
+
+    @Benchmark
+    public void run() throws VppException {
+        new Vpp(this.options, this.engine).run();
+    }
+}
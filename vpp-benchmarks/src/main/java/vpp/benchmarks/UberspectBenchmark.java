@@ -0,0 +1,143 @@
+/*
+ * UberspectBenchmark.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.benchmarks;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vpp.TemplateCache;
+import vpp.VppEngine;
+
+/**
+ * Compares the time taken to render a reference-heavy template with the
+ * introspector of {@link VppEngine} and with Velocity's default introspector.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UberspectBenchmark {
+
+    /**
+     * The number of rows rendered by each invocation.
+     */
+    public static final int NUM_ROWS = 10000;
+
+    private static final String TEMPLATE =
+        "#foreach($row in $rows)$row.name $row.get('id') $row.tags.size() "
+            + "$row.tags.get(0) $row.point.x $row.point.scaled(2)\n#end";
+
+    public enum Introspector {
+        FAST, DEFAULT
+    }
+
+    @Param
+    public Introspector introspector;
+
+    private Template template;
+    private VelocityContext context;
+    private Writer writer;
+
+    @Setup
+    public void setUp() throws Exception {
+        final List<Map<String, Object>> rows =
+            new ArrayList<Map<String, Object>>(NUM_ROWS);
+        for (int i = 0; i < NUM_ROWS; i++) {
+            final Map<String, Object> row = new HashMap<String, Object>();
+            row.put("name", "row" + i);
+            row.put("id", Integer.valueOf(i));
+            final List<String> tags = new ArrayList<String>();
+            tags.add("t" + (i % 7));
+            tags.add("u");
+            row.put("tags", tags);
+            row.put("point", new Point(i));
+            rows.add(row);
+        }
+
+        final VppEngine engine;
+        if (this.introspector == Introspector.FAST) {
+            engine = new VppEngine();
+        } else {
+            final Properties properties = new Properties();
+            properties.setProperty("runtime.introspection.uberspect",
+                UberspectImpl.class.getName());
+            engine =
+                new VppEngine(new File("."), new TemplateCache(), properties);
+        }
+
+        this.template = engine.getTemplate("benchmark", TEMPLATE);
+        this.context = new VelocityContext();
+        this.context.put("rows", rows);
+        this.writer = new NullWriter();
+    }
+
+    @Benchmark
+    public void render() {
+        this.template.merge(this.context, this.writer);
+    }
+
+    public static class Point {
+
+        private final int x;
+
+        public Point(int x) {
+            this.x = x;
+        }
+
+        public int getX() {
+            return this.x;
+        }
+
+        public int scaled(int factor) {
+            return this.x * factor;
+        }
+    }
+
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            // discard
+        }
+
+        @Override
+        public void flush() {
+            // nothing to flush
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * BuildManifest.java
+ * By: Denver Coneybeare
+ * Sept 27, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import vpp.util.Digests;
+import vpp.util.Files;
+
+/**
+ * The manifest of an incremental build, which records the state of every
+ * output file and of the files from which it was rendered, so that outputs
+ * whose inputs have not changed need not be rendered again.
+ * <p>
+ * For each output file, the manifest records the size, modification time and
+ * digest of the output file, of each of its input files and of each template
+ * that its input files loaded with <code>#parse</code> or
+ * <code>#include</code>, as well as a digest of the defines with which it was
+ * rendered. An output file is up to date if all of these still match. The size
+ * and modification time of each file are compared first, and the digest of a
+ * file is only computed if they do not match; therefore, checking an
+ * unchanged output normally does not read any files.
+ * <p>
+ * The state of an input file is that of the bytes from which the output file
+ * was rendered, so an input file that changes while it is rendered is
+ * rendered again by the next build. Templates loaded with <code>#parse</code>
+ * or <code>#include</code> are read by the template engine, so their state is
+ * taken from the files after rendering; a template that was modified shortly
+ * before or during rendering is recorded as unknown, which also causes the
+ * output file to be rendered again by the next build.
+ * <p>
+ * Every public method of this class is thread-safe.
+ */
+class BuildManifest {
+
+    private static final String HEADER = "# vpp build manifest, version 1";
+
+    /**
+     * The number of milliseconds before rendering starts within which a
+     * modification of a template is treated as if it happened during
+     * rendering, which allows for file systems that record modification times
+     * with a resolution of as coarse as two seconds.
+     */
+    private static final long MODIFICATION_TIME_RESOLUTION_MILLIS = 2000;
+
+    private final File file;
+    private final Map<String, Entry> entries;
+    private final Map<String, FileState> knownStates;
+
+    private BuildManifest(File file) {
+        this.file = file;
+        this.entries = new TreeMap<String, Entry>();
+        this.knownStates = new HashMap<String, FileState>();
+    }
+
+    /**
+     * Loads a manifest from a file. If the file does not exist, or is not a
+     * valid manifest, then an empty manifest is returned, which causes every
+     * output to be rendered.
+     *
+     * @param file the manifest file
+     * @return the manifest loaded from the given file; never returns null
+     * @throws VppException if reading the file fails
+     */
+    public static BuildManifest load(File file) throws VppException {
+        final BuildManifest manifest = new BuildManifest(file);
+        final BufferedReader reader;
+        try {
+            reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                    file), "UTF-8"));
+        } catch (final FileNotFoundException e) {
+            return manifest;
+        } catch (final IOException e) {
+            throw new VppException("unable to open manifest file: "
+                + file.getPath() + " (" + e.getMessage() + ")");
+        }
+
+        try {
+            if (!manifest.read(reader)) {
+                manifest.entries.clear();
+            }
+            for (final Entry entry : manifest.entries.values()) {
+                manifest.addKnownStates(entry.files);
+            }
+        } catch (final IOException e) {
+            throw new VppException("unable to read manifest file: "
+                + file.getPath() + " (" + e.getMessage() + ")");
+        } finally {
+            try {
+                reader.close();
+            } catch (final IOException e) {
+                throw new VppException("unable to close manifest file: "
+                    + file.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Reads the entries of this manifest.
+     *
+     * @return true if the manifest was read successfully, or false if it is
+     * malformed
+     */
+    private boolean read(BufferedReader reader) throws IOException {
+        if (!HEADER.equals(reader.readLine())) {
+            return false;
+        }
+
+        String outputPath = null;
+        FileState output = null;
+        String definesDigest = null;
+        int numInputs = 0;
+        List<FileState> files = null;
+
+        while (true) {
+            final String line = reader.readLine();
+            if (line == null || line.startsWith("output\t")) {
+                if (outputPath != null) {
+                    if (numInputs > files.size()) {
+                        return false;
+                    }
+                    final Entry entry =
+                        new Entry(output, definesDigest, numInputs, files);
+                    this.entries.put(outputPath, entry);
+                }
+                if (line == null) {
+                    break;
+                }
+
+                // output <size> <mtime> <digest> <defines> <inputs> <path>
+                final String[] fields = line.split("\t", 7);
+                if (fields.length != 7) {
+                    return false;
+                }
+                try {
+                    output =
+                        new FileState(fields[6], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]);
+                    numInputs = Integer.parseInt(fields[5]);
+                } catch (final NumberFormatException e) {
+                    return false;
+                }
+                outputPath = fields[6];
+                definesDigest = fields[4];
+                files = new ArrayList<FileState>();
+            } else if (line.startsWith("file\t") && outputPath != null) {
+                // file <size> <mtime> <digest> <path>
+                final String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    return false;
+                }
+                try {
+                    files.add(new FileState(fields[4], Long
+                        .parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3]));
+                } catch (final NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Saves this manifest to the file from which it was loaded. The manifest is
+     * written to a temporary file which then replaces the manifest file, so
+     * that the manifest file is never left partially written.
+     *
+     * @throws VppException if writing the file fails
+     */
+    public synchronized void save() throws VppException {
+        final File tempFile;
+        try {
+            tempFile = Files.createTempFileFor(this.file);
+        } catch (final IOException e) {
+            throw new VppException("unable to create temporary file for: "
+                + this.file.getPath() + " (" + e.getMessage() + ")");
+        }
+        try {
+            final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    tempFile), "UTF-8"));
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (final Map.Entry<String, Entry> mapEntry : this.entries
+                    .entrySet()) {
+                    final Entry entry = mapEntry.getValue();
+                    final FileState output = entry.output;
+                    writer.write("output\t" + output.size + "\t"
+                        + output.lastModified + "\t" + output.digest + "\t"
+                        + entry.definesDigest + "\t" + entry.numInputs + "\t"
+                        + mapEntry.getKey() + "\n");
+                    for (final FileState state : entry.files) {
+                        writer.write("file\t" + state.size + "\t"
+                            + state.lastModified + "\t" + state.digest + "\t"
+                            + state.path + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (final IOException e) {
+            tempFile.delete();
+            throw new VppException("unable to write manifest file: "
+                + tempFile.getPath() + " (" + e.getMessage() + ")");
+        }
+
+        if (!Files.replace(tempFile, this.file)) {
+            tempFile.delete();
+            throw new VppException("unable to replace manifest file: "
+                + this.file.getPath());
+        }
+    }
+
+    /**
+     * Determines whether an output file is up to date.
+     *
+     * @param outFile the output file
+     * @param inFiles the input files from which the output file is rendered,
+     * in order
+     * @param definesDigest the digest of the defines with which the output
+     * file is rendered
+     * @return true if the output file was recorded by
+     * {@link #put(File, List, List, long, String, String)} and neither it, nor
+     * its input files, nor the templates that they loaded, nor the defines
+     * have changed since; false otherwise
+     */
+    public boolean isUpToDate(File outFile, File[] inFiles,
+            String definesDigest) {
+        final String key = outFile.getAbsolutePath();
+        final Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+
+        if (entry == null || !entry.definesDigest.equals(definesDigest)
+            || entry.numInputs != inFiles.length) {
+            return false;
+        }
+        for (int i = 0; i < inFiles.length; i++) {
+            if (!entry.files.get(i).path.equals(inFiles[i].getPath())) {
+                return false;
+            }
+        }
+
+        // compare the recorded states with the current states of the files,
+        // remembering any that changed only their modification time
+        boolean refreshed = false;
+        final FileState output = entry.output.refresh(outFile);
+        if (output == null) {
+            return false;
+        }
+        refreshed |= (output != entry.output);
+
+        final List<FileState> files =
+            new ArrayList<FileState>(entry.files.size());
+        for (final FileState state : entry.files) {
+            final FileState newState = state.refresh(new File(state.path));
+            if (newState == null) {
+                return false;
+            }
+            refreshed |= (newState != state);
+            files.add(newState);
+        }
+
+        if (refreshed) {
+            final Entry newEntry =
+                new Entry(output, definesDigest, entry.numInputs, files);
+            synchronized (this) {
+                this.entries.put(key, newEntry);
+                this.addKnownStates(files);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the templates that were recorded as loaded by the input files of
+     * an output file.
+     *
+     * @param outFile the output file
+     * @return a newly-created list of the recorded templates, in the order in
+     * which they were first loaded; never returns null; empty if the output
+     * file was not recorded
+     */
+    public List<File> getDependencies(File outFile) {
+        final Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(outFile.getAbsolutePath());
+        }
+        if (entry == null) {
+            return new ArrayList<File>();
+        }
+        final List<File> dependencies =
+            new ArrayList<File>(entry.files.size() - entry.numInputs);
+        for (final FileState state
+                : entry.files.subList(entry.numInputs, entry.files.size())) {
+            dependencies.add(new File(state.path));
+        }
+        return dependencies;
+    }
+
+    /**
+     * Returns the recorded digest of the contents of an output file, provided
+     * that the output file has not been modified since it was recorded.
+     *
+     * @param outFile the output file
+     * @return the digest of the contents of the output file, or null if the
+     * output file was not recorded or its size or modification time differs
+     * from that recorded
+     */
+    public String getOutputDigest(File outFile) {
+        final Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(outFile.getAbsolutePath());
+        }
+        if (entry == null || !outFile.isFile()
+            || outFile.length() != entry.output.size
+            || outFile.lastModified() != entry.output.lastModified) {
+            return null;
+        }
+        return entry.output.digest;
+    }
+
+    /**
+     * Records the state of an output file that has just been rendered.
+     *
+     * @param outFile the output file
+     * @param inputs the states of the input files from which the output file
+     * was rendered, in order, as returned from
+     * {@link FileState#of(File, TemplateSource, long)}
+     * @param dependencies the templates loaded by the input files
+     * @param startMillis the time, as returned from
+     * {@link System#currentTimeMillis()}, at which rendering started
+     * @param definesDigest the digest of the defines with which the output
+     * file was rendered
+     * @param outputDigest the digest of the contents of the output file
+     * @throws VppException if reading the state of the files fails
+     */
+    public void put(File outFile, List<FileState> inputs,
+            List<File> dependencies, long startMillis, String definesDigest,
+            String outputDigest) throws VppException {
+        final FileState output =
+            new FileState(outFile.getPath(), outFile.length(), outFile
+                .lastModified(), outputDigest);
+        final List<FileState> files =
+            new ArrayList<FileState>(inputs.size() + dependencies.size());
+        files.addAll(inputs);
+        for (final File dependency : dependencies) {
+            files.add(this.getDependencyState(dependency, startMillis));
+        }
+
+        final Entry entry =
+            new Entry(output, definesDigest, inputs.size(), files);
+        synchronized (this) {
+            this.entries.put(outFile.getAbsolutePath(), entry);
+            this.addKnownStates(files);
+        }
+    }
+
+    /**
+     * Returns the state of a template loaded while rendering. A known state
+     * of the template with the same size and modification time is reused, so
+     * that templates shared by many output files are read once.
+     */
+    private FileState getDependencyState(File file, long startMillis)
+            throws VppException {
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        if (lastModified > startMillis - MODIFICATION_TIME_RESOLUTION_MILLIS) {
+            return FileState.unknown(file);
+        }
+
+        final FileState knownState;
+        synchronized (this) {
+            knownState = this.knownStates.get(file.getPath());
+        }
+        if (knownState != null && knownState.size == size
+            && knownState.lastModified == lastModified) {
+            return knownState;
+        }
+
+        final String digest;
+        try {
+            digest = Digests.digest(file);
+        } catch (final IOException e) {
+            throw new VppException("unable to read file: " + file.getPath()
+                + " (" + e.getMessage() + ")");
+        }
+        // the digest is only that of the rendered text if the file was not
+        // modified while it was read
+        if (file.length() != size || file.lastModified() != lastModified) {
+            return FileState.unknown(file);
+        }
+        return new FileState(file.getPath(), size, lastModified, digest);
+    }
+
+    private void addKnownStates(List<FileState> states) {
+        for (final FileState state : states) {
+            if (state.size >= 0) {
+                this.knownStates.put(state.path, state);
+            }
+        }
+    }
+
+    /**
+     * Removes the record of an output file, so that it will be rendered by the
+     * next build; this is used when rendering the output file fails.
+     *
+     * @param outFile the output file
+     */
+    public synchronized void remove(File outFile) {
+        this.entries.remove(outFile.getAbsolutePath());
+    }
+
+    /**
+     * The recorded state of an output file.
+     */
+    private static class Entry {
+
+        public final FileState output;
+        public final String definesDigest;
+        public final int numInputs;
+        public final List<FileState> files;
+
+        public Entry(FileState output, String definesDigest, int numInputs,
+                List<FileState> files) {
+            this.output = output;
+            this.definesDigest = definesDigest;
+            this.numInputs = numInputs;
+            this.files = Collections.unmodifiableList(files);
+        }
+    }
+
+    /**
+     * The recorded state of a single file.
+     */
+    static class FileState {
+
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final String digest;
+
+        public FileState(String path, long size, long lastModified,
+                String digest) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        /**
+         * Returns the state of an input file that has been loaded.
+         *
+         * @param file the input file
+         * @param source the text loaded from the input file
+         * @param lastModified the modification time of the input file before
+         * it was loaded, so that if the input file was modified while it was
+         * loaded then the state does not match the modified file
+         * @return the state of the input file; never returns null
+         */
+        public static FileState of(File file, TemplateSource source,
+                long lastModified) {
+            return new FileState(file.getPath(), source.getNumBytes(),
+                lastModified, source.getDigest());
+        }
+
+        /**
+         * Returns a state that never matches the given file, for a file whose
+         * rendered contents are not known.
+         */
+        public static FileState unknown(File file) {
+            return new FileState(file.getPath(), -1, -1, "-");
+        }
+
+        /**
+         * Compares this state with the current state of the given file.
+         *
+         * @return this object if the file is unchanged, a new object if only
+         * the modification time of the file has changed, or null if the file
+         * has changed or no longer exists
+         */
+        public FileState refresh(File file) {
+            if (!file.isFile() || file.length() != this.size) {
+                return null;
+            }
+            final long lastModified = file.lastModified();
+            if (lastModified == this.lastModified) {
+                return this;
+            }
+
+            final String digest;
+            try {
+                digest = Digests.digest(file);
+            } catch (final IOException e) {
+                return null;
+            }
+            if (!digest.equals(this.digest)) {
+                return null;
+            }
+            return new FileState(this.path, this.size, lastModified, digest);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ContextUsage.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTMethod;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * Determines, by inspecting the syntax tree of a template, whether rendering
+ * it could affect what is rendered after it with the same context.
+ * <p>
+ * The inspection is conservative: a template is only considered to leave the
+ * context unchanged if it contains no <code>#set</code>, no directive other
+ * than those known to restore the context, such as <code>#foreach</code>,
+ * and no method call whose name suggests that it modifies its object, such as
+ * <code>$list.add(1)</code>. Macro calls and <code>#parse</code> are assumed
+ * to change the context, since what they render is not known until then.
+ */
+final class ContextUsage {
+
+    /**
+     * The directives that do not modify the context, or that restore it once
+     * they have been rendered.
+     */
+    private static final Set<String> PRESERVING_DIRECTIVES =
+        new HashSet<String>(Arrays.asList("break", "foreach", "include",
+            "literal"));
+
+    /**
+     * The prefixes of the names of methods assumed to modify their object.
+     */
+    private static final String[] MODIFYING_METHOD_PREFIXES = { "add",
+        "clear", "offer", "poll", "pop", "push", "put", "remove", "set" };
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private ContextUsage() {
+    }
+
+    /**
+     * Returns whether rendering a template is known to leave its context, and
+     * the objects in its context, as they were before.
+     *
+     * @param template the template to inspect
+     * @return true if rendering the template cannot affect later renders with
+     * the same context, or false if it might
+     * @throws NullPointerException if template==null
+     */
+    public static boolean preservesContext(Template template) {
+        final Object data = template.getData();
+        return (data instanceof Node) && preservesContext((Node) data);
+    }
+
+    private static boolean preservesContext(Node node) {
+        if (node instanceof ASTSetDirective) {
+            return false;
+        } else if (node instanceof ASTDirective) {
+            final String name = ((ASTDirective) node).getDirectiveName();
+            if (!PRESERVING_DIRECTIVES.contains(name)) {
+                return false;
+            }
+        } else if (node instanceof ASTMethod) {
+            final String name = ((ASTMethod) node).getMethodName();
+            for (final String prefix : MODIFYING_METHOD_PREFIXES) {
+                if (name.startsWith(prefix)) {
+                    return false;
+                }
+            }
+        }
+
+        final int numChildren = node.jjtGetNumChildren();
+        for (int i = 0; i < numChildren; i++) {
+            if (!preservesContext(node.jjtGetChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
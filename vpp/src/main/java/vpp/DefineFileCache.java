@@ -0,0 +1,264 @@
+/*
+ * DefineFileCache.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import vpp.util.Digests;
+import vpp.util.JsonParser;
+
+/**
+ * A cache of parsed define files, so that loading the same define file more
+ * than once only parses it once.
+ * <p>
+ * A define file whose name ends with ".json" must contain a JSON object, each
+ * of whose members is a define. Their values keep their JSON types: strings
+ * are {@link String}s, integers are {@link Integer}s if they fit in an
+ * <code>int</code> and {@link Long}s otherwise, other numbers are
+ * {@link Double}s, <code>true</code> and <code>false</code> are
+ * {@link Boolean}s, arrays are unmodifiable {@link List}s and objects are
+ * unmodifiable {@link Map}s whose iteration order is that of their members,
+ * so they can be used directly by <code>#foreach</code> and <code>#if</code>.
+ * Any other define file is read as a Java properties file, each of whose
+ * properties is a define whose value is a {@link String}.
+ * <p>
+ * Entries are keyed on the absolute path of the file. A cached file is used
+ * without being read again if its modification time and length have not
+ * changed; otherwise it is read again, but is only parsed again if the digest
+ * of its contents has changed.
+ * <p>
+ * Every method of this class is thread-safe; files are read and parsed
+ * without holding any locks.
+ */
+class DefineFileCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, DefineFile> entries;
+    private long numParses;
+
+    /**
+     * Creates a new, empty instance of <code>DefineFileCache</code>.
+     */
+    public DefineFileCache() {
+        this.entries = new HashMap<String, DefineFile>();
+    }
+
+    /**
+     * Loads a define file, parsing it only if it was not previously loaded or
+     * if its contents have changed since it was.
+     *
+     * @param file the define file to load
+     * @return the loaded define file; never returns null
+     * @throws VppException if reading or parsing the file fails
+     * @throws NullPointerException if file==null
+     */
+    public DefineFile load(File file) throws VppException {
+        final String key = file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        final DefineFile cached;
+        synchronized (this) {
+            cached = this.entries.get(key);
+        }
+        if (cached != null && cached.lastModified == lastModified
+            && cached.length == length && lastModified != 0) {
+            return cached;
+        }
+
+        final byte[] bytes = readFile(file);
+        final String digest = Digests.digest(bytes, 0, bytes.length);
+        final Map<String, Object> values;
+        if (cached != null && cached.digest.equals(digest)) {
+            values = cached.values;
+        } else {
+            values = parse(file, bytes);
+            synchronized (this) {
+                this.numParses++;
+            }
+        }
+
+        final DefineFile defineFile =
+            new DefineFile(lastModified, length, digest, values);
+        synchronized (this) {
+            this.entries.put(key, defineFile);
+        }
+        return defineFile;
+    }
+
+    /**
+     * Returns the number of times that a define file has been parsed by
+     * {@link #load(File)}.
+     *
+     * @return the number of times that a define file has been parsed
+     */
+    public synchronized long getNumParses() {
+        return this.numParses;
+    }
+
+    private static byte[] readFile(File file) throws VppException {
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                final long length = file.length();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("file is too large");
+                }
+                byte[] bytes = new byte[(int) length];
+                int numBytes = 0;
+                while (true) {
+                    if (numBytes == bytes.length) {
+                        // the file grew since its length was checked
+                        final byte[] newBytes =
+                            new byte[Math.max(bytes.length * 2, 4096)];
+                        System.arraycopy(bytes, 0, newBytes, 0, numBytes);
+                        bytes = newBytes;
+                    }
+                    final int numRead =
+                        in.read(bytes, numBytes, bytes.length - numBytes);
+                    if (numRead < 0) {
+                        break;
+                    }
+                    numBytes += numRead;
+                }
+                if (numBytes == bytes.length) {
+                    return bytes;
+                }
+                final byte[] result = new byte[numBytes];
+                System.arraycopy(bytes, 0, result, 0, numBytes);
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            throw new VppException("unable to read define file: "
+                + file.getPath() + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private static Map<String, Object> parse(File file, byte[] bytes)
+            throws VppException {
+        if (!file.getName().endsWith(".json")) {
+            final Properties properties = new Properties();
+            try {
+                properties.load(new ByteArrayInputStream(bytes));
+            } catch (final IOException e) {
+                throw new VppException("invalid define file: " + file.getPath()
+                    + " (" + e.getMessage() + ")");
+            } catch (final IllegalArgumentException e) {
+                // thrown for malformed Unicode escapes
+                throw new VppException("invalid define file: " + file.getPath()
+                    + " (" + e.getMessage() + ")");
+            }
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (final String name : properties.stringPropertyNames()) {
+                values.put(name, properties.getProperty(name));
+            }
+            return Collections.unmodifiableMap(values);
+        }
+
+        final Object value;
+        try {
+            value = JsonParser.parse(new String(bytes, UTF8));
+        } catch (final ParseException e) {
+            throw new VppException("invalid define file: " + file.getPath()
+                + " (" + e.getMessage() + ")");
+        }
+        if (!(value instanceof Map)) {
+            throw new VppException("invalid define file: " + file.getPath()
+                + " (must contain a JSON object)");
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> values = (Map<String, Object>) freeze(value);
+        return values;
+    }
+
+    /**
+     * Converts a value returned by {@link JsonParser} to the value of a
+     * define, making lists and maps unmodifiable and converting integers that
+     * fit in an <code>int</code> to {@link Integer}.
+     */
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            final Map<Object, Object> frozenMap =
+                new LinkedHashMap<Object, Object>(map.size() * 4 / 3 + 1);
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                frozenMap.put(entry.getKey(), freeze(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(frozenMap);
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final List<Object> frozenList = new ArrayList<Object>(list.size());
+            for (final Object element : list) {
+                frozenList.add(freeze(element));
+            }
+            return Collections.unmodifiableList(frozenList);
+        } else if (value instanceof Long) {
+            final long longValue = ((Long) value).longValue();
+            if (longValue >= Integer.MIN_VALUE
+                && longValue <= Integer.MAX_VALUE) {
+                return Integer.valueOf((int) longValue);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * A loaded define file.
+     */
+    static final class DefineFile {
+
+        private final long lastModified;
+        private final long length;
+        private final String digest;
+        private final Map<String, Object> values;
+
+        DefineFile(long lastModified, long length, String digest,
+                Map<String, Object> values) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+            this.values = values;
+        }
+
+        /**
+         * Returns the digest of the contents of the file.
+         *
+         * @return the digest of the contents of the file; never returns null
+         */
+        public String getDigest() {
+            return this.digest;
+        }
+
+        /**
+         * Returns the defines of the file.
+         *
+         * @return an unmodifiable map from the key of each define to its value;
+         * never returns null
+         */
+        public Map<String, Object> getValues() {
+            return this.values;
+        }
+    }
+}
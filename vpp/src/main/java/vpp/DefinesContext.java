@@ -0,0 +1,164 @@
+/*
+ * DefinesContext.java
+ * By: Denver Coneybeare
+ * Oct 16, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.velocity.context.Context;
+
+/**
+ * A read-only Velocity context whose values are a map of defines, optionally
+ * layered over a base context of the same type. The defines are either those
+ * of {@link VppOptions}, whose values are strings, or those of a define file
+ * (see {@link DefineFileCache}), whose values may be of any type.
+ * <p>
+ * Looking up a key returns the value of the define with that key if this
+ * context has one, even if its value is null, and otherwise the value in the
+ * base context. Because the map of defines is used as-is rather than copied,
+ * creating a context is cheap no matter how many defines there are; many
+ * contexts may share one base context so that defines that are common to
+ * all of them are stored only once.
+ * <p>
+ * Templates are rendered with a {@link org.apache.velocity.VelocityContext}
+ * that chains to a context of this class, so that the values set by
+ * <code>#set</code> are stored in the per-render context rather than here.
+ * <p>
+ * This class is immutable, provided that the map of defines is not modified,
+ * and may therefore be shared by any number of threads.
+ */
+final class DefinesContext implements Context {
+
+    private final Map<String, ?> defines;
+    private final String fileDigest;
+    private final DefinesContext base;
+
+    /**
+     * Creates a new instance of <code>DefinesContext</code> whose defines are
+     * strings.
+     *
+     * @param defines the defines, which must not be modified after this
+     * object is created
+     * @param base the context whose defines are visible through this context
+     * unless overridden by the given defines; may be null
+     * @throws NullPointerException if defines==null
+     */
+    public DefinesContext(Map<String, String> defines, DefinesContext base) {
+        this(defines, null, base);
+    }
+
+    /**
+     * Creates a new instance of <code>DefinesContext</code> whose defines are
+     * those of a define file.
+     *
+     * @param defineFile the define file
+     * @param base the context whose defines are visible through this context
+     * unless overridden by those of the define file; may be null
+     * @throws NullPointerException if defineFile==null
+     */
+    public DefinesContext(DefineFileCache.DefineFile defineFile,
+            DefinesContext base) {
+        this(defineFile.getValues(), defineFile.getDigest(), base);
+    }
+
+    private DefinesContext(Map<String, ?> defines, String fileDigest,
+            DefinesContext base) {
+        if (defines == null) {
+            throw new NullPointerException("defines==null");
+        }
+        this.defines = defines;
+        this.fileDigest = fileDigest;
+        this.base = base;
+    }
+
+    /**
+     * Appends a description of the defines of this context and of its base
+     * context to the given string builder, which differs whenever the defines
+     * differ. Defines whose values are strings are described by their keys
+     * and values, sorted by key; those of a define file are described by the
+     * digest of its contents, so that the values are not converted to
+     * strings.
+     *
+     * @param sb the string builder to which to append the description
+     */
+    public void appendKey(StringBuilder sb) {
+        if (this.base != null) {
+            this.base.appendKey(sb);
+        }
+        if (this.fileDigest != null) {
+            sb.append("file:").append(this.fileDigest).append('\n');
+            return;
+        }
+
+        final Map<String, ?> sortedDefines =
+            new TreeMap<String, Object>(this.defines);
+        for (final Map.Entry<String, ?> entry : sortedDefines.entrySet()) {
+            sb.append(entry.getKey().length()).append(':');
+            sb.append(entry.getKey());
+            final Object value = entry.getValue();
+            if (value == null) {
+                sb.append("-\n");
+            } else {
+                final String string = value.toString();
+                sb.append(string.length()).append(':').append(string);
+                sb.append('\n');
+            }
+        }
+        sb.append("end\n");
+    }
+
+    public Object get(String key) {
+        if (key == null) {
+            return null;
+        } else if (this.defines.containsKey(key)) {
+            return this.defines.get(key);
+        } else if (this.base != null) {
+            return this.base.get(key);
+        }
+        return null;
+    }
+
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        return this.defines.containsKey(key)
+            || (this.base != null && this.base.containsKey(key));
+    }
+
+    public Object[] getKeys() {
+        final Set<Object> keys = new LinkedHashSet<Object>();
+        if (this.base != null) {
+            for (final Object key : this.base.getKeys()) {
+                keys.add(key);
+            }
+        }
+        keys.addAll(this.defines.keySet());
+        return keys.toArray();
+    }
+
+    /**
+     * Throws {@link UnsupportedOperationException} because this context is
+     * read-only.
+     */
+    public Object put(String key, Object value) {
+        throw new UnsupportedOperationException("read-only context");
+    }
+
+    /**
+     * Throws {@link UnsupportedOperationException} because this context is
+     * read-only.
+     */
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException("read-only context");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * DependencyRecorder.java
+ * By: Denver Coneybeare
+ * Sept 27, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.app.event.IncludeEventHandler;
+import org.apache.velocity.context.Context;
+
+/**
+ * Records the templates loaded by the <code>#parse</code> and
+ * <code>#include</code> directives while rendering.
+ * <p>
+ * An instance of this class is attached to the context of a single render by
+ * {@link #attachTo(Context)}, and must not be shared by concurrent renders.
+ */
+class DependencyRecorder implements IncludeEventHandler {
+
+    private final File templateRoot;
+    private final Set<String> resourcePaths;
+
+    /**
+     * Creates a new instance of <code>DependencyRecorder</code>.
+     *
+     * @param templateRoot the directory relative to which resource paths are
+     * resolved, which is the root of the engine's file resource loader
+     * @throws NullPointerException if templateRoot==null
+     */
+    public DependencyRecorder(File templateRoot) {
+        if (templateRoot == null) {
+            throw new NullPointerException("templateRoot==null");
+        }
+        this.templateRoot = templateRoot;
+        this.resourcePaths = new LinkedHashSet<String>();
+    }
+
+    /**
+     * Attaches this object to the given context so that it is notified of every
+     * template loaded while rendering with that context.
+     *
+     * @param context the context to which to attach
+     * @throws NullPointerException if context==null
+     */
+    public void attachTo(Context context) {
+        final EventCartridge cartridge = new EventCartridge();
+        cartridge.addIncludeEventHandler(this);
+        cartridge.attachToContext(context);
+    }
+
+    /**
+     * Records the given resource path and returns it unchanged.
+     */
+    public String includeEvent(String includeResourcePath,
+            String currentResourcePath, String directiveName) {
+        if (includeResourcePath != null) {
+            this.resourcePaths.add(includeResourcePath);
+        }
+        return includeResourcePath;
+    }
+
+    /**
+     * Records the templates recorded by another object, after those already
+     * recorded by this object.
+     *
+     * @param other the object whose templates to record
+     * @throws NullPointerException if other==null
+     */
+    public void addAll(DependencyRecorder other) {
+        this.resourcePaths.addAll(other.resourcePaths);
+    }
+
+    /**
+     * Returns the files of the templates that have been recorded, in the order
+     * in which they were first loaded. Resource paths are resolved relative to
+     * the template root given to the constructor; if the template root is "."
+     * then the returned files are relative paths.
+     *
+     * @return a newly-created list of the files of the recorded templates,
+     * without duplicates; never returns null
+     */
+    public List<File> getFiles() {
+        final List<File> files = new ArrayList<File>(this.resourcePaths.size());
+        for (final String resourcePath : this.resourcePaths) {
+            String path = resourcePath;
+            while (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if (this.templateRoot.getPath().equals(".")) {
+                files.add(new File(path));
+            } else {
+                files.add(new File(this.templateRoot, path));
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * DependencyReport.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import vpp.util.JsonWriter;
+
+/**
+ * Writes the files on which the outputs of a run depend, for the
+ * <code>--depfile</code> and <code>--dependency-graph</code> command-line
+ * options, so that build tools such as make and Ninja can run the Velocity
+ * Preprocessor again only when one of those files changes.
+ * <p>
+ * The files on which an output depends are its input files followed by the
+ * templates that they loaded by <code>#parse</code> and <code>#include</code>,
+ * as recorded in {@link OutputStats#getDependencyPaths()}. Outputs written to
+ * standard output and outputs that failed are omitted.
+ */
+final class DependencyReport {
+
+    /**
+     * The version of the format of the JSON dependency graph, which is
+     * incremented whenever a field is removed or its meaning changes.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private DependencyReport() {
+    }
+
+    /**
+     * Writes the dependencies of the outputs of a run as make rules, in the
+     * format of the dependency files written by <code>gcc -MD -MP</code>: one
+     * rule for each output, whose prerequisites are its input files and
+     * templates, followed by an empty rule for each template so that make
+     * does not fail when a template is deleted.
+     *
+     * @param stats the statistics of the run whose dependencies to write
+     * @param writer the writer to which to write; it is flushed but not closed
+     * @throws IOException if writing fails
+     */
+    public static void writeMakefile(RunStats stats, Writer writer)
+            throws IOException {
+        final Set<String> templatePaths = new LinkedHashSet<String>();
+        for (final OutputStats output : stats.getOutputs()) {
+            if (!isReported(output)) {
+                continue;
+            }
+            writer.write(escapeMakePath(output.getOutputPath()));
+            writer.write(':');
+            for (final String inputPath : output.getInputPaths()) {
+                writer.write(" \\\n  ");
+                writer.write(escapeMakePath(inputPath));
+            }
+            for (final String dependencyPath : output.getDependencyPaths()) {
+                writer.write(" \\\n  ");
+                writer.write(escapeMakePath(dependencyPath));
+                templatePaths.add(dependencyPath);
+            }
+            writer.write('\n');
+        }
+
+        for (final String templatePath : templatePaths) {
+            writer.write('\n');
+            writer.write(escapeMakePath(templatePath));
+            writer.write(":\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the dependencies of the outputs of a run as JSON, followed by a
+     * newline. The graph is an object with a "version" member and an
+     * "outputs" array with an object for each output, whose "output",
+     * "inputs" and "dependencies" members are its path, the paths of its
+     * input files and the paths of the templates that they loaded.
+     *
+     * @param stats the statistics of the run whose dependencies to write
+     * @param writer the writer to which to write; it is flushed but not closed
+     * @throws IOException if writing fails
+     */
+    public static void writeJson(RunStats stats, Writer writer)
+            throws IOException {
+        final JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("version").value(VERSION);
+        json.name("outputs").beginArray();
+        for (final OutputStats output : stats.getOutputs()) {
+            if (!isReported(output)) {
+                continue;
+            }
+            json.beginObject();
+            json.name("output").value(output.getOutputPath());
+            json.name("inputs").beginArray();
+            for (final String inputPath : output.getInputPaths()) {
+                json.value(inputPath);
+            }
+            json.endArray();
+            json.name("dependencies").beginArray();
+            for (final String dependencyPath : output.getDependencyPaths()) {
+                json.value(dependencyPath);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        writer.write('\n');
+        json.flush();
+    }
+
+    /**
+     * Returns whether the dependencies of an output are reported, which they
+     * are if it was written to, or is up to date in, a file.
+     */
+    private static boolean isReported(OutputStats output) {
+        if (output.getOutputPath() == null || output.getError() != null) {
+            return false;
+        }
+        for (final String inputPath : output.getInputPaths()) {
+            if (inputPath == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Escapes the characters of a path that are special in the targets and
+     * prerequisites of make rules.
+     */
+    static String escapeMakePath(String path) {
+        final StringBuilder sb = new StringBuilder(path.length() + 8);
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == ' ' || c == '\t' || c == '#') {
+                sb.append('\\');
+            } else if (c == '$') {
+                sb.append('$');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
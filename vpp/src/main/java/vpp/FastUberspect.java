@@ -0,0 +1,466 @@
+/*
+ * FastUberspect.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.util.introspection.Info;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.apache.velocity.util.introspection.VelMethod;
+import org.apache.velocity.util.introspection.VelPropertyGet;
+
+/**
+ * The Velocity introspector used by {@link VppEngine}, which resolves the
+ * references in templates, such as <code>$obj.name</code> and
+ * <code>$obj.method($arg)</code>, with the same rules as Velocity's default
+ * introspector but invokes them more cheaply.
+ * <p>
+ * The lists, maps and arrays that templates iterate over, such as those of
+ * JSON define files, are handled without reflection: <code>get</code> and
+ * <code>size</code> on a list, <code>get</code>, <code>containsKey</code> and
+ * <code>size</code> on a map, <code>get</code> and <code>size</code> on an
+ * array, and properties of a map that has no getter of the same name, are
+ * invoked directly. Other properties and methods are looked up once for each
+ * class, name and argument types, rather than once for each place in each
+ * template that uses them, and invoked through a {@link MethodHandle}; they are
+ * cached with a {@link ClassValue}, so that the cache of a class does not
+ * prevent it from being unloaded. Methods that take variable arguments or that
+ * need their arguments converted, and methods of classes, are left to
+ * Velocity's default introspector.
+ * <p>
+ * Exceptions thrown by an invoked method are wrapped in an
+ * {@link InvocationTargetException}, as they are by reflection, so that
+ * Velocity reports them in the same way.
+ */
+public class FastUberspect extends UberspectImpl {
+
+    private static final MethodType GETTER_TYPE =
+        MethodType.methodType(Object.class, Object.class);
+
+    private final MembersByClass members;
+
+    /**
+     * Creates a new instance of <code>FastUberspect</code>; Velocity creates
+     * an instance for each engine.
+     */
+    public FastUberspect() {
+        this.members = new MembersByClass();
+    }
+
+    @Override
+    public VelPropertyGet getPropertyGet(Object obj, String identifier,
+            Info info) throws Exception {
+        if (obj == null || identifier == null) {
+            return super.getPropertyGet(obj, identifier, info);
+        }
+        final ConcurrentMap<MemberKey, VelPropertyGet> getters =
+            this.members.get(obj.getClass()).getters;
+        final MemberKey key = new MemberKey(identifier, null);
+        VelPropertyGet getter = getters.get(key);
+        if (getter == null) {
+            getter = super.getPropertyGet(obj, identifier, info);
+            if (getter == null) {
+                return null;
+            }
+            getter = this.createGetter(obj, identifier, getter);
+            getters.put(key, getter);
+        }
+        return getter;
+    }
+
+    /**
+     * Returns a getter that is equivalent to the given getter found by
+     * Velocity's default introspector, but invoked more cheaply if possible.
+     */
+    private VelPropertyGet createGetter(Object obj, String identifier,
+            VelPropertyGet getter) {
+        final String methodName = getter.getMethodName();
+        if (methodName == null) {
+            return getter;
+        } else if (obj instanceof Map && methodName.equals("get")) {
+            return new MapGetter(identifier);
+        }
+
+        final Object[] args = methodName.equals("get")
+            ? new Object[] { identifier } : new Object[0];
+        final MethodHandle handle =
+            this.findHandle(obj.getClass(), methodName, args);
+        if (handle == null) {
+            return getter;
+        }
+        final MethodHandle getterHandle = (args.length == 0) ? handle
+            : MethodHandles.insertArguments(handle, 1, identifier);
+        return new HandleGetter(methodName, getterHandle.asType(GETTER_TYPE));
+    }
+
+    @Override
+    public VelMethod getMethod(Object obj, String methodName, Object[] args,
+            Info info) throws Exception {
+        if (obj == null || methodName == null || args == null) {
+            return super.getMethod(obj, methodName, args, info);
+        }
+
+        final VelMethod fastMethod =
+            CollectionMethod.find(obj, methodName, args);
+        if (fastMethod != null) {
+            return fastMethod;
+        } else if (obj instanceof Class || obj.getClass().isArray()) {
+            return super.getMethod(obj, methodName, args, info);
+        }
+
+        final Class<?>[] argTypes = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argTypes[i] = (args[i] == null) ? null : args[i].getClass();
+        }
+        final ConcurrentMap<MemberKey, VelMethod> methods =
+            this.members.get(obj.getClass()).methods;
+        final MemberKey key = new MemberKey(methodName, argTypes);
+        VelMethod method = methods.get(key);
+        if (method == null) {
+            final MethodHandle handle =
+                this.findHandle(obj.getClass(), methodName, args);
+            if (handle == null) {
+                method = super.getMethod(obj, methodName, args, info);
+                if (method == null) {
+                    return null;
+                }
+            } else {
+                method = new HandleMethod(methodName, handle);
+            }
+            methods.put(key, method);
+        }
+        return method;
+    }
+
+    /**
+     * Returns a handle of the public method that Velocity's introspector
+     * finds for the given name and arguments, with the type of the method,
+     * or null if there is no such method or if invoking it requires more than
+     * a cast of each argument.
+     */
+    private MethodHandle findHandle(Class<?> type, String methodName,
+            Object[] args) {
+        final Method method;
+        try {
+            method = this.introspector.getMethod(type, methodName, args);
+        } catch (final RuntimeException e) {
+            // ambiguous; leave the error to the default introspector
+            return null;
+        }
+        if (method == null || method.isVarArgs()
+            || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            return null;
+        }
+        final Class<?>[] paramTypes = method.getParameterTypes();
+        for (int i = 0; i < paramTypes.length; i++) {
+            if (!isExactArgument(paramTypes[i], args[i])) {
+                return null;
+            }
+        }
+        try {
+            return MethodHandles.publicLookup().unreflect(method);
+        } catch (final IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether an argument can be given for a parameter without being
+     * converted, except for unboxing.
+     */
+    private static boolean isExactArgument(Class<?> paramType, Object arg) {
+        if (arg == null) {
+            return !paramType.isPrimitive();
+        } else if (!paramType.isPrimitive()) {
+            return paramType.isInstance(arg);
+        }
+        return MethodType.methodType(paramType).wrap().returnType()
+            == arg.getClass();
+    }
+
+    /**
+     * The properties and methods of each class that have been looked up.
+     */
+    private static final class MembersByClass extends ClassValue<Members> {
+
+        @Override
+        protected Members computeValue(Class<?> type) {
+            return new Members();
+        }
+    }
+
+    /**
+     * The properties and methods of a class that have been looked up.
+     */
+    private static final class Members {
+
+        public final ConcurrentMap<MemberKey, VelPropertyGet> getters =
+            new ConcurrentHashMap<MemberKey, VelPropertyGet>();
+        public final ConcurrentMap<MemberKey, VelMethod> methods =
+            new ConcurrentHashMap<MemberKey, VelMethod>();
+    }
+
+    /**
+     * Identifies a property or method of a class; argument types are null for
+     * properties and contain null for null arguments.
+     */
+    private static final class MemberKey {
+
+        private final String name;
+        private final Class<?>[] argTypes;
+        private final int hashCode;
+
+        public MemberKey(String name, Class<?>[] argTypes) {
+            this.name = name;
+            this.argTypes = argTypes;
+            this.hashCode = name.hashCode() * 31 + Arrays.hashCode(argTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MemberKey)) {
+                return false;
+            }
+            final MemberKey other = (MemberKey) obj;
+            return this.name.equals(other.name)
+                && Arrays.equals(this.argTypes, other.argTypes);
+        }
+    }
+
+    /**
+     * Gets the value of a key of a map.
+     */
+    private static final class MapGetter implements VelPropertyGet {
+
+        private final String key;
+
+        public MapGetter(String key) {
+            this.key = key;
+        }
+
+        public Object invoke(Object obj) {
+            return ((Map<?, ?>) obj).get(this.key);
+        }
+
+        public boolean isCacheable() {
+            return true;
+        }
+
+        public String getMethodName() {
+            return "get";
+        }
+    }
+
+    /**
+     * Gets a property by invoking a method handle.
+     */
+    private static final class HandleGetter implements VelPropertyGet {
+
+        private final String methodName;
+        private final MethodHandle handle;
+
+        public HandleGetter(String methodName, MethodHandle handle) {
+            this.methodName = methodName;
+            this.handle = handle;
+        }
+
+        public Object invoke(Object obj) throws InvocationTargetException {
+            try {
+                return (Object) this.handle.invokeExact(obj);
+            } catch (final Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        public boolean isCacheable() {
+            return true;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+    }
+
+    /**
+     * Invokes a method through a method handle.
+     */
+    private static final class HandleMethod implements VelMethod {
+
+        private final String methodName;
+        private final Class<?> returnType;
+        private final MethodHandle handle;
+
+        public HandleMethod(String methodName, MethodHandle handle) {
+            this.methodName = methodName;
+            this.returnType = handle.type().returnType();
+            final int numArgs = handle.type().parameterCount() - 1;
+            this.handle = handle.asSpreader(Object[].class, numArgs).asType(
+                MethodType.methodType(Object.class, Object.class,
+                    Object[].class));
+        }
+
+        public Object invoke(Object obj, Object[] args)
+                throws InvocationTargetException {
+            try {
+                return (Object) this.handle.invokeExact(obj, args);
+            } catch (final Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        public boolean isCacheable() {
+            return true;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        public Class<?> getReturnType() {
+            return this.returnType;
+        }
+    }
+
+    /**
+     * The methods of lists, maps and arrays that are invoked directly.
+     */
+    private enum CollectionMethod implements VelMethod {
+
+        LIST_GET("get", Object.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return ((List<?>) obj).get(((Integer) args[0]).intValue());
+            }
+        },
+
+        COLLECTION_SIZE("size", int.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return Integer.valueOf(((Collection<?>) obj).size());
+            }
+        },
+
+        MAP_GET("get", Object.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return ((Map<?, ?>) obj).get(args[0]);
+            }
+        },
+
+        MAP_CONTAINS_KEY("containsKey", boolean.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return Boolean.valueOf(((Map<?, ?>) obj).containsKey(args[0]));
+            }
+        },
+
+        MAP_SIZE("size", int.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return Integer.valueOf(((Map<?, ?>) obj).size());
+            }
+        },
+
+        ARRAY_GET("get", Object.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return Array.get(obj, ((Integer) args[0]).intValue());
+            }
+        },
+
+        ARRAY_SIZE("size", int.class) {
+            @Override
+            protected Object doInvoke(Object obj, Object[] args) {
+                return Integer.valueOf(Array.getLength(obj));
+            }
+        };
+
+        private final String methodName;
+        private final Class<?> returnType;
+
+        private CollectionMethod(String methodName, Class<?> returnType) {
+            this.methodName = methodName;
+            this.returnType = returnType;
+        }
+
+        /**
+         * Returns the method to invoke directly for the given object, method
+         * name and arguments, or null if there is none.
+         */
+        public static CollectionMethod find(Object obj, String methodName,
+                Object[] args) {
+            final boolean index =
+                (args.length == 1 && args[0] instanceof Integer);
+            if (obj instanceof List) {
+                if (index && methodName.equals("get")) {
+                    return LIST_GET;
+                } else if (args.length == 0 && methodName.equals("size")) {
+                    return COLLECTION_SIZE;
+                }
+            } else if (obj instanceof Map) {
+                if (args.length == 1 && methodName.equals("get")) {
+                    return MAP_GET;
+                } else if (args.length == 1
+                    && methodName.equals("containsKey")) {
+                    return MAP_CONTAINS_KEY;
+                } else if (args.length == 0 && methodName.equals("size")) {
+                    return MAP_SIZE;
+                }
+            } else if (obj.getClass().isArray()) {
+                if (index && methodName.equals("get")) {
+                    return ARRAY_GET;
+                } else if (args.length == 0 && methodName.equals("size")) {
+                    return ARRAY_SIZE;
+                }
+            }
+            return null;
+        }
+
+        public Object invoke(Object obj, Object[] args)
+                throws InvocationTargetException {
+            try {
+                return this.doInvoke(obj, args);
+            } catch (final RuntimeException e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        protected abstract Object doInvoke(Object obj, Object[] args);
+
+        public boolean isCacheable() {
+            return true;
+        }
+
+        public String getMethodName() {
+            return this.methodName;
+        }
+
+        public Class<?> getReturnType() {
+            return this.returnType;
+        }
+    }
+}
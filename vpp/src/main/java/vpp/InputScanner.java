@@ -0,0 +1,531 @@
+/*
+ * InputScanner.java
+ * By: Denver Coneybeare
+ * Oct 14, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Expands input paths that name directories or glob patterns into the files
+ * that they contain.
+ * <p>
+ * Directories are searched in parallel by a shared {@link ForkJoinPool}, one
+ * task per directory, and each file is given to a {@link Callback} as soon as
+ * it is found so that it can be rendered while the search continues.
+ * Symbolic links to files are followed, but symbolic links to directories are
+ * not, so that the search always terminates. A glob pattern without
+ * <code>**</code> only searches as many directory levels as it has path
+ * components.
+ * <p>
+ * Instances of this class are immutable and thread-safe.
+ */
+class InputScanner {
+
+    /**
+     * The pool that searches directories; its threads are daemon threads, so
+     * it never needs to be shut down.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(2,
+        Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Receives the files found by {@link InputScanner#scan}.
+     */
+    interface Callback {
+
+        /**
+         * Invoked for each file found; may be invoked concurrently by
+         * multiple threads.
+         *
+         * @param file the file that was found
+         * @param relativePath the path of the file relative to the directory
+         * that was searched, using "/" as the separator; for an input path
+         * that names a file, this is the name of the file
+         * @throws VppException to stop the search; the exception is thrown by
+         * {@link InputScanner#scan}
+         */
+        void inputFound(File file, String relativePath) throws VppException;
+    }
+
+    private final Filter[] includeFilters;
+    private final Filter[] excludeFilters;
+    private final Path excludedDirectory;
+
+    /**
+     * Creates a new instance of <code>InputScanner</code>.
+     *
+     * @param includePatterns the include patterns; if not empty, then files
+     * that match none of them are skipped
+     * @param excludePatterns the exclude patterns; files and directories that
+     * match any of them are skipped
+     * @throws NullPointerException if either argument or any of their elements
+     * is null
+     * @see VppOptions#addIncludePattern(String)
+     * @see VppOptions#addExcludePattern(String)
+     */
+    public InputScanner(String[] includePatterns, String[] excludePatterns) {
+        this(includePatterns, excludePatterns, null);
+    }
+
+    /**
+     * Creates a new instance of <code>InputScanner</code> that never searches
+     * the given directory, such as an output directory beneath an input
+     * directory.
+     *
+     * @param includePatterns the include patterns; if not empty, then files
+     * that match none of them are skipped
+     * @param excludePatterns the exclude patterns; files and directories that
+     * match any of them are skipped
+     * @param excludedDirectory the directory to skip wherever it is found
+     * beneath a searched directory; may be null
+     * @throws NullPointerException if includePatterns or excludePatterns or
+     * any of their elements is null
+     */
+    public InputScanner(String[] includePatterns, String[] excludePatterns,
+            File excludedDirectory) {
+        this.includeFilters = createFilters(includePatterns);
+        this.excludeFilters = createFilters(excludePatterns);
+        this.excludedDirectory = (excludedDirectory == null) ? null
+            : excludedDirectory.toPath().toAbsolutePath().normalize();
+    }
+
+    private static Filter[] createFilters(String[] patterns) {
+        final Filter[] filters = new Filter[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            filters[i] = new Filter(patterns[i]);
+        }
+        return filters;
+    }
+
+    /**
+     * Returns whether the given input path contains glob wildcards.
+     *
+     * @param path the input path
+     * @return true if the path contains any of the characters "*", "?", "[" or
+     * "{", false otherwise
+     * @throws NullPointerException if path==null
+     */
+    public static boolean isPattern(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the given input path must be expanded, as opposed to
+     * naming a single file.
+     *
+     * @param path the input path
+     * @return true if the path is a glob pattern or names a directory
+     * @throws NullPointerException if path==null
+     */
+    public static boolean isExpandable(String path) {
+        return isPattern(path) || new File(path).isDirectory();
+    }
+
+    /**
+     * Returns the directory that is searched to expand the given input path.
+     *
+     * @param path the input path
+     * @return for a glob pattern, the directory that precedes its first
+     * wildcard, which is the current directory if the first wildcard is in the
+     * first path component; otherwise, the file or directory named by the
+     * path; never returns null
+     * @throws NullPointerException if path==null
+     */
+    public static File getBaseDirectory(String path) {
+        if (!isPattern(path)) {
+            return new File(path);
+        }
+        final String normalizedPath = path.replace(File.separatorChar, '/');
+        final int wildcardIndex = indexOfWildcard(normalizedPath);
+        final int slashIndex = normalizedPath.lastIndexOf('/', wildcardIndex);
+        if (slashIndex < 0) {
+            return new File(".");
+        } else if (slashIndex == 0) {
+            return new File("/");
+        }
+        return new File(path.substring(0, slashIndex));
+    }
+
+    private static int indexOfWildcard(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Expands an input path, giving each file to the given callback.
+     * <p>
+     * An input path that names a file is given to the callback as-is, even if
+     * it would be excluded by the include or exclude patterns. The order in
+     * which the files of a directory or glob pattern are given to the callback
+     * is unspecified. Once this method returns or throws, the callback is not
+     * invoked again.
+     *
+     * @param path the input path
+     * @param callback the object to which to give the files
+     * @throws VppException if the path does not exist, if the path is a glob
+     * pattern that matches no files, if searching a directory fails, or if
+     * the callback throws an exception
+     * @throws NullPointerException if path==null or callback==null
+     */
+    public void scan(String path, Callback callback) throws VppException {
+        if (callback == null) {
+            throw new NullPointerException("callback==null");
+        }
+
+        final Pattern pathPattern;
+        final int maxDepth;
+        final File baseDir;
+        if (isPattern(path)) {
+            baseDir = getBaseDirectory(path);
+            final String normalizedPath = path.replace(File.separatorChar, '/');
+            final int wildcardIndex = indexOfWildcard(normalizedPath);
+            final int prefixLength =
+                normalizedPath.lastIndexOf('/', wildcardIndex) + 1;
+            final String glob = normalizedPath.substring(prefixLength);
+            pathPattern = Pattern.compile(globToRegex(glob));
+            maxDepth = getMaxDepth(glob);
+        } else {
+            baseDir = new File(path);
+            pathPattern = null;
+            maxDepth = -1;
+        }
+
+        if (!baseDir.exists()) {
+            throw new VppException("File not found: " + baseDir.getPath());
+        } else if (pathPattern == null && !baseDir.isDirectory()) {
+            if (!baseDir.isFile()) {
+                throw new VppException("Not a file: " + path);
+            }
+            callback.inputFound(baseDir, baseDir.getName());
+            return;
+        } else if (!baseDir.isDirectory()) {
+            throw new VppException("Not a directory: " + baseDir.getPath());
+        }
+
+        final CountingCallback countingCallback =
+            new CountingCallback(callback);
+        final AtomicReference<VppException> error =
+            new AtomicReference<VppException>();
+        POOL.invoke(new DirectoryTask(baseDir.toPath(), "", 0, pathPattern,
+            maxDepth, countingCallback, error));
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        if (pathPattern != null && countingCallback.getCount() == 0) {
+            throw new VppException("no input files match: " + path);
+        }
+    }
+
+    /**
+     * Expands an input path, returning its files sorted by their relative
+     * paths.
+     *
+     * @param path the input path
+     * @return the files of the input path; never returns null
+     * @throws VppException if the path does not exist, if the path is a glob
+     * pattern that matches no files, or if searching a directory fails
+     * @throws NullPointerException if path==null
+     * @see #scan(String, Callback)
+     */
+    public List<File> list(String path) throws VppException {
+        final List<String[]> found = new ArrayList<String[]>();
+        final List<File> files = new ArrayList<File>();
+        this.scan(path, new Callback() {
+            public void inputFound(File file, String relativePath) {
+                synchronized (found) {
+                    found.add(new String[] { relativePath, file.getPath() });
+                }
+            }
+        });
+
+        Collections.sort(found, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        for (final String[] entry : found) {
+            files.add(new File(entry[1]));
+        }
+        return files;
+    }
+
+    /**
+     * Returns whether a file or directory is excluded by the exclude patterns,
+     * or a file is not included by the include patterns.
+     */
+    private boolean isFiltered(String relativePath, String name,
+            boolean directory) {
+        for (final Filter filter : this.excludeFilters) {
+            if (filter.matches(relativePath, name)) {
+                return true;
+            }
+        }
+        if (directory || this.includeFilters.length == 0) {
+            return false;
+        }
+        for (final Filter filter : this.includeFilters) {
+            if (filter.matches(relativePath, name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the greatest number of path components in a path that the given
+     * glob pattern can match, or -1 if it contains <code>**</code> and so can
+     * match paths with any number of components. Each "/" may separate two
+     * components, so the result may be greater than necessary for patterns
+     * with "/" in braces, but never less.
+     */
+    static int getMaxDepth(String glob) {
+        if (glob.contains("**")) {
+            return -1;
+        }
+        int depth = 1;
+        for (int i = 0; i < glob.length(); i++) {
+            if (glob.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Converts a glob pattern, as described by
+     * {@link VppOptions#addInputPath(String)}, to a regular expression.
+     *
+     * @param glob the glob pattern
+     * @return the equivalent regular expression
+     */
+    static String globToRegex(String glob) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = glob.length();
+        int braceDepth = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < length && glob.charAt(i + 1) == '/') {
+                        i++;
+                        sb.append("(?:.*/)?");
+                    } else {
+                        sb.append(".*");
+                    }
+                } else {
+                    sb.append("[^/]*");
+                }
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if (c == '[') {
+                final int end = glob.indexOf(']', i + 2);
+                if (end < 0) {
+                    sb.append("\\[");
+                } else {
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    sb.append('[').append(set.replace("\\", "\\\\"))
+                        .append(']');
+                    i = end;
+                }
+            } else if (c == '{') {
+                sb.append("(?:");
+                braceDepth++;
+            } else if (c == '}' && braceDepth > 0) {
+                sb.append(')');
+                braceDepth--;
+            } else if (c == ',' && braceDepth > 0) {
+                sb.append('|');
+            } else if (Character.isLetterOrDigit(c) || c == '/') {
+                sb.append(c);
+            } else {
+                sb.append('\\').append(c);
+            }
+        }
+        while (braceDepth > 0) {
+            sb.append(')');
+            braceDepth--;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Searches one directory, forking a task for each of its subdirectories.
+     * Tasks never throw; the first error is recorded and the remaining tasks
+     * stop searching, so that the search has finished when the root task
+     * completes.
+     */
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String relativeDir;
+        private final int depth;
+        private final Pattern pathPattern;
+        private final int maxDepth;
+        private final Callback callback;
+        private final AtomicReference<VppException> error;
+
+        /**
+         * @param depth the number of path components of relativeDir
+         * @param maxDepth the greatest number of path components of the
+         * relative path of a file that can match pathPattern; -1 if there is
+         * no limit
+         */
+        public DirectoryTask(Path dir, String relativeDir, int depth,
+                Pattern pathPattern, int maxDepth, Callback callback,
+                AtomicReference<VppException> error) {
+            this.dir = dir;
+            this.relativeDir = relativeDir;
+            this.depth = depth;
+            this.pathPattern = pathPattern;
+            this.maxDepth = maxDepth;
+            this.callback = callback;
+            this.error = error;
+        }
+
+        @Override
+        protected void compute() {
+            final List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            try {
+                final DirectoryStream<Path> entries =
+                    Files.newDirectoryStream(this.dir);
+                try {
+                    for (final Path entry : entries) {
+                        if (this.error.get() != null) {
+                            return;
+                        }
+                        this.visit(entry, subtasks);
+                    }
+                } finally {
+                    entries.close();
+                }
+            } catch (final IOException e) {
+                this.error.compareAndSet(null, new VppException(
+                    "unable to read directory: " + this.dir + " ("
+                        + e.getMessage() + ")"));
+                return;
+            } catch (final VppException e) {
+                this.error.compareAndSet(null, e);
+                return;
+            }
+            invokeAll(subtasks);
+        }
+
+        private void visit(Path entry, List<DirectoryTask> subtasks)
+                throws IOException, VppException {
+            final String name = entry.getFileName().toString();
+            final String relativePath = this.relativeDir + name;
+            final BasicFileAttributes attributes =
+                Files.readAttributes(entry, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+
+            if (attributes.isDirectory()) {
+                // the files of a subdirectory have depth + 2 components
+                if ((this.maxDepth < 0 || this.depth + 2 <= this.maxDepth)
+                    && !isFiltered(relativePath, name, true)
+                    && !isExcludedDirectory(entry)) {
+                    subtasks.add(new DirectoryTask(entry, relativePath + "/",
+                        this.depth + 1, this.pathPattern, this.maxDepth,
+                        this.callback, this.error));
+                }
+            } else if (attributes.isRegularFile()
+                || (attributes.isSymbolicLink()
+                    && Files.isRegularFile(entry))) {
+                if (this.pathPattern != null
+                    && !this.pathPattern.matcher(relativePath).matches()) {
+                    return;
+                } else if (isFiltered(relativePath, name, false)) {
+                    return;
+                }
+                this.callback.inputFound(entry.toFile(), relativePath);
+            }
+        }
+    }
+
+    private boolean isExcludedDirectory(Path dir) {
+        return this.excludedDirectory != null
+            && this.excludedDirectory.equals(dir.toAbsolutePath().normalize());
+    }
+
+    /**
+     * An include or exclude pattern, which matches relative paths if it
+     * contains a "/" and names otherwise.
+     */
+    private static class Filter {
+
+        private final Pattern pattern;
+        private final boolean matchPath;
+
+        public Filter(String glob) {
+            this.pattern = Pattern.compile(globToRegex(glob));
+            this.matchPath = (glob.indexOf('/') >= 0);
+        }
+
+        public boolean matches(String relativePath, String name) {
+            final String target = this.matchPath ? relativePath : name;
+            return this.pattern.matcher(target).matches();
+        }
+    }
+
+    /**
+     * Counts the files given to another callback.
+     */
+    private static class CountingCallback implements Callback {
+
+        private final Callback callback;
+        private int count;
+
+        public CountingCallback(Callback callback) {
+            this.callback = callback;
+        }
+
+        public void inputFound(File file, String relativePath)
+                throws VppException {
+            synchronized (this) {
+                this.count++;
+            }
+            this.callback.inputFound(file, relativePath);
+        }
+
+        public synchronized int getCount() {
+            return this.count;
+        }
+    }
+}
@@ -11,6 +11,17 @@ package vpp;
 
 import static vpp.util.Arrays.copyFailIfNull;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.nio.charset.Charset;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -24,6 +35,15 @@ import org.apache.commons.cli.ParseException;
 public class Main implements Runnable {
 
     private final String[] args;
+    private final File workingDirectory;
+    private boolean daemon;
+    private boolean connect;
+    private int daemonPort;
+    private String statsPath;
+    private String depfilePath;
+    private String dependencyGraphPath;
+    private boolean watch;
+    private String batchPath;
 
     /**
      * Creates a new instance of <code>Main</code>.
@@ -36,7 +56,25 @@ public class Main implements Runnable {
      * <code>args</code> is null
      */
     public Main(String[] args) {
+        this(args, null);
+    }
+
+    /**
+     * Creates a new instance of <code>Main</code> whose relative paths are
+     * resolved against the given directory instead of the current directory;
+     * this is used by the daemon to run the command lines of its clients.
+     * 
+     * @param args the command-line arguments to use
+     * @param workingDirectory the directory against which to resolve relative
+     * paths; may be null to leave relative paths relative to the current
+     * directory
+     * @throws NullPointerException if <code>args==null</code> or any element of
+     * <code>args</code> is null
+     */
+    Main(String[] args, File workingDirectory) {
         this.args = copyFailIfNull(args, "args");
+        this.workingDirectory = workingDirectory;
+        this.daemonPort = VppServer.DEFAULT_PORT;
     }
 
     /**
@@ -71,18 +109,212 @@ public class Main implements Runnable {
         return this.args;
     }
 
-    private VppOptions parseArgs() throws ParseException {
+    /**
+     * Returns whether the parsed command-line arguments requested that the
+     * application run as a daemon.
+     */
+    boolean isDaemon() {
+        return this.daemon;
+    }
+
+    /**
+     * Returns the path of the batch file given by the parsed command-line
+     * arguments, resolved against the working directory given to the
+     * constructor.
+     *
+     * @return the path of the batch file, "-" for standard input, or null if
+     * no batch file was given
+     */
+    String getBatchPath() {
+        return this.batchPath;
+    }
+
+    /**
+     * Parses the command-line arguments given to the constructor.
+     * 
+     * @return the options for {@link Vpp}, or null if help was requested and
+     * printed
+     * @throws ParseException if the arguments are invalid
+     */
+    VppOptions parseArgs() throws ParseException {
         final Option outputPathOption =
             new Option("o", "output-path", true,
-                "The output file or directory. If not specified then the "
+                "The output file. If not specified then the "
                     + "output is written to standard output.");
 
+        final Option outputDirectoryOption =
+            new Option("d", "output-directory", true,
+                "The output directory. If specified then each input file "
+                    + "is written to its own file in this directory; the "
+                    + "files of input directories and glob patterns are "
+                    + "written to the same relative paths beneath it.");
+
+        final Option stripSuffixOption =
+            new Option(null, "strip-suffix", true,
+                "The suffix to remove from the names of input files to "
+                    + "form the names of output files in the output "
+                    + "directory (e.g. \".vm\").");
+
+        final Option jobsOption =
+            new Option("j", "jobs", true,
+                "The maximum number of input files to process concurrently "
+                    + "(default: 1).");
+
+        final Option virtualThreadsOption =
+            new Option(null, "virtual-threads", false,
+                "Render each input file on a virtual thread of its own, with "
+                    + "at most -j of them rendering at once, so that -j can "
+                    + "be large when rendering many small files. Requires "
+                    + "Java 21 or later; ignored otherwise.");
+
+        final Option defineOption =
+            new Option("D", "define", true,
+                "Set a define, given as key=value, that templates can use as "
+                    + "$key; may be specified more than once. A define given "
+                    + "without \"=value\" is set to \"true\". Overrides the "
+                    + "defines of --define-file.");
+
+        final Option defineFileOption =
+            new Option(null, "define-file", true,
+                "Set the defines of the given file; may be specified more "
+                    + "than once, with later files overriding earlier ones. "
+                    + "A file whose name ends with \".json\" contains a JSON "
+                    + "object whose members keep their types, so numbers, "
+                    + "booleans, arrays and objects can be used by #foreach "
+                    + "and #if; any other file is a Java properties file.");
+
+        final Option includeOption =
+            new Option(null, "include", true,
+                "Only render the files of input directories and glob patterns "
+                    + "that match the given glob pattern; may be specified "
+                    + "more than once. Patterns without a \"/\" match file "
+                    + "names; others match paths relative to the searched "
+                    + "directory.");
+
+        final Option excludeOption =
+            new Option(null, "exclude", true,
+                "Skip the files and directories of input directories and glob "
+                    + "patterns that match the given glob pattern; may be "
+                    + "specified more than once.");
+
+        final Option incrementalOption =
+            new Option(null, "incremental", true,
+                "Perform an incremental build, using the given manifest file "
+                    + "to skip outputs whose inputs and defines have not "
+                    + "changed since the previous build.");
+
+        final Option keepUnchangedOption =
+            new Option(null, "keep-unchanged", false,
+                "Leave output files whose contents would not change "
+                    + "untouched, so that their modification times do not "
+                    + "trigger rebuilds of the files that depend on them.");
+
+        final Option inputEncodingOption =
+            new Option(null, "input-encoding", true,
+                "The character encoding of input files and of the templates "
+                    + "that they #parse and #include (default: "
+                    + VppOptions.DEFAULT_ENCODING + ").");
+
+        final Option outputEncodingOption =
+            new Option(null, "output-encoding", true,
+                "The character encoding of output files and standard output "
+                    + "(default: " + VppOptions.DEFAULT_ENCODING + ").");
+
+        final Option streamOption =
+            new Option(null, "stream", false,
+                "When reading standard input, render it in chunks as it is "
+                    + "read and flush each chunk's output immediately, rather "
+                    + "than reading all of it first. Chunks end at lines at "
+                    + "which no directive, comment or parenthesis is open.");
+
+        final Option streamDelimiterOption =
+            new Option(null, "stream-delimiter", true,
+                "Like --stream, but end chunks only at lines equal to the "
+                    + "given delimiter, which are not rendered.");
+
+        final Option statsOption =
+            new Option(null, "stats", true,
+                "Write per-file and total timings, byte counts and template "
+                    + "cache statistics as JSON to the given file, or to "
+                    + "standard error if \"-\". Invocations that write "
+                    + "statistics always run normally, even with --connect.");
+
+        final Option depfileOption =
+            new Option(null, "depfile", true,
+                "Write a make dependency file to the given file, with a rule "
+                    + "for each output file whose prerequisites are its input "
+                    + "files and the templates that they #parse or #include. "
+                    + "Written only if every output succeeds.");
+
+        final Option dependencyGraphOption =
+            new Option(null, "dependency-graph", true,
+                "Like --depfile, but write the dependencies of each output "
+                    + "file as JSON.");
+
+        final Option batchOption =
+            new Option(null, "batch", true,
+                "Run the jobs of the given batch file, or of standard input if "
+                    + "\"-\", concurrently with one template engine. Each "
+                    + "line is a JSON object with \"input\", \"output\" or "
+                    + "\"outputDirectory\", and \"defines\" members that "
+                    + "override the other options of this invocation; -j "
+                    + "sets the number of jobs run at once.");
+
+        final Option watchOption =
+            new Option(null, "watch", false,
+                "After rendering, keep running and render the input files "
+                    + "again whenever they, or the templates that they #parse "
+                    + "or #include, change. Requires input paths.");
+
+        final Option daemonOption =
+            new Option(null, "daemon", false,
+                "Run as a daemon that serves clients started with --connect, "
+                    + "keeping the template engine and caches warm between "
+                    + "requests. The daemon listens on the loopback "
+                    + "interface only, and only serves clients that can read "
+                    + "the token file that it writes to the home directory "
+                    + "of the current user.");
+
+        final Option connectOption =
+            new Option(null, "connect", false,
+                "Forward this invocation to a running daemon, or run it "
+                    + "normally if no daemon is running. Invocations that "
+                    + "read standard input, or that write statistics or "
+                    + "dependencies, always run normally.");
+
+        final Option daemonPortOption =
+            new Option(null, "daemon-port", true,
+                "The port on which the daemon listens (default: "
+                    + VppServer.DEFAULT_PORT + ").");
+
         final Option helpOption =
             new Option("h", "help", false,
                 "Print help for this application and exit");
 
         final Options options = new Options();
         options.addOption(outputPathOption);
+        options.addOption(outputDirectoryOption);
+        options.addOption(stripSuffixOption);
+        options.addOption(jobsOption);
+        options.addOption(virtualThreadsOption);
+        options.addOption(defineOption);
+        options.addOption(defineFileOption);
+        options.addOption(includeOption);
+        options.addOption(excludeOption);
+        options.addOption(incrementalOption);
+        options.addOption(keepUnchangedOption);
+        options.addOption(inputEncodingOption);
+        options.addOption(outputEncodingOption);
+        options.addOption(streamOption);
+        options.addOption(streamDelimiterOption);
+        options.addOption(statsOption);
+        options.addOption(depfileOption);
+        options.addOption(dependencyGraphOption);
+        options.addOption(batchOption);
+        options.addOption(watchOption);
+        options.addOption(daemonOption);
+        options.addOption(connectOption);
+        options.addOption(daemonPortOption);
         options.addOption(helpOption);
 
         final GnuParser parser = new GnuParser();
@@ -94,15 +326,80 @@ public class Main implements Runnable {
         final Option[] parsedOptions = parsedArgs.getOptions();
         for (final Option option : parsedOptions) {
             final String value = option.getValue();
-            if (option.getOpt().equals(helpOption.getOpt())) {
+            if (option.equals(helpOption)) {
                 printHelp = true;
-            } else if (option.getOpt().equals(outputPathOption.getOpt())) {
-                vppOptions.setDefine(value, "{post" + value + "}");
+            } else if (option.equals(outputPathOption)) {
+                vppOptions.setOutputPath(this.resolvePath(value));
+            } else if (option.equals(outputDirectoryOption)) {
+                vppOptions.setOutputDirectory(this.resolvePath(value));
+            } else if (option.equals(stripSuffixOption)) {
+                vppOptions.setStripSuffix(value);
+            } else if (option.equals(jobsOption)) {
+                vppOptions.setJobs(parsePositiveInt(option));
+            } else if (option.equals(virtualThreadsOption)) {
+                vppOptions.setVirtualThreads(true);
+            } else if (option.equals(defineOption)) {
+                final int index = value.indexOf('=');
+                if (index == 0) {
+                    throw new ParseException("invalid value for -D: " + value
+                        + " (must be key=value)");
+                } else if (index < 0) {
+                    vppOptions.setDefine(value, "true");
+                } else {
+                    vppOptions.setDefine(value.substring(0, index),
+                        value.substring(index + 1));
+                }
+            } else if (option.equals(defineFileOption)) {
+                vppOptions.addDefineFile(this.resolvePath(value));
+            } else if (option.equals(includeOption)) {
+                vppOptions.addIncludePattern(value);
+            } else if (option.equals(excludeOption)) {
+                vppOptions.addExcludePattern(value);
+            } else if (option.equals(incrementalOption)) {
+                vppOptions.setManifestPath(this.resolvePath(value));
+            } else if (option.equals(keepUnchangedOption)) {
+                vppOptions.setKeepUnchanged(true);
+            } else if (option.equals(inputEncodingOption)) {
+                vppOptions.setInputEncoding(parseEncoding(option));
+            } else if (option.equals(outputEncodingOption)) {
+                vppOptions.setOutputEncoding(parseEncoding(option));
+            } else if (option.equals(streamOption)) {
+                vppOptions.setStreaming(true);
+            } else if (option.equals(streamDelimiterOption)) {
+                vppOptions.setStreaming(true);
+                vppOptions.setStreamDelimiter(value);
+            } else if (option.equals(statsOption)) {
+                this.statsPath =
+                    value.equals("-") ? value : this.resolvePath(value);
+            } else if (option.equals(depfileOption)) {
+                this.depfilePath = this.resolvePath(value);
+            } else if (option.equals(dependencyGraphOption)) {
+                this.dependencyGraphPath = this.resolvePath(value);
+            } else if (option.equals(batchOption)) {
+                this.batchPath =
+                    value.equals("-") ? value : this.resolvePath(value);
+            } else if (option.equals(watchOption)) {
+                this.watch = true;
+            } else if (option.equals(daemonOption)) {
+                this.daemon = true;
+            } else if (option.equals(connectOption)) {
+                this.connect = true;
+            } else if (option.equals(daemonPortOption)) {
+                this.daemonPort = parsePositiveInt(option);
             }
         }
 
         for (final String leftoverArg : leftoverArgs) {
-            vppOptions.addInputPath(leftoverArg);
+            vppOptions.addInputPath(this.resolvePath(leftoverArg));
+        }
+
+        if (this.watch
+            && (this.daemon || this.statsPath != null || this.batchPath != null
+                || this.depfilePath != null
+                || this.dependencyGraphPath != null)) {
+            throw new ParseException("--watch may not be combined with "
+                + "--daemon, --stats, --batch, --depfile or "
+                + "--dependency-graph");
         }
 
         if (printHelp) {
@@ -114,6 +411,53 @@ public class Main implements Runnable {
         return vppOptions;
     }
 
+    /**
+     * Resolves a path given on the command line against the working directory
+     * given to the constructor, if any.
+     */
+    private String resolvePath(String path) {
+        if (this.workingDirectory == null) {
+            return path;
+        }
+        final File file = new File(path);
+        if (file.isAbsolute()) {
+            return path;
+        }
+        return new File(this.workingDirectory, path).getPath();
+    }
+
+    private static int parsePositiveInt(Option option) throws ParseException {
+        final String value = option.getValue();
+        int intValue;
+        try {
+            intValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            intValue = 0;
+        }
+        if (intValue < 1) {
+            throw new ParseException("invalid value for --"
+                + option.getLongOpt() + ": " + value
+                + " (must be a positive integer)");
+        }
+        return intValue;
+    }
+
+    private static String parseEncoding(Option option) throws ParseException {
+        final String value = option.getValue();
+        boolean supported;
+        try {
+            supported = Charset.isSupported(value);
+        } catch (final IllegalArgumentException e) {
+            supported = false;
+        }
+        if (!supported) {
+            throw new ParseException("invalid value for --"
+                + option.getLongOpt() + ": " + value
+                + " (unsupported character encoding)");
+        }
+        return value;
+    }
+
     /**
      * Runs the Velocity Preprocessor using the command-line arguments that were
      * given to the constructor. Upon completion, {@link #exit(int)} is invoked
@@ -124,17 +468,202 @@ public class Main implements Runnable {
         int exitCode = 0;
         try {
             final VppOptions vppOptions = this.parseArgs();
-            if (vppOptions != null) {
-
+            if (vppOptions == null) {
+                // help was printed
+            } else if (this.daemon) {
+                final VppServer server = new VppServer(this.daemonPort);
+                server.run();
+            } else if (this.watch) {
+                final VppWatcher watcher =
+                    new VppWatcher(vppOptions, System.err);
+                try {
+                    watcher.run();
+                } finally {
+                    closeWatcher(watcher);
+                }
+            } else {
+                // invocations that read standard input are never forwarded
+                final boolean readsStdin;
+                if (this.batchPath == null) {
+                    readsStdin = vppOptions.getNumInputPaths() == 0;
+                } else {
+                    readsStdin = this.batchPath.equals("-");
+                }
+                Integer forwardedExitCode = null;
+                if (this.connect && !readsStdin && !this.isReporting()) {
+                    forwardedExitCode = this.forwardToDaemon();
+                }
+                if (forwardedExitCode != null) {
+                    exitCode = forwardedExitCode.intValue();
+                } else {
+                    this.runVpp(vppOptions);
+                }
             }
         } catch (final ParseException e) {
             System.err.println("ERROR: " + e.getMessage());
             exitCode = 2;
+        } catch (final VppException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            exitCode = 1;
         }
 
         this.exit(exitCode);
     }
 
+    private static void closeWatcher(VppWatcher watcher) {
+        try {
+            watcher.close();
+        } catch (final IOException e) {
+            // nothing to do; the watcher is no longer used
+        }
+    }
+
+    /**
+     * Runs the Velocity Preprocessor in this Java Virtual Machine, writing its
+     * statistics if requested.
+     */
+    private void runVpp(VppOptions vppOptions) throws VppException {
+        final StatsReport report = new StatsReport();
+        try {
+            if (this.batchPath != null) {
+                final VppBatch batch = this.createBatch(vppOptions, null);
+                if (this.isReporting()) {
+                    batch.addListener(report);
+                }
+                batch.run();
+            } else {
+                final Vpp vpp = new Vpp(vppOptions);
+                if (this.isReporting()) {
+                    vpp.addListener(report);
+                }
+                vpp.run();
+            }
+        } finally {
+            final RunStats stats = report.getRunStats();
+            if (stats != null && this.statsPath != null) {
+                this.writeStats(stats);
+            }
+        }
+
+        // dependencies are written only if the run succeeds, like those of a
+        // compiler, so that a build tool never trusts those of a failed run
+        final RunStats stats = report.getRunStats();
+        if (stats != null) {
+            this.writeDependencies(stats);
+        }
+    }
+
+    /**
+     * Returns whether the statistics of the run are written to a file, either
+     * as statistics or as dependencies.
+     */
+    private boolean isReporting() {
+        return this.statsPath != null || this.depfilePath != null
+            || this.dependencyGraphPath != null;
+    }
+
+    /**
+     * Creates a batch whose base options are the given options and whose jobs
+     * are read from the batch file given on the command line.
+     *
+     * @param engine the engine for the batch to use; may be null
+     */
+    VppBatch createBatch(VppOptions vppOptions, VppEngine engine)
+            throws VppException {
+        final VppBatch batch = new VppBatch(vppOptions, engine);
+        if (this.batchPath.equals("-")) {
+            final Reader reader;
+            try {
+                reader = new InputStreamReader(System.in, "UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                // every Java platform is required to support UTF-8
+                throw new RuntimeException(e);
+            }
+            batch.readJobs(reader, "<stdin>", this.workingDirectory);
+        } else {
+            batch.readJobs(new File(this.batchPath), this.workingDirectory);
+        }
+        return batch;
+    }
+
+    private void writeStats(RunStats stats) throws VppException {
+        try {
+            if (this.statsPath.equals("-")) {
+                final Writer writer =
+                    new OutputStreamWriter(System.err, "UTF-8");
+                StatsReport.write(stats, writer);
+            } else {
+                final Writer writer =
+                    new OutputStreamWriter(new FileOutputStream(this.statsPath),
+                        "UTF-8");
+                try {
+                    StatsReport.write(stats, writer);
+                } finally {
+                    writer.close();
+                }
+            }
+        } catch (final IOException e) {
+            throw new VppException("unable to write statistics file: "
+                + this.statsPath + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private void writeDependencies(RunStats stats) throws VppException {
+        if (this.depfilePath != null) {
+            try {
+                final Writer writer =
+                    new OutputStreamWriter(
+                        new FileOutputStream(this.depfilePath), "UTF-8");
+                try {
+                    DependencyReport.writeMakefile(stats, writer);
+                } finally {
+                    writer.close();
+                }
+            } catch (final IOException e) {
+                throw new VppException("unable to write dependency file: "
+                    + this.depfilePath + " (" + e.getMessage() + ")");
+            }
+        }
+        if (this.dependencyGraphPath != null) {
+            try {
+                final Writer writer =
+                    new OutputStreamWriter(
+                        new FileOutputStream(this.dependencyGraphPath),
+                        "UTF-8");
+                try {
+                    DependencyReport.writeJson(stats, writer);
+                } finally {
+                    writer.close();
+                }
+            } catch (final IOException e) {
+                throw new VppException("unable to write dependency graph: "
+                    + this.dependencyGraphPath + " (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Forwards the command-line arguments to a running daemon.
+     * 
+     * @return the exit code returned by the daemon, or null if no daemon is
+     * running
+     * @throws VppException if communicating with the daemon fails
+     */
+    private Integer forwardToDaemon() throws VppException {
+        final File cwd = new File(System.getProperty("user.dir"));
+        final VppClient client = new VppClient(this.daemonPort);
+        try {
+            final int exitCode =
+                client.forward(this.args, cwd, System.out, System.err);
+            return Integer.valueOf(exitCode);
+        } catch (final ConnectException e) {
+            return null;
+        } catch (final IOException e) {
+            throw new VppException("communication with daemon failed ("
+                + e.getMessage() + ")");
+        }
+    }
+
     /**
      * The main entry point for the Velocity Preprocessor application. This
      * method simply creates a new instance of this class with the given String
@@ -0,0 +1,290 @@
+/*
+ * OutputStats.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * The statistics of one output of {@link Vpp}: an output file, or standard
+ * output, and the input files rendered to it.
+ * <p>
+ * The time spent on an output is divided into phases:
+ * <ul>
+ * <li>open: creating and opening the output file</li>
+ * <li>load: reading and decoding the input files</li>
+ * <li>parse: parsing the input files that were not in the template cache</li>
+ * <li>render: merging the templates, which includes writing the output to the
+ * file whenever the output buffer fills up</li>
+ * <li>flush: writing the rest of the output and replacing the output file</li>
+ * </ul>
+ * <p>
+ * Instances of this class are populated by {@link Vpp} while the output is
+ * rendered, and are not modified after they are given to a
+ * {@link VppListener}.
+ */
+public class OutputStats {
+
+    private final String outputPath;
+    private final String[] inputPaths;
+    private String[] dependencyPaths;
+    private boolean skipped;
+    private boolean unchanged;
+    private String error;
+    private long openNanos;
+    private long loadNanos;
+    private long parseNanos;
+    private long renderNanos;
+    private long flushNanos;
+    private long bytesIn;
+    private long bytesOut;
+    private int cacheHits;
+    private int cacheMisses;
+
+    /**
+     * Creates a new instance of <code>OutputStats</code>, with every statistic
+     * zero.
+     *
+     * @param outputPath the path of the output file, or null for standard
+     * output
+     * @param inputPaths the paths of the input files, with null elements for
+     * standard input; this array is copied
+     * @throws NullPointerException if inputPaths==null
+     */
+    OutputStats(String outputPath, String[] inputPaths) {
+        this.outputPath = outputPath;
+        this.inputPaths = inputPaths.clone();
+        this.dependencyPaths = new String[0];
+    }
+
+    /**
+     * Returns the path of the output file.
+     *
+     * @return the path of the output file, or null if the output was written
+     * to standard output
+     */
+    public String getOutputPath() {
+        return this.outputPath;
+    }
+
+    /**
+     * Returns the paths of the input files rendered to the output.
+     *
+     * @return a newly-created array of the paths of the input files, in order,
+     * in which null elements denote standard input; never returns null
+     */
+    public String[] getInputPaths() {
+        return this.inputPaths.clone();
+    }
+
+    /**
+     * Returns the paths of the templates loaded by the <code>#parse</code> and
+     * <code>#include</code> directives while rendering the output, relative to
+     * the engine's template root unless it is the current directory.
+     *
+     * @return a newly-created array of the paths of the templates, in the order
+     * in which they were first loaded; never returns null; empty if the output
+     * failed; if the output was skipped, those recorded by the manifest when
+     * it was last rendered
+     */
+    public String[] getDependencyPaths() {
+        return this.dependencyPaths.clone();
+    }
+
+    /**
+     * Returns whether the output was skipped because it was up to date.
+     *
+     * @return true if the output was skipped, in which case every statistic is
+     * zero
+     */
+    public boolean isSkipped() {
+        return this.skipped;
+    }
+
+    /**
+     * Returns whether the output file was left untouched because the rendered
+     * output was the same as its contents.
+     *
+     * @return true if the output file was left untouched
+     * @see VppOptions#setKeepUnchanged(boolean)
+     */
+    public boolean isUnchanged() {
+        return this.unchanged;
+    }
+
+    /**
+     * Returns the error that caused the output to fail.
+     *
+     * @return the message of the error, or null if the output succeeded
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    /**
+     * Returns the time spent creating and opening the output file.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getOpenNanos() {
+        return this.openNanos;
+    }
+
+    /**
+     * Returns the time spent reading and decoding the input files.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getLoadNanos() {
+        return this.loadNanos;
+    }
+
+    /**
+     * Returns the time spent parsing the input files that were not in the
+     * template cache.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getParseNanos() {
+        return this.parseNanos;
+    }
+
+    /**
+     * Returns the time spent merging the templates.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getRenderNanos() {
+        return this.renderNanos;
+    }
+
+    /**
+     * Returns the time spent writing the rest of the output and replacing the
+     * output file.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getFlushNanos() {
+        return this.flushNanos;
+    }
+
+    /**
+     * Returns the total time spent on the output, which is the sum of the
+     * times of the phases.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return this.openNanos + this.loadNanos + this.parseNanos
+            + this.renderNanos + this.flushNanos;
+    }
+
+    /**
+     * Returns the number of bytes read from the input files.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesIn() {
+        return this.bytesIn;
+    }
+
+    /**
+     * Returns the number of bytes written to the output.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesOut() {
+        return this.bytesOut;
+    }
+
+    /**
+     * Returns the number of input files that were found in the template cache.
+     *
+     * @return the number of template cache hits
+     */
+    public int getCacheHits() {
+        return this.cacheHits;
+    }
+
+    /**
+     * Returns the number of input files that were not found in the template
+     * cache and were parsed.
+     *
+     * @return the number of template cache misses
+     */
+    public int getCacheMisses() {
+        return this.cacheMisses;
+    }
+
+    void setSkipped() {
+        this.skipped = true;
+    }
+
+    void setUnchanged() {
+        this.unchanged = true;
+    }
+
+    void setDependencies(List<File> files) {
+        final String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = files.get(i).getPath();
+        }
+        this.dependencyPaths = paths;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void addOpenNanos(long nanos) {
+        this.openNanos += nanos;
+    }
+
+    void addLoad(long nanos, long numBytes) {
+        this.loadNanos += nanos;
+        this.bytesIn += numBytes;
+    }
+
+    void addParse(long nanos, boolean cacheHit) {
+        this.parseNanos += nanos;
+        if (cacheHit) {
+            this.cacheHits++;
+        } else {
+            this.cacheMisses++;
+        }
+    }
+
+    void addRenderNanos(long nanos) {
+        this.renderNanos += nanos;
+    }
+
+    void addFlushNanos(long nanos) {
+        this.flushNanos += nanos;
+    }
+
+    void setBytesOut(long numBytes) {
+        this.bytesOut = numBytes;
+    }
+
+    /**
+     * Adds the statistics of another output to those of this object.
+     */
+    void add(OutputStats other) {
+        this.openNanos += other.openNanos;
+        this.loadNanos += other.loadNanos;
+        this.parseNanos += other.parseNanos;
+        this.renderNanos += other.renderNanos;
+        this.flushNanos += other.flushNanos;
+        this.bytesIn += other.bytesIn;
+        this.bytesOut += other.bytesOut;
+        this.cacheHits += other.cacheHits;
+        this.cacheMisses += other.cacheMisses;
+    }
+}
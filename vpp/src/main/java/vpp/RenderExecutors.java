@@ -0,0 +1,214 @@
+/*
+ * RenderExecutors.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates the executors that render input files and batch jobs concurrently.
+ * <p>
+ * By default, an executor has a fixed pool of platform threads, one per job.
+ * Rendering many small files is dominated by blocking while opening, reading,
+ * writing and closing them rather than by computation, so an executor may
+ * instead run each task on its own virtual thread, with the number of tasks
+ * that run at once bounded by a semaphore; the tasks that are waiting for a
+ * permit are parked virtual threads, which are cheap, so the number of jobs
+ * can be large enough to keep the disk busy without sizing a thread pool.
+ * Virtual threads are only available when running on Java 21 or later; they
+ * are looked up reflectively so that this class also works on earlier
+ * versions, where platform threads are used instead.
+ */
+final class RenderExecutors {
+
+    /**
+     * The method <code>Executors.newVirtualThreadPerTaskExecutor()</code>;
+     * null if virtual threads are not supported.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR =
+        findVirtualThreadExecutorFactory();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private RenderExecutors() {
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether virtual threads are supported by the running Java
+     * virtual machine.
+     *
+     * @return true if virtual threads are supported, false otherwise
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that runs at most the given number of tasks at once.
+     *
+     * @param numJobs the maximum number of tasks to run at once
+     * @param virtualThreads true to run each task on its own virtual thread if
+     * virtual threads are supported, false to use a fixed pool of platform
+     * threads
+     * @return a new executor, which must be shut down by the caller; never
+     * returns null
+     * @throws IllegalArgumentException if numJobs&lt;1
+     */
+    public static ExecutorService newExecutor(int numJobs,
+            boolean virtualThreads) {
+        if (numJobs < 1) {
+            throw new IllegalArgumentException("numJobs<1: " + numJobs);
+        }
+        if (virtualThreads && NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            return new BoundedExecutor(newVirtualThreadExecutor(), numJobs);
+        }
+        return Executors.newFixedThreadPool(numJobs);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (final IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (final InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * An executor that runs every task on a thread of its own, which waits for
+     * a permit from a semaphore before running the task.
+     */
+    static class BoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final Set<BoundedTask> waitingTasks;
+
+        public BoundedExecutor(ExecutorService executor, int numPermits) {
+            this.executor = executor;
+            this.permits = new Semaphore(numPermits);
+            this.waitingTasks = Collections.newSetFromMap(
+                new ConcurrentHashMap<BoundedTask, Boolean>());
+        }
+
+        public void execute(Runnable command) {
+            final BoundedTask task = new BoundedTask(command);
+            this.waitingTasks.add(task);
+            try {
+                this.executor.execute(task);
+            } catch (final RuntimeException e) {
+                this.waitingTasks.remove(task);
+                throw e;
+            }
+        }
+
+        public void shutdown() {
+            this.executor.shutdown();
+        }
+
+        /**
+         * Attempts to stop all running tasks and returns the submitted tasks
+         * that had not started running, which will never be run.
+         */
+        public List<Runnable> shutdownNow() {
+            this.executor.shutdown();
+            final List<Runnable> commands = new ArrayList<Runnable>();
+            for (final BoundedTask task : this.waitingTasks) {
+                if (task.claim()) {
+                    this.waitingTasks.remove(task);
+                    commands.add(task.command);
+                }
+            }
+            this.executor.shutdownNow();
+            return commands;
+        }
+
+        public boolean isShutdown() {
+            return this.executor.isShutdown();
+        }
+
+        public boolean isTerminated() {
+            return this.executor.isTerminated();
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return this.executor.awaitTermination(timeout, unit);
+        }
+
+        /**
+         * A submitted task, which is claimed either by the thread that runs it
+         * once a permit is acquired or by {@link #shutdownNow()}, whichever is
+         * first.
+         */
+        private class BoundedTask implements Runnable {
+
+            public final Runnable command;
+            private final AtomicBoolean claimed;
+
+            public BoundedTask(Runnable command) {
+                this.command = command;
+                this.claimed = new AtomicBoolean();
+            }
+
+            public boolean claim() {
+                return this.claimed.compareAndSet(false, true);
+            }
+
+            public void run() {
+                try {
+                    BoundedExecutor.this.permits.acquire();
+                } catch (final InterruptedException e) {
+                    // the executor was shut down before the task started;
+                    // unless shutdownNow() returned it, cancel the task so that
+                    // nobody waits for it forever
+                    if (this.claim()) {
+                        BoundedExecutor.this.waitingTasks.remove(this);
+                        if (this.command instanceof Future) {
+                            ((Future<?>) this.command).cancel(false);
+                        }
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    if (this.claim()) {
+                        BoundedExecutor.this.waitingTasks.remove(this);
+                        this.command.run();
+                    }
+                } finally {
+                    BoundedExecutor.this.permits.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * RunStats.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The statistics of one invocation of {@link Vpp#run()}: the statistics of
+ * each output and their totals.
+ * <p>
+ * When input files are processed concurrently the sum of the phase times
+ * exceeds the wall-clock time of the run.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class RunStats {
+
+    private final long wallNanos;
+    private final List<OutputStats> outputs;
+    private final OutputStats totals;
+    private int numSkipped;
+    private int numUnchanged;
+    private int numFailed;
+    private int numInputs;
+
+    /**
+     * Creates a new instance of <code>RunStats</code>.
+     *
+     * @param wallNanos the wall-clock time of the run, in nanoseconds
+     * @param outputs the statistics of each output, in the order in which the
+     * outputs were specified; this list is copied
+     * @throws NullPointerException if outputs==null
+     */
+    RunStats(long wallNanos, List<OutputStats> outputs) {
+        this.wallNanos = wallNanos;
+        this.outputs =
+            Collections.unmodifiableList(new ArrayList<OutputStats>(outputs));
+
+        this.totals = new OutputStats(null, new String[0]);
+        for (final OutputStats output : this.outputs) {
+            if (output.isSkipped()) {
+                this.numSkipped++;
+            }
+            if (output.isUnchanged()) {
+                this.numUnchanged++;
+            }
+            if (output.getError() != null) {
+                this.numFailed++;
+            }
+            this.numInputs += output.getInputPaths().length;
+            this.totals.add(output);
+        }
+    }
+
+    /**
+     * Returns the wall-clock time of the run.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getWallNanos() {
+        return this.wallNanos;
+    }
+
+    /**
+     * Returns the statistics of each output.
+     *
+     * @return an unmodifiable list of the statistics of each output, in the
+     * order in which the outputs were specified; never returns null
+     */
+    public List<OutputStats> getOutputs() {
+        return this.outputs;
+    }
+
+    /**
+     * Returns the number of outputs that were skipped because they were up to
+     * date.
+     *
+     * @return the number of skipped outputs
+     */
+    public int getNumSkipped() {
+        return this.numSkipped;
+    }
+
+    /**
+     * Returns the number of output files that were left untouched because
+     * their contents would not have changed.
+     *
+     * @return the number of unchanged outputs
+     */
+    public int getNumUnchanged() {
+        return this.numUnchanged;
+    }
+
+    /**
+     * Returns the number of outputs that failed.
+     *
+     * @return the number of failed outputs
+     */
+    public int getNumFailed() {
+        return this.numFailed;
+    }
+
+    /**
+     * Returns the number of input files of all outputs.
+     *
+     * @return the number of input files
+     */
+    public int getNumInputs() {
+        return this.numInputs;
+    }
+
+    /**
+     * Returns the total time spent creating and opening output files by all
+     * outputs.
+     *
+     * @return the time, in nanoseconds
+     * @see OutputStats#getOpenNanos()
+     */
+    public long getOpenNanos() {
+        return this.totals.getOpenNanos();
+    }
+
+    /**
+     * Returns the total time spent reading and decoding input files by all
+     * outputs.
+     *
+     * @return the time, in nanoseconds
+     * @see OutputStats#getLoadNanos()
+     */
+    public long getLoadNanos() {
+        return this.totals.getLoadNanos();
+    }
+
+    /**
+     * Returns the total time spent parsing input files by all outputs.
+     *
+     * @return the time, in nanoseconds
+     * @see OutputStats#getParseNanos()
+     */
+    public long getParseNanos() {
+        return this.totals.getParseNanos();
+    }
+
+    /**
+     * Returns the total time spent merging templates by all outputs.
+     *
+     * @return the time, in nanoseconds
+     * @see OutputStats#getRenderNanos()
+     */
+    public long getRenderNanos() {
+        return this.totals.getRenderNanos();
+    }
+
+    /**
+     * Returns the total time spent flushing and replacing output files by all
+     * outputs.
+     *
+     * @return the time, in nanoseconds
+     * @see OutputStats#getFlushNanos()
+     */
+    public long getFlushNanos() {
+        return this.totals.getFlushNanos();
+    }
+
+    /**
+     * Returns the total number of bytes read from input files.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesIn() {
+        return this.totals.getBytesIn();
+    }
+
+    /**
+     * Returns the total number of bytes written to outputs.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesOut() {
+        return this.totals.getBytesOut();
+    }
+
+    /**
+     * Returns the total number of input files that were found in the template
+     * cache.
+     *
+     * @return the number of template cache hits
+     */
+    public int getCacheHits() {
+        return this.totals.getCacheHits();
+    }
+
+    /**
+     * Returns the total number of input files that were not found in the
+     * template cache and were parsed.
+     *
+     * @return the number of template cache misses
+     */
+    public int getCacheMisses() {
+        return this.totals.getCacheMisses();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * StatsReport.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import vpp.util.JsonWriter;
+
+/**
+ * Writes the statistics of a run as JSON, for the <code>--stats</code>
+ * command-line option.
+ * <p>
+ * The report is a single object with the totals of the run, a "phases" object
+ * with the total nanoseconds spent in each phase, and a "files" array with the
+ * same information for each output, in the order in which the outputs were
+ * specified. Times are in nanoseconds and sizes are in bytes.
+ */
+class StatsReport implements VppListener {
+
+    /**
+     * The version of the format of the report, which is incremented whenever
+     * a field is removed or its meaning changes.
+     */
+    public static final int VERSION = 1;
+
+    private RunStats runStats;
+
+    public void outputFinished(OutputStats stats) {
+        // the outputs are reported when the run finishes
+    }
+
+    public synchronized void runFinished(RunStats stats) {
+        this.runStats = stats;
+    }
+
+    /**
+     * Returns the statistics of the most recent run.
+     *
+     * @return the statistics of the most recent run, or null if no run has
+     * finished
+     */
+    public synchronized RunStats getRunStats() {
+        return this.runStats;
+    }
+
+    /**
+     * Writes the statistics of a run as JSON, followed by a newline.
+     *
+     * @param stats the statistics to write
+     * @param writer the writer to which to write; it is flushed but not closed
+     * @throws IOException if writing fails
+     */
+    public static void write(RunStats stats, Writer writer) throws IOException {
+        final JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("version").value(VERSION);
+        json.name("wallNanos").value(stats.getWallNanos());
+        json.name("outputs").value(stats.getOutputs().size());
+        json.name("skipped").value(stats.getNumSkipped());
+        json.name("failed").value(stats.getNumFailed());
+        json.name("inputs").value(stats.getNumInputs());
+        json.name("bytesIn").value(stats.getBytesIn());
+        json.name("bytesOut").value(stats.getBytesOut());
+        json.name("cacheHits").value(stats.getCacheHits());
+        json.name("cacheMisses").value(stats.getCacheMisses());
+        json.name("unchanged").value(stats.getNumUnchanged());
+        json.name("phases").beginObject();
+        json.name("openNanos").value(stats.getOpenNanos());
+        json.name("loadNanos").value(stats.getLoadNanos());
+        json.name("parseNanos").value(stats.getParseNanos());
+        json.name("renderNanos").value(stats.getRenderNanos());
+        json.name("flushNanos").value(stats.getFlushNanos());
+        json.endObject();
+
+        json.name("files").beginArray();
+        for (final OutputStats output : stats.getOutputs()) {
+            json.beginObject();
+            json.name("output").value(output.getOutputPath());
+            json.name("inputs").beginArray();
+            for (final String inputPath : output.getInputPaths()) {
+                json.value(inputPath);
+            }
+            json.endArray();
+            json.name("dependencies").beginArray();
+            for (final String dependencyPath : output.getDependencyPaths()) {
+                json.value(dependencyPath);
+            }
+            json.endArray();
+            json.name("skipped").value(output.isSkipped());
+            json.name("unchanged").value(output.isUnchanged());
+            json.name("error").value(output.getError());
+            json.name("totalNanos").value(output.getTotalNanos());
+            json.name("openNanos").value(output.getOpenNanos());
+            json.name("loadNanos").value(output.getLoadNanos());
+            json.name("parseNanos").value(output.getParseNanos());
+            json.name("renderNanos").value(output.getRenderNanos());
+            json.name("flushNanos").value(output.getFlushNanos());
+            json.name("bytesIn").value(output.getBytesIn());
+            json.name("bytesOut").value(output.getBytesOut());
+            json.name("cacheHits").value(output.getCacheHits());
+            json.name("cacheMisses").value(output.getCacheMisses());
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        writer.write('\n');
+        json.flush();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * StreamChunker.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits template text that is read from a stream into chunks that can each be
+ * rendered as a template of their own, so that the output of a long stream can
+ * be produced while it is still being read.
+ * <p>
+ * Chunks always end at the end of a line. Without a delimiter, a chunk only
+ * ends at a line at which every block directive (<code>#if</code>,
+ * <code>#foreach</code>, <code>#macro</code>, <code>#define</code> and block
+ * macro calls) has been closed by <code>#end</code>, every directive's or
+ * method call's parentheses have been closed, and no <code>#* *#</code>
+ * comment or <code>#[[ ]]#</code> unparsed block is open. Such a chunk ends
+ * at the first safe line after it reaches the target length, or earlier if
+ * no more of the stream can be read without blocking, so that the output of
+ * an interactive pipeline is not delayed. A chunk that never reaches a safe
+ * line, such as a <code>#foreach</code> that spans the whole stream, is as
+ * long as it needs to be.
+ * <p>
+ * With a delimiter, chunks end only at lines whose text, without their line
+ * terminators, equals the delimiter; the delimiter lines themselves are
+ * discarded.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+class StreamChunker {
+
+    /**
+     * The default length, in characters, after which a chunk ends at the next
+     * safe line.
+     */
+    public static final int DEFAULT_TARGET_LENGTH = 64 * 1024;
+
+    private final Reader reader;
+    private final String delimiter;
+    private final int targetLength;
+    private final char[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private int lineNumber;
+    private int chunkLineNumber;
+
+    private int depth;
+    private int parenDepth;
+    private char quote;
+    private boolean inBlockComment;
+    private boolean inUnparsed;
+
+    /**
+     * Creates a new instance of <code>StreamChunker</code>.
+     *
+     * @param reader the reader of the template text
+     * @param delimiter the line at which chunks end; may be null to end chunks
+     * at safe lines instead
+     * @param targetLength the length, in characters, after which a chunk ends
+     * at the next safe line; ignored if a delimiter is given
+     * @throws NullPointerException if reader==null
+     */
+    public StreamChunker(Reader reader, String delimiter, int targetLength) {
+        if (reader == null) {
+            throw new NullPointerException("reader==null");
+        }
+        this.reader = reader;
+        this.delimiter = delimiter;
+        this.targetLength = targetLength;
+        this.buffer = new char[8192];
+        this.lineNumber = 1;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return the text of the next chunk, or null if the end of the stream was
+     * reached; never returns an empty string
+     * @throws IOException if reading from the stream fails
+     */
+    public String nextChunk() throws IOException {
+        final StringBuilder chunk = new StringBuilder();
+        final StringBuilder line = new StringBuilder();
+        this.chunkLineNumber = this.lineNumber;
+        while (true) {
+            line.setLength(0);
+            if (!this.readLine(line)) {
+                break;
+            }
+            this.lineNumber++;
+
+            if (this.delimiter != null) {
+                if (isDelimiter(line, this.delimiter)) {
+                    if (chunk.length() > 0) {
+                        return chunk.toString();
+                    }
+                    this.chunkLineNumber = this.lineNumber;
+                    continue;
+                }
+                chunk.append(line);
+            } else {
+                chunk.append(line);
+                this.scan(line);
+                if (this.isSafe()
+                    && (chunk.length() >= this.targetLength || !this.ready())) {
+                    return chunk.toString();
+                }
+            }
+        }
+        return (chunk.length() == 0) ? null : chunk.toString();
+    }
+
+    /**
+     * Returns the number of the line of the stream at which the chunk most
+     * recently returned by {@link #nextChunk()} starts.
+     *
+     * @return the 1-based line number at which the most recent chunk starts
+     */
+    public int getChunkLineNumber() {
+        return this.chunkLineNumber;
+    }
+
+    private static boolean isDelimiter(CharSequence line, String delimiter) {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end != delimiter.length()) {
+            return false;
+        }
+        for (int i = 0; i < end; i++) {
+            if (line.charAt(i) != delimiter.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a chunk may end after the lines scanned so far.
+     */
+    private boolean isSafe() {
+        return this.depth == 0 && this.parenDepth == 0
+            && !this.inBlockComment && !this.inUnparsed;
+    }
+
+    /**
+     * Updates the state of the open directives, comments and parentheses with
+     * the given line.
+     */
+    private void scan(CharSequence line) {
+        final int length = line.length();
+        int i = 0;
+        while (i < length) {
+            final char c = line.charAt(i);
+            if (this.inBlockComment) {
+                if (c == '*' && charAt(line, i + 1) == '#') {
+                    this.inBlockComment = false;
+                    i++;
+                }
+            } else if (this.inUnparsed) {
+                if (c == ']' && charAt(line, i + 1) == ']'
+                    && charAt(line, i + 2) == '#') {
+                    this.inUnparsed = false;
+                    i += 2;
+                }
+            } else if (this.parenDepth > 0) {
+                if (this.quote != 0) {
+                    if (c == this.quote) {
+                        this.quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    this.quote = c;
+                } else if (c == '(') {
+                    this.parenDepth++;
+                } else if (c == ')') {
+                    this.parenDepth--;
+                }
+            } else if (c == '\\' && charAt(line, i + 1) == '#') {
+                // an escaped directive is text
+                i++;
+            } else if (c == '#') {
+                final char next = charAt(line, i + 1);
+                if (next == '#') {
+                    // the rest of the line is a comment
+                    return;
+                } else if (next == '*') {
+                    this.inBlockComment = true;
+                    i++;
+                } else if (next == '[' && charAt(line, i + 2) == '[') {
+                    this.inUnparsed = true;
+                    i += 2;
+                } else {
+                    i = this.scanDirective(line, i + 1) - 1;
+                }
+            } else if (c == '$') {
+                i = this.scanReference(line, i + 1) - 1;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Scans the name and opening parenthesis of a directive whose name starts
+     * at the given index, returning the index of the first character after
+     * them.
+     */
+    private int scanDirective(CharSequence line, int start) {
+        int i = start;
+        final boolean braced = (charAt(line, i) == '{');
+        if (braced) {
+            i++;
+        }
+        final boolean blockMacro = (charAt(line, i) == '@');
+        if (blockMacro) {
+            i++;
+        }
+        final int nameStart = i;
+        while (isIdentifierChar(charAt(line, i))) {
+            i++;
+        }
+        if (i == nameStart) {
+            return start;
+        }
+        final String name = line.subSequence(nameStart, i).toString();
+        if (braced) {
+            if (charAt(line, i) != '}') {
+                return start;
+            }
+            i++;
+        }
+
+        if (!blockMacro && name.equals("end")) {
+            if (this.depth > 0) {
+                this.depth--;
+            }
+            return i;
+        }
+
+        int parenIndex = i;
+        while (charAt(line, parenIndex) == ' '
+            || charAt(line, parenIndex) == '\t') {
+            parenIndex++;
+        }
+        if (charAt(line, parenIndex) != '(') {
+            // not a directive or macro call, such as "#define X" in C code
+            return i;
+        }
+        if (blockMacro || name.equals("if") || name.equals("foreach")
+            || name.equals("macro") || name.equals("define")) {
+            this.depth++;
+        }
+        this.parenDepth = 1;
+        return parenIndex + 1;
+    }
+
+    /**
+     * Scans a reference that starts at the given index, just after its "$",
+     * returning the index of the first character after it; a method call whose
+     * arguments are not closed on the same line opens parentheses.
+     */
+    private int scanReference(CharSequence line, int start) {
+        int i = start;
+        if (charAt(line, i) == '!') {
+            i++;
+        }
+        if (charAt(line, i) == '{') {
+            i++;
+        }
+        while (isIdentifierChar(charAt(line, i))) {
+            i++;
+            if (charAt(line, i) == '.'
+                && isIdentifierChar(charAt(line, i + 1))) {
+                i++;
+            }
+        }
+        if (i > start && charAt(line, i) == '(') {
+            this.parenDepth = 1;
+            return i + 1;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+            || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    /**
+     * Returns the character at the given index, or 0 if the index is past the
+     * end of the given text.
+     */
+    private static char charAt(CharSequence text, int index) {
+        return (index < text.length()) ? text.charAt(index) : 0;
+    }
+
+    /**
+     * Reads a line, including its line terminator, into the given builder.
+     *
+     * @return false if the end of the stream was reached before any
+     * characters were read
+     */
+    private boolean readLine(StringBuilder line) throws IOException {
+        while (true) {
+            if (this.pos == this.limit) {
+                if (this.eof || !this.fill()) {
+                    return line.length() > 0;
+                }
+            }
+            for (int i = this.pos; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    line.append(this.buffer, this.pos, i + 1 - this.pos);
+                    this.pos = i + 1;
+                    return true;
+                }
+            }
+            line.append(this.buffer, this.pos, this.limit - this.pos);
+            this.pos = this.limit;
+        }
+    }
+
+    /**
+     * Reads more characters into the buffer, which must be empty.
+     *
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        final int numRead = this.reader.read(this.buffer);
+        if (numRead < 0) {
+            this.eof = true;
+            return false;
+        }
+        this.pos = 0;
+        this.limit = numRead;
+        return true;
+    }
+
+    /**
+     * Returns whether more characters can be read without blocking.
+     */
+    private boolean ready() throws IOException {
+        return this.pos < this.limit || (!this.eof && this.reader.ready());
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * TemplateCache.java
+ * By: Denver Coneybeare
+ * Sept 25, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+/**
+ * A cache of parsed templates, so that rendering the same template text more
+ * than once only parses it once.
+ * <p>
+ * Templates are keyed on a digest of their text (see
+ * {@link TemplateSource#getKey()}) plus the configuration of the engine that
+ * parsed them; the name of the template is not part of the key. Therefore,
+ * a template that is found in the cache has the name with which it was first
+ * parsed, which may be that of another file with the same text; callers that
+ * report errors should name the file themselves rather than rely on the name
+ * of the template.
+ * When the cache is full, the least-recently-used templates are evicted. The
+ * cache is bounded both by the number of templates and by the total length of
+ * their text.
+ * <p>
+ * Every public method of this class is thread-safe; the parsing of templates
+ * is done without holding any locks. If a thread requests a template that
+ * another thread is already parsing then it waits for that parse to finish
+ * rather than parsing the template too.
+ */
+public class TemplateCache {
+
+    /**
+     * The default maximum number of templates to cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * The default maximum total length, in characters, of the text of the
+     * cached templates.
+     */
+    public static final long DEFAULT_MAX_CHARS = 32L * 1024L * 1024L;
+
+    private final int maxEntries;
+    private final long maxChars;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, Parse> parses;
+    private long numChars;
+    private long numHits;
+    private long numMisses;
+
+    /**
+     * Creates a new instance of <code>TemplateCache</code> with the default
+     * limits.
+     *
+     * @see #DEFAULT_MAX_ENTRIES
+     * @see #DEFAULT_MAX_CHARS
+     */
+    public TemplateCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * Creates a new instance of <code>TemplateCache</code>.
+     *
+     * @param maxEntries the maximum number of templates to cache; may be zero
+     * to disable caching
+     * @param maxChars the maximum total length, in characters, of the text of
+     * the cached templates; a template whose text is longer than this is never
+     * cached
+     * @throws IllegalArgumentException if maxEntries&lt;0 or maxChars&lt;0
+     */
+    public TemplateCache(int maxEntries, long maxChars) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries<0: " + maxEntries);
+        } else if (maxChars < 0) {
+            throw new IllegalArgumentException("maxChars<0: " + maxChars);
+        }
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.parses = new HashMap<String, Parse>();
+    }
+
+    /**
+     * Returns the maximum number of templates to cache.
+     *
+     * @return the maximum number of templates to cache
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * Returns the maximum total length, in characters, of the text of the
+     * cached templates.
+     *
+     * @return the maximum total length of the text of the cached templates
+     */
+    public long getMaxChars() {
+        return this.maxChars;
+    }
+
+    /**
+     * Returns the number of templates currently cached.
+     *
+     * @return the number of templates currently cached
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the number of times that {@link #getTemplate} found the requested
+     * template in this cache.
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getNumHits() {
+        return this.numHits;
+    }
+
+    /**
+     * Returns the number of times that {@link #getTemplate} did not find the
+     * requested template in this cache and had to parse it.
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getNumMisses() {
+        return this.numMisses;
+    }
+
+    /**
+     * Removes all templates from this cache.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.numChars = 0;
+    }
+
+    /**
+     * Returns the parsed template for the given template text, parsing it and
+     * adding it to this cache if it is not already cached.
+     *
+     * @param rsvc the engine to use to parse the template, if necessary
+     * @param configKey a string that uniquely identifies the configuration of
+     * the given engine; templates parsed by engines with different
+     * configurations are never shared
+     * @param name the name of the template to use if it is parsed, which is
+     * used in error messages; a cached template keeps the name with which it
+     * was parsed, which may differ from this one
+     * @param text the text of the template
+     * @return the parsed template, which is fully initialized and may be merged
+     * concurrently by multiple threads; never returns null
+     * @throws ParseErrorException if the template fails to parse
+     * @throws NullPointerException if any argument is null
+     */
+    public Template getTemplate(RuntimeServices rsvc, String configKey,
+            String name, String text) throws ParseErrorException {
+        return this.getTemplate(rsvc, configKey, name, TemplateSource
+            .fromString(text));
+    }
+
+    /**
+     * Returns the parsed template for the given template source, parsing it and
+     * adding it to this cache if it is not already cached.
+     *
+     * @param rsvc the engine to use to parse the template, if necessary
+     * @param configKey a string that uniquely identifies the configuration of
+     * the given engine; templates parsed by engines with different
+     * configurations are never shared
+     * @param name the name of the template to use if it is parsed, which is
+     * used in error messages; a cached template keeps the name with which it
+     * was parsed, which may differ from this one
+     * @param source the text of the template
+     * @return the parsed template, which is fully initialized and may be merged
+     * concurrently by multiple threads; never returns null
+     * @throws ParseErrorException if the template fails to parse
+     * @throws NullPointerException if any argument is null
+     */
+    public Template getTemplate(RuntimeServices rsvc, String configKey,
+            String name, TemplateSource source) throws ParseErrorException {
+        final String key = source.getKey() + ":" + configKey;
+        final Parse parse = new Parse();
+        synchronized (this) {
+            while (true) {
+                final Template template = this.lookup(key);
+                if (template != null) {
+                    return template;
+                }
+                final Parse pending = this.parses.get(key);
+                if (pending == null) {
+                    this.parses.put(key, parse);
+                    break;
+                }
+                try {
+                    while (!pending.done) {
+                        this.wait();
+                    }
+                } catch (final InterruptedException e) {
+                    // parse the template without waiting any longer
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                // the template is handed over even if it was too long to be
+                // cached, so that the waiting threads do not parse it again
+                if (pending.template != null) {
+                    this.numHits++;
+                    return pending.template;
+                }
+            }
+            this.numMisses++;
+        }
+
+        final int length = source.length();
+        Template template = null;
+        try {
+            template = parse(rsvc, name, source);
+        } finally {
+            synchronized (this) {
+                if (template != null && this.maxEntries > 0
+                    && length <= this.maxChars) {
+                    final Entry oldEntry =
+                        this.entries.put(key, new Entry(template, length));
+                    if (oldEntry != null) {
+                        this.numChars -= oldEntry.numChars;
+                    }
+                    this.numChars += length;
+                    this.evict();
+                }
+                if (this.parses.get(key) == parse) {
+                    this.parses.remove(key);
+                }
+                parse.template = template;
+                parse.done = true;
+                this.notifyAll();
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * Returns the parsed template for the given template source if it is
+     * cached. Unlike {@link #getTemplate}, a template that is not cached is
+     * neither parsed nor counted as a miss; this allows callers to tell whether
+     * the template had to be parsed.
+     *
+     * @param configKey a string that uniquely identifies the configuration of
+     * the engine that parsed the template
+     * @param source the text of the template
+     * @return the parsed template, which has the name with which it was
+     * parsed, or null if it is not cached
+     * @throws NullPointerException if any argument is null
+     */
+    public synchronized Template getCachedTemplate(String configKey,
+            TemplateSource source) {
+        return this.lookup(source.getKey() + ":" + configKey);
+    }
+
+    /**
+     * Returns the cached template with the given key, counting a hit if it is
+     * found. Must be invoked while holding the lock of this object.
+     */
+    private Template lookup(String key) {
+        final Entry entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        this.numHits++;
+        return entry.template;
+    }
+
+    /**
+     * Evicts the least-recently-used templates until this cache is within its
+     * limits. Must be invoked while holding the lock of this object.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> it =
+            this.entries.entrySet().iterator();
+        while (it.hasNext()
+            && (this.entries.size() > this.maxEntries
+                || this.numChars > this.maxChars)) {
+            final Entry entry = it.next().getValue();
+            it.remove();
+            this.numChars -= entry.numChars;
+        }
+    }
+
+    /**
+     * Parses a template without caching it.
+     */
+    static Template parse(RuntimeServices rsvc, String name,
+            TemplateSource source) throws ParseErrorException {
+        final Template template = new Template();
+        template.setRuntimeServices(rsvc);
+        template.setName(name);
+
+        try {
+            final SimpleNode data = rsvc.parse(source.openReader(), name);
+            template.setData(data);
+            template.initDocument();
+        } catch (final ParseException e) {
+            throw new ParseErrorException(e, name);
+        } catch (final TemplateInitException e) {
+            throw new ParseErrorException(e, name);
+        }
+
+        return template;
+    }
+
+    private static class Entry {
+
+        public final Template template;
+        public final int numChars;
+
+        public Entry(Template template, int numChars) {
+            this.template = template;
+            this.numChars = numChars;
+        }
+    }
+
+    /**
+     * A parse of a template by one thread, whose result is handed to the other
+     * threads that wait for it. Its fields are guarded by the lock of the
+     * cache.
+     */
+    private static class Parse {
+
+        /**
+         * The parsed template, or null if parsing failed.
+         */
+        public Template template;
+
+        /**
+         * Whether parsing has finished.
+         */
+        public boolean done;
+    }
+}
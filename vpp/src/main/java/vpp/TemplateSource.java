@@ -0,0 +1,330 @@
+/*
+ * TemplateSource.java
+ * By: Denver Coneybeare
+ * Oct 10, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+
+import vpp.util.Bytes;
+import vpp.util.CharBufferReader;
+import vpp.util.Digests;
+
+/**
+ * The decoded text of a template, together with a digest that identifies it
+ * for {@link TemplateCache}.
+ * <p>
+ * Files are loaded with a single bulk decode of their bytes: files of at least
+ * {@link #MAP_THRESHOLD} bytes are memory-mapped and smaller files are read
+ * into memory with a single read. The digest is computed from the bytes, so
+ * the text is never encoded again just to look it up in the cache, and the
+ * parser reads the decoded characters directly from the character buffer
+ * rather than from a copy of them in a string.
+ * <p>
+ * A template that contains neither a <code>#</code> nor a <code>$</code>
+ * contains no Velocity syntax, and renders to its text (see
+ * {@link #isPlainText()}). This is determined while the template is loaded,
+ * by searching its bytes before they are decoded if the character encoding
+ * encodes those characters as they are in ASCII, or its characters otherwise.
+ * <p>
+ * Instances of this class are immutable and thread-safe.
+ */
+public final class TemplateSource {
+
+    /**
+     * The size, in bytes, at or above which files are memory-mapped rather
+     * than read.
+     */
+    public static final long MAP_THRESHOLD = 1024L * 1024L;
+
+    private final CharBuffer text;
+    private final String key;
+    private final long numBytes;
+    private final boolean plainText;
+    private final ByteBuffer plainTextBytes;
+
+    private TemplateSource(CharBuffer text, String key, long numBytes,
+            boolean plainText, ByteBuffer plainTextBytes) {
+        this.text = text;
+        this.key = key;
+        this.numBytes = numBytes;
+        this.plainText = plainText;
+        this.plainTextBytes = plainTextBytes;
+    }
+
+    /**
+     * Creates a template source whose text is the given string.
+     *
+     * @param text the text of the template
+     * @return a new template source; never returns null
+     * @throws NullPointerException if text==null
+     */
+    public static TemplateSource fromString(String text) {
+        final byte[] bytes;
+        try {
+            bytes = text.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            // every Java platform is required to support UTF-8
+            throw new RuntimeException(e);
+        }
+        final String digest = Digests.digest(bytes, 0, bytes.length);
+        final CharBuffer chars = CharBuffer.wrap(text);
+        return new TemplateSource(chars, digest + ":UTF-8", bytes.length,
+            !containsSyntax(chars), null);
+    }
+
+    /**
+     * Loads a template from a file.
+     *
+     * @param file the file to load
+     * @param charset the character encoding of the file
+     * @return a new template source; never returns null
+     * @throws java.nio.charset.CharacterCodingException if the file is not
+     * valid in the given character encoding
+     * @throws IOException if reading the file fails
+     * @throws NullPointerException if file==null or charset==null
+     */
+    public static TemplateSource read(File file, Charset charset)
+            throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file is too large: " + size + " bytes");
+            }
+
+            final ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0) {
+                        break;
+                    }
+                }
+                bytes.flip();
+            }
+            return decode(bytes, charset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a template from a stream, which is read until its end but is not
+     * closed.
+     *
+     * @param in the stream from which to read
+     * @param charset the character encoding of the stream
+     * @return a new template source; never returns null
+     * @throws java.nio.charset.CharacterCodingException if the stream is not
+     * valid in the given character encoding
+     * @throws IOException if reading the stream fails
+     * @throws NullPointerException if in==null or charset==null
+     */
+    public static TemplateSource read(InputStream in, Charset charset)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int numRead = in.read(buffer);
+            if (numRead < 0) {
+                break;
+            }
+            out.write(buffer, 0, numRead);
+        }
+        return decode(ByteBuffer.wrap(out.toByteArray()), charset);
+    }
+
+    /**
+     * Digests and then decodes the remaining bytes of the given buffer. The
+     * character buffer is allocated once, large enough for the worst case, so
+     * that the bytes are decoded in a single pass.
+     */
+    private static TemplateSource decode(ByteBuffer bytes, Charset charset)
+            throws IOException {
+        final int numBytes = bytes.remaining();
+        final MessageDigest digest = Digests.newDigest();
+        digest.update(bytes.duplicate());
+        final ByteBuffer undecodedBytes = bytes.duplicate();
+        final boolean asciiCompatible = isAsciiCompatible(charset);
+        final boolean plainText = asciiCompatible
+            && !Bytes.containsEither(undecodedBytes, (byte) '#', (byte) '$');
+
+        final CharsetDecoder decoder =
+            charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        final double maxChars =
+            Math.ceil((double) bytes.remaining() * decoder.maxCharsPerByte());
+        if (maxChars > Integer.MAX_VALUE) {
+            throw new IOException("text is too large: " + bytes.remaining()
+                + " bytes");
+        }
+        final CharBuffer chars = CharBuffer.allocate((int) maxChars);
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        result = decoder.flush(chars);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        chars.flip();
+
+        final String key =
+            Digests.toHex(digest.digest()) + ":" + charset.name();
+        if (asciiCompatible) {
+            final ByteBuffer plainTextBytes =
+                plainText ? undecodedBytes.asReadOnlyBuffer() : null;
+            return new TemplateSource(chars.asReadOnlyBuffer(), key, numBytes,
+                plainText, plainTextBytes);
+        }
+        return new TemplateSource(chars.asReadOnlyBuffer(), key, numBytes,
+            !containsSyntax(chars), null);
+    }
+
+    /**
+     * Returns whether a character encoding encodes <code>#</code> and
+     * <code>$</code> as the same single bytes as ASCII does and never
+     * produces those bytes otherwise, so that they may be searched for in
+     * bytes that have not been decoded.
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (charset.name().equals("UTF-8")) {
+            return true;
+        } else if (!charset.canEncode()
+            || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return false;
+        }
+        try {
+            final ByteBuffer bytes =
+                charset.newEncoder().encode(CharBuffer.wrap("#$"));
+            return bytes.remaining() == 2 && bytes.get(0) == '#'
+                && bytes.get(1) == '$';
+        } catch (final CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    private static boolean containsSyntax(CharBuffer chars) {
+        final int limit = chars.limit();
+        for (int i = chars.position(); i < limit; i++) {
+            final char c = chars.get(i);
+            if (c == '#' || c == '$') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of characters in the text of the template.
+     *
+     * @return the number of characters in the text of the template
+     */
+    public int length() {
+        return this.text.remaining();
+    }
+
+    /**
+     * Returns the number of bytes from which the text of the template was
+     * decoded; for a template created from a string, this is the length of its
+     * UTF-8 encoding.
+     *
+     * @return the number of bytes from which the template was decoded
+     */
+    public long getNumBytes() {
+        return this.numBytes;
+    }
+
+    /**
+     * Returns whether the template contains no Velocity syntax, which is the
+     * case if it contains neither a <code>#</code> nor a <code>$</code>. Such
+     * a template renders to its text, and need not be parsed.
+     *
+     * @return true if the template contains no Velocity syntax, or false if
+     * it may contain some
+     */
+    public boolean isPlainText() {
+        return this.plainText;
+    }
+
+    /**
+     * Returns the bytes from which the text of a template that contains no
+     * Velocity syntax was decoded, so that they can be written to an output
+     * with the same character encoding without encoding the text again.
+     *
+     * @return a newly-created read-only view of the bytes; null if the
+     * template is not plain text, or if it was created from a string or from
+     * bytes in a character encoding that is not compatible with ASCII
+     * @see #isPlainText()
+     */
+    public ByteBuffer getPlainTextBytes() {
+        return (this.plainTextBytes == null) ? null
+            : this.plainTextBytes.duplicate();
+    }
+
+    /**
+     * Returns a string that identifies the text of the template, which is a
+     * digest of its bytes and the name of their character encoding.
+     *
+     * @return a string that identifies the text of the template; never returns
+     * null
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Returns the digest of the bytes of the template, in the format returned
+     * by {@link Digests#digest(File)}, which is the first part of
+     * {@link #getKey()}.
+     *
+     * @return the digest of the bytes of the template; never returns null
+     */
+    public String getDigest() {
+        return this.key.substring(0, this.key.indexOf(':'));
+    }
+
+    /**
+     * Opens a reader of the text of the template. Every reader returned by this
+     * method reads the text from its beginning, independently of the others.
+     *
+     * @return a newly-created reader; never returns null
+     */
+    public Reader openReader() {
+        return new CharBufferReader(this.text.duplicate());
+    }
+
+    /**
+     * Returns the text of the template.
+     *
+     * @return the text of the template; never returns null
+     */
+    @Override
+    public String toString() {
+        return this.text.duplicate().toString();
+    }
+}
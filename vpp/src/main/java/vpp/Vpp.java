@@ -10,47 +10,228 @@
 package vpp;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.context.Context;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import vpp.util.ChannelWriter;
+import vpp.util.Digests;
+import vpp.util.Files;
+import vpp.util.SpillBuffer;
 
 /**
  * The Velocity pre-processor.
  */
 public class Vpp {
 
+    /**
+     * The multi-byte character encodings whose encoders have no state.
+     */
+    private static final Set<String> SPLITTABLE_CHARSETS =
+        Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("UTF-8",
+            "UTF-16BE", "UTF-16LE", "UTF-32BE", "UTF-32LE")));
+
     private final VppOptions options;
+    private final List<VppListener> listeners;
+    private VppEngine engine;
+    private BuildManifest sharedManifest;
+    private volatile DefinesContext baseDefines;
+    private InputStream standardInput;
+    private OutputStream standardOutput;
 
     /**
-     * Creates a new instance of <code>Vpp</code>.
-     * 
+     * Creates a new instance of <code>Vpp</code>, which creates its own engine
+     * when first run.
+     *
      * @param options the options for this object
      * @throws NullPointerException if options==null
      */
     public Vpp(VppOptions options) {
+        this(options, null);
+    }
+
+    /**
+     * Creates a new instance of <code>Vpp</code> that uses the given engine.
+     * <p>
+     * The given engine may be shared by other instances of this class, and by
+     * other threads, so that the engine is only initialized once and so that
+     * templates rendered more than once (e.g. with different options) are only
+     * parsed once.
+     *
+     * @param options the options for this object
+     * @param engine the engine to use; may be null, in which case an engine
+     * whose template root is the current directory and whose input encoding is
+     * that of the options is created when first needed and is reused by every
+     * invocation of {@link #run()}; templates loaded by the <code>#parse</code>
+     * and <code>#include</code> directives are decoded with the input encoding
+     * of the engine
+     * @throws NullPointerException if options==null
+     */
+    public Vpp(VppOptions options, VppEngine engine) {
         if (options == null) {
             throw new NullPointerException("options==null");
         }
         this.options = options;
+        this.listeners = new CopyOnWriteArrayList<VppListener>();
+        this.engine = engine;
+        this.standardInput = System.in;
+        this.standardOutput = System.out;
+    }
+
+    /**
+     * Adds a listener that receives the timing and throughput statistics of
+     * every subsequent invocation of {@link #run()}. This method may be
+     * invoked at any time, by any thread.
+     *
+     * @param listener the listener to add
+     * @throws NullPointerException if listener==null
+     */
+    public void addListener(VppListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener==null");
+        }
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener that was added by {@link #addListener(VppListener)}.
+     * If the given listener was not added then this method does nothing.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(VppListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Returns the engine used by this object, creating it if this is the first
+     * invocation and no engine was given to the constructor.
+     *
+     * @return the engine used by this object; never returns null
+     */
+    public synchronized VppEngine getEngine() {
+        if (this.engine == null) {
+            this.engine = createEngine(this.options);
+        }
+        return this.engine;
+    }
+
+    /**
+     * Creates the engine used when no engine is given to the constructor, whose
+     * template root is the current directory and whose input encoding is that
+     * of the given options.
+     */
+    static VppEngine createEngine(VppOptions options) {
+        final Properties properties = new Properties();
+        properties.setProperty(RuntimeConstants.INPUT_ENCODING,
+            options.getInputEncoding());
+        return new VppEngine(new File("."), new TemplateCache(), properties);
+    }
+
+    /**
+     * Sets the manifest to use for incremental builds in place of loading the
+     * manifest named by the options. A shared manifest is not saved by
+     * {@link #run()}; it is the responsibility of the caller to save it.
+     *
+     * @param manifest the manifest to use; may be null to load the manifest
+     * named by the options
+     */
+    synchronized void setSharedManifest(BuildManifest manifest) {
+        this.sharedManifest = manifest;
+    }
+
+    private synchronized BuildManifest getSharedManifest() {
+        return this.sharedManifest;
+    }
+
+    /**
+     * Sets the context of the defines that the defines of the options are
+     * layered over. Templates see the defines of the base context as well as
+     * those of the options, with the latter taking precedence, without either
+     * being copied for each render; this allows many instances of this class
+     * with mostly the same defines to share them.
+     *
+     * @param baseDefines the context of the defines to layer the defines of
+     * the options over; may be null to use only the defines of the options
+     */
+    void setBaseDefines(DefinesContext baseDefines) {
+        this.baseDefines = baseDefines;
+    }
+
+    /**
+     * Sets the streams used in place of standard input and standard output
+     * when no input paths or no output path are specified, respectively. By
+     * default, {@link System#in} and {@link System#out} are used.
+     *
+     * @param in the stream to use in place of standard input
+     * @param out the stream to use in place of standard output
+     * @throws NullPointerException if in==null or out==null
+     */
+    synchronized void setStandardStreams(InputStream in, OutputStream out) {
+        if (in == null) {
+            throw new NullPointerException("in==null");
+        } else if (out == null) {
+            throw new NullPointerException("out==null");
+        }
+        this.standardInput = in;
+        this.standardOutput = out;
     }
 
-    private File[] getInputFiles() throws VppException {
-        final String[] paths = this.options.getInputPaths();
+    private synchronized InputStream getStandardInput() {
+        return this.standardInput;
+    }
+
+    private synchronized OutputStream getStandardOutput() {
+        return this.standardOutput;
+    }
+
+    private static File[] getInputFiles(VppOptionsSnapshot options)
+            throws VppException {
+        final List<String> paths = options.getInputPaths();
         final File[] files;
-        if (paths == null || paths.length == 0) {
+        if (paths.isEmpty()) {
             files = new File[1];
         } else {
-            files = new File[paths.length];
-            for (int i = 0; i < paths.length; i++) {
-                final String path = paths[i];
+            files = new File[paths.size()];
+            for (int i = 0; i < files.length; i++) {
+                final String path = paths.get(i);
                 if (path != null) {
                     final File file = new File(path);
                     if (!file.exists()) {
@@ -67,7 +248,7 @@ public class Vpp {
 
     /**
      * Returns this object's options.
-     * 
+     *
      * @return the object that was given to the constructor for the "options"
      * parameter; never returns null
      */
@@ -75,8 +256,9 @@ public class Vpp {
         return this.options;
     }
 
-    private File getOutputFile() throws VppException {
-        final String path = this.options.getOutputPath();
+    private static File getOutputFile(VppOptionsSnapshot options)
+            throws VppException {
+        final String path = options.getOutputPath();
         final File file;
         if (path == null) {
             file = null;
@@ -90,89 +272,1312 @@ public class Vpp {
         return file;
     }
 
+    private static File getOutputDirectory(VppOptionsSnapshot options)
+            throws VppException {
+        final String path = options.getOutputDirectory();
+        final File dir;
+        if (path == null) {
+            dir = null;
+        } else {
+            dir = new File(path);
+            if (dir.exists() && !dir.isDirectory()) {
+                throw new VppException("output directory is not a directory: "
+                    + path);
+            }
+        }
+
+        return dir;
+    }
+
+    /**
+     * Determines the output file for each input file when each input file is
+     * written to its own output file in the given directory.
+     */
+    private static File[] getOutputFiles(VppOptionsSnapshot options,
+            File[] inFiles, File outDir) throws VppException {
+        final String stripSuffix = options.getStripSuffix();
+        final Map<File, File> inFileByOutFile = new HashMap<File, File>();
+        final File[] outFiles = new File[inFiles.length];
+
+        for (int i = 0; i < inFiles.length; i++) {
+            final File inFile = inFiles[i];
+            final String name = stripSuffix(inFile.getName(), stripSuffix);
+            final File outFile = new File(outDir, name);
+            final File absOutFile = outFile.getAbsoluteFile();
+            if (absOutFile.equals(inFile.getAbsoluteFile())) {
+                throw new VppException("output file would overwrite "
+                    + "input file: " + inFile.getPath());
+            }
+
+            final File otherInFile = inFileByOutFile.put(absOutFile, inFile);
+            if (otherInFile != null) {
+                throw new VppException("input files " + otherInFile.getPath()
+                    + " and " + inFile.getPath()
+                    + " would both be written to " + outFile.getPath());
+            }
+
+            outFiles[i] = outFile;
+        }
+
+        return outFiles;
+    }
+
+    /**
+     * Removes the given suffix from the given file name or relative path,
+     * unless the suffix is null or the name consists only of the suffix.
+     */
+    private static String stripSuffix(String name, String suffix) {
+        if (suffix != null && name.endsWith(suffix)
+            && name.length() > suffix.length()
+            && name.charAt(name.length() - suffix.length() - 1) != '/') {
+            return name.substring(0, name.length() - suffix.length());
+        }
+        return name;
+    }
+
+    /**
+     * Determines the output file for an input file found by expanding an input
+     * directory or glob pattern, which mirrors its path relative to the
+     * searched directory beneath the given output directory.
+     */
+    private static File getMirroredOutputFile(File outDir,
+            String relativePath, String stripSuffix) {
+        final String path = stripSuffix(relativePath, stripSuffix);
+        return new File(outDir, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Returns whether any of the given input paths names a directory or is a
+     * glob pattern.
+     */
+    private static boolean hasExpandableInputPaths(List<String> paths) {
+        for (final String path : paths) {
+            if (InputScanner.isExpandable(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the scanner that expands the input paths, which never searches
+     * the given output directory, if any, so that output files are not
+     * mistaken for input files.
+     */
+    private static InputScanner createInputScanner(
+            VppOptionsSnapshot options, File outDir) {
+        final List<String> includePatterns = options.getIncludePatterns();
+        final List<String> excludePatterns = options.getExcludePatterns();
+        return new InputScanner(
+            includePatterns.toArray(new String[includePatterns.size()]),
+            excludePatterns.toArray(new String[excludePatterns.size()]),
+            outDir);
+    }
+
+    /**
+     * Expands the input paths into the input files that they name or contain,
+     * in order; the files of each directory or glob pattern are sorted by
+     * their paths relative to the searched directory.
+     */
+    private static File[] expandInputFiles(VppOptionsSnapshot options)
+            throws VppException {
+        final InputScanner scanner = createInputScanner(options, null);
+        final List<File> files = new ArrayList<File>();
+        for (final String path : options.getInputPaths()) {
+            files.addAll(scanner.list(path));
+        }
+        if (files.isEmpty()) {
+            throw new VppException("no input files found");
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * Creates the read-only context of the defines of the given options,
+     * layered over those of their define files, in order, and then over the
+     * given base context. Define files are loaded through the given cache, so
+     * a define file is only parsed again if its contents change. This is
+     * cheap because no defines are copied.
+     *
+     * @param options the options whose defines to use
+     * @param cache the cache through which to load define files
+     * @param base the context to layer the defines over; may be null
+     * @return the context of the defines; never returns null
+     * @throws VppException if loading a define file fails
+     */
+    static DefinesContext createDefinesContext(VppOptionsSnapshot options,
+            DefineFileCache cache, DefinesContext base) throws VppException {
+        DefinesContext context = base;
+        for (final String path : options.getDefineFiles()) {
+            context = new DefinesContext(cache.load(new File(path)), context);
+        }
+        return new DefinesContext(options.getDefines(), context);
+    }
+
+    /**
+     * Creates the context of one render, in which the values set by the
+     * template are stored; the defines are looked up in the given context
+     * rather than copied.
+     */
+    private static Context createContext(DefinesContext defines) {
+        return new VelocityContext(defines);
+    }
+
+    /**
+     * Creates the digest of the defines and of the engine configuration, which
+     * is recorded in the manifest of an incremental build so that changing
+     * either causes every output to be rendered again.
+     */
+    private String createDefinesDigest(DefinesContext defines) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(this.getEngine().getConfigKey()).append('\n');
+        defines.appendKey(sb);
+
+        final byte[] bytes;
+        try {
+            bytes = sb.toString().getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            // every Java platform is required to support UTF-8
+            throw new RuntimeException(e);
+        }
+        return Digests.digest(bytes, 0, bytes.length);
+    }
+
+    private static BuildManifest loadManifest(VppOptionsSnapshot options)
+            throws VppException {
+        final String path = options.getManifestPath();
+        if (path == null) {
+            return null;
+        }
+        return BuildManifest.load(new File(path));
+    }
+
     /**
      * Runs the Velocity Pre-processor with the options that were specified to
      * the constructor.
-     * 
-     * @throws VppException if an error occurs
+     * <p>
+     * If an output directory is set in the options then each input file is
+     * written to its own output file in that directory and, if more than one
+     * job is allowed by the options, the input files are processed
+     * concurrently. Otherwise, all input files are processed in order and
+     * written to the output path or standard output; if more than one job is
+     * allowed then they may be rendered concurrently and their outputs
+     * written in order, which produces the same output.
+     * <p>
+     * Input paths that name directories or are glob patterns are expanded to
+     * the files that they contain, filtered by the include and exclude
+     * patterns. With an output directory, each such file is written to the
+     * path beneath the output directory that mirrors its path beneath the
+     * searched directory, and is rendered as soon as it is found rather than
+     * once every directory has been searched. Without one, the files of each
+     * input path are concatenated in the order of their relative paths.
+     * <p>
+     * If a manifest path is set in the options then the build is incremental:
+     * outputs whose input files, <code>#parse</code>d and
+     * <code>#include</code>d templates and defines have not changed since the
+     * previous build with the same manifest are not rendered again.
+     *
+     * <p>
+     * Timing and throughput statistics of each output and of the run are given
+     * to the listeners added by {@link #addListener(VppListener)}.
+     *
+     * @throws VppException if an error occurs; if an output directory is set
+     * and one or more input files fail then the remaining input files are still
+     * processed and the exception describes all of the failures
      */
     public void run() throws VppException {
-        final File[] inFiles = this.getInputFiles();
+        final long startNanos = System.nanoTime();
+        final List<OutputStats> outputStats = new ArrayList<OutputStats>();
+        final VppOptionsSnapshot options = this.options.snapshot();
+        try {
+            final boolean expand =
+                hasExpandableInputPaths(options.getInputPaths());
+            final File[] inFiles = expand ? null : getInputFiles(options);
+            final File outDir = getOutputDirectory(options);
+            final BuildManifest sharedManifest = this.getSharedManifest();
+            final BuildManifest manifest =
+                (sharedManifest != null) ? sharedManifest
+                    : loadManifest(options);
+            final DefinesContext definesContext =
+                createDefinesContext(options, this.getEngine()
+                    .getDefineFileCache(), this.baseDefines);
+            final Defines defines =
+                new Defines(definesContext, (manifest == null) ? null
+                    : this.createDefinesDigest(definesContext));
+
+            try {
+                if (outDir == null) {
+                    this.runConcatenated(options,
+                        expand ? expandInputFiles(options) : inFiles,
+                        manifest, defines, outputStats);
+                } else if (expand) {
+                    this.runPerFileExpanded(options, outDir, manifest,
+                        defines, outputStats);
+                } else {
+                    this.runPerFile(options, inFiles, outDir, manifest,
+                        defines, outputStats);
+                }
+            } finally {
+                if (manifest != null && manifest != sharedManifest) {
+                    manifest.save();
+                }
+            }
+        } finally {
+            if (!this.listeners.isEmpty()) {
+                final RunStats stats =
+                    new RunStats(System.nanoTime() - startNanos, outputStats);
+                for (final VppListener listener : this.listeners) {
+                    listener.runFinished(stats);
+                }
+            }
+        }
+    }
+
+    private void runConcatenated(VppOptionsSnapshot options, File[] inFiles,
+            BuildManifest manifest, Defines defines,
+            List<OutputStats> outputStats) throws VppException {
+        final File outFile = getOutputFile(options);
+        if (manifest != null && (outFile == null || inFiles[0] == null)) {
+            throw new VppException("an incremental build requires input "
+                + "paths and an output path or output directory");
+        }
+        final OutputStats stats = createOutputStats(inFiles, outFile);
+        outputStats.add(stats);
+        this.renderOutput(options, inFiles, outFile, manifest, defines,
+            stats);
+    }
+
+    private static OutputStats createOutputStats(File[] inFiles, File outFile) {
+        final String[] inPaths = new String[inFiles.length];
+        for (int i = 0; i < inFiles.length; i++) {
+            inPaths[i] = (inFiles[i] == null) ? null : inFiles[i].getPath();
+        }
+        final String outPath = (outFile == null) ? null : outFile.getPath();
+        return new OutputStats(outPath, inPaths);
+    }
+
+    private void runPerFile(VppOptionsSnapshot options, File[] inFiles,
+            File outDir, BuildManifest manifest, Defines defines,
+            List<OutputStats> outputStats) throws VppException {
+        if (options.getOutputPath() != null) {
+            throw new VppException("an output path and an output directory "
+                + "may not both be specified");
+        } else if (inFiles[0] == null) {
+            throw new VppException("at least one input path must be "
+                + "specified when an output directory is specified");
+        }
 
-        final Context context = new VelocityContext();
-        synchronized (this.options) {
-            final String[] defineKeys = this.options.getDefineKeys();
-            for (final String defineKey : defineKeys) {
-                final String defineValue = this.options.getDefine(defineKey);
-                context.put(defineKey, defineValue);
+        final File[] outFiles = getOutputFiles(options, inFiles, outDir);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new VppException("unable to create output directory: "
+                + outDir.getPath());
+        }
+
+        // initialize the engine before it is shared by multiple threads
+        this.getEngine();
+
+        final OutputStats[] stats = new OutputStats[inFiles.length];
+        for (int i = 0; i < inFiles.length; i++) {
+            stats[i] =
+                createOutputStats(new File[] { inFiles[i] }, outFiles[i]);
+            outputStats.add(stats[i]);
+        }
+
+        final List<String> errors = new ArrayList<String>();
+        final int numThreads = Math.min(options.getJobs(), inFiles.length);
+        if (numThreads <= 1) {
+            for (int i = 0; i < inFiles.length; i++) {
+                try {
+                    this.renderOutput(options, new File[] { inFiles[i] },
+                        outFiles[i], manifest, defines, stats[i]);
+                } catch (final VppException e) {
+                    errors.add(e.getMessage());
+                }
+            }
+        } else {
+            final ExecutorService executor =
+                RenderExecutors.newExecutor(numThreads,
+                    options.isVirtualThreads());
+            try {
+                final List<Future<Void>> futures =
+                    new ArrayList<Future<Void>>(inFiles.length);
+                for (int i = 0; i < inFiles.length; i++) {
+                    final RenderFileTask task =
+                        new RenderFileTask(options, inFiles[i], outFiles[i],
+                            manifest, defines, stats[i]);
+                    futures.add(executor.submit(task));
+                }
+
+                // wait in submission order so that errors are reported in the
+                // same order as they would be by a serial run
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (final ExecutionException e) {
+                        errors.add(getErrorMessage(e, inFiles[i]));
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VppException("interrupted while waiting for "
+                    + "input files to be processed");
+            } finally {
+                executor.shutdownNow();
             }
         }
-        final VelocityEngine velocity = new VelocityEngine();
 
-        final File outFile = this.getOutputFile();
-        final Writer writer;
-        final String writerName;
-        final boolean closeWriter;
+        throwErrors(errors, inFiles.length);
+    }
+
+    /**
+     * Writes each file found by expanding the input paths to its mirrored
+     * path beneath the given output directory, submitting each one for
+     * rendering as soon as it is found.
+     */
+    private void runPerFileExpanded(final VppOptionsSnapshot options,
+            final File outDir, final BuildManifest manifest,
+            final Defines defines, List<OutputStats> outputStats)
+            throws VppException {
+        if (options.getOutputPath() != null) {
+            throw new VppException("an output path and an output directory "
+                + "may not both be specified");
+        } else if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new VppException("unable to create output directory: "
+                + outDir.getPath());
+        }
+
+        // initialize the engine before it is shared by multiple threads
+        this.getEngine();
+
+        final InputScanner scanner = createInputScanner(options, outDir);
+        final String stripSuffix = options.getStripSuffix();
+        final ConcurrentMap<File, File> inFileByOutFile =
+            new ConcurrentHashMap<File, File>();
+        final List<PendingOutput> pendingOutputs =
+            new ArrayList<PendingOutput>();
+        final List<String> errors = new ArrayList<String>();
+        final ExecutorService executor =
+            RenderExecutors.newExecutor(options.getJobs(),
+                options.isVirtualThreads());
+        try {
+            final InputScanner.Callback callback = new InputScanner.Callback() {
+                public void inputFound(File inFile, String relativePath) {
+                    final File outFile = getMirroredOutputFile(outDir,
+                        relativePath, stripSuffix);
+                    final PendingOutput pendingOutput =
+                        new PendingOutput(inFile, createOutputStats(
+                            new File[] { inFile }, outFile));
+                    final String error =
+                        checkOutputFile(inFile, outFile, inFileByOutFile);
+                    if (error == null) {
+                        pendingOutput.future =
+                            executor.submit(new RenderFileTask(options,
+                                inFile, outFile, manifest, defines,
+                                pendingOutput.stats));
+                    } else {
+                        pendingOutput.error = error;
+                        failOutput(pendingOutput.stats, error);
+                    }
+                    synchronized (pendingOutputs) {
+                        pendingOutputs.add(pendingOutput);
+                    }
+                }
+            };
+
+            try {
+                for (final String inPath : options.getInputPaths()) {
+                    scanner.scan(inPath, callback);
+                }
+            } catch (final VppException e) {
+                // still wait for the input files that were already submitted
+                errors.add(e.getMessage());
+            }
+
+            // wait in the order of the input file paths so that errors are
+            // reported in the same order regardless of the order of discovery
+            synchronized (pendingOutputs) {
+                Collections.sort(pendingOutputs,
+                    new Comparator<PendingOutput>() {
+                        public int compare(PendingOutput a, PendingOutput b) {
+                            return a.inFile.getPath().compareTo(
+                                b.inFile.getPath());
+                        }
+                    });
+            }
+            for (final PendingOutput pendingOutput : pendingOutputs) {
+                outputStats.add(pendingOutput.stats);
+                if (pendingOutput.error != null) {
+                    errors.add(pendingOutput.error);
+                    continue;
+                }
+                try {
+                    pendingOutput.future.get();
+                } catch (final ExecutionException e) {
+                    errors.add(getErrorMessage(e, pendingOutput.inFile));
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VppException("interrupted while waiting for "
+                + "input files to be processed");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        throwErrors(errors, pendingOutputs.size());
+    }
+
+    /**
+     * Checks that an output file found by expanding the input paths neither
+     * overwrites its input file nor is written by another input file, and
+     * creates its directory.
+     *
+     * @return null if the output file may be written, or a message describing
+     * why not
+     */
+    private static String checkOutputFile(File inFile, File outFile,
+            ConcurrentMap<File, File> inFileByOutFile) {
+        final File absOutFile = outFile.getAbsoluteFile();
+        if (absOutFile.equals(inFile.getAbsoluteFile())) {
+            return "output file would overwrite input file: "
+                + inFile.getPath();
+        }
+
+        final File otherInFile =
+            inFileByOutFile.putIfAbsent(absOutFile, inFile);
+        if (otherInFile != null) {
+            return "input files " + otherInFile.getPath() + " and "
+                + inFile.getPath() + " would both be written to "
+                + outFile.getPath();
+        }
+
+        final File dir = absOutFile.getParentFile();
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            return "unable to create output directory: " + dir.getPath();
+        }
+        return null;
+    }
+
+    /**
+     * Records an error for an output that was not rendered and gives its
+     * statistics to the listeners.
+     */
+    private void failOutput(OutputStats stats, String error) {
+        stats.setError(error);
+        for (final VppListener listener : this.listeners) {
+            listener.outputFinished(stats);
+        }
+    }
+
+    private static String getErrorMessage(ExecutionException e, File inFile) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof VppException) {
+            return cause.getMessage();
+        }
+        return inFile.getPath() + ": " + cause;
+    }
+
+    /**
+     * Throws an exception describing the given errors, if there are any.
+     */
+    private static void throwErrors(List<String> errors, int numInputFiles)
+            throws VppException {
+        if (errors.size() == 1) {
+            throw new VppException(errors.get(0));
+        } else if (errors.size() > 1) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(errors.size()).append(" of ").append(numInputFiles);
+            sb.append(" input files failed:");
+            for (final String error : errors) {
+                sb.append("\n  ").append(error);
+            }
+            throw new VppException(sb.toString());
+        }
+    }
+
+    /**
+     * Renders input files, in order and with a single context, to an output
+     * file or, if the output file is null, to standard output. A regular
+     * output file is only replaced once it has been completely written, so
+     * if rendering to it fails then it is left as it was; other output files,
+     * such as devices, are written directly.
+     * <p>
+     * If a manifest is given then the output file is not rendered if the
+     * manifest says that it is up to date; otherwise, the manifest is updated
+     * with the new state of the output file.
+     * <p>
+     * The given statistics are populated and then given to the listeners,
+     * whether or not rendering succeeds.
+     */
+    private void renderOutput(VppOptionsSnapshot options, File[] inFiles,
+            File outFile, BuildManifest manifest, Defines defines,
+            OutputStats stats) throws VppException {
+        try {
+            this.writeOutput(options, inFiles, outFile, manifest,
+                defines, stats);
+        } catch (final VppException e) {
+            stats.setError(e.getMessage());
+            throw e;
+        } catch (final RuntimeException e) {
+            stats.setError(e.toString());
+            throw e;
+        } finally {
+            for (final VppListener listener : this.listeners) {
+                listener.outputFinished(stats);
+            }
+        }
+    }
+
+    private void writeOutput(VppOptionsSnapshot options, File[] inFiles,
+            File outFile, BuildManifest manifest, Defines defines,
+            OutputStats stats) throws VppException {
+        if (manifest != null
+            && manifest.isUpToDate(outFile, inFiles, defines.digest)) {
+            stats.setSkipped();
+            stats.setDependencies(manifest.getDependencies(outFile));
+            return;
+        }
+
+        final Context context = createContext(defines.context);
+        final DependencyRecorder recorder;
+        if (manifest == null && this.listeners.isEmpty()) {
+            recorder = null;
+        } else {
+            recorder =
+                new DependencyRecorder(this.getEngine().getTemplateRoot());
+            recorder.attachTo(context);
+        }
+
+        // regular output files are written to a temporary file that then
+        // replaces the output file, so that an output file is never seen
+        // partially written; symbolic links are kept by replacing the file
+        // that they link to
+        final long openStartNanos = System.nanoTime();
+        final File replacedFile;
+        final File tempFile;
         if (outFile == null) {
-            writer = new OutputStreamWriter(System.out);
-            writerName = "<standard output>";
-            closeWriter = false;
+            replacedFile = null;
+            tempFile = null;
         } else {
-            writerName = outFile.getPath();
-            closeWriter = true;
             try {
-                writer = new FileWriter(outFile);
+                replacedFile = Files.getReplaceableFile(outFile);
+                tempFile = (replacedFile == null) ? null
+                    : Files.createTempFileFor(replacedFile);
             } catch (final IOException e) {
-                throw new VppException("unable to open file for writing: "
-                    + writerName + " (" + e.getMessage() + ")");
+                throw new VppException("unable to create temporary file for: "
+                    + outFile.getPath() + " (" + e.getMessage() + ")");
             }
         }
+        final boolean keepUnchanged =
+            (tempFile != null && options.isKeepUnchanged());
+        final MessageDigest outputDigest =
+            (manifest == null && !keepUnchanged) ? null : Digests.newDigest();
 
+        final long startMillis = System.currentTimeMillis();
+        String outputHex = null;
+        LoadedInput[] inputs = null;
+        boolean success = false;
         try {
-            for (final File inFile : inFiles) {
-                final Reader reader;
-                final String readerName;
-                final boolean closeReader;
-                if (inFile == null) {
-                    reader = new InputStreamReader(System.in);
-                    readerName = "<standard input>";
-                    closeReader = false;
-                } else {
-                    readerName = inFile.getPath();
-                    closeReader = true;
-                    try {
-                        reader = new FileReader(inFile);
-                    } catch (final IOException e) {
-                        throw new VppException(
-                            "unable to open file for reading: " + readerName
-                                + " (" + e.getMessage() + ")");
-                    }
+            final ChannelWriter writer =
+                this.openWriter(options, (tempFile == null) ? outFile
+                    : tempFile, outputDigest);
+            stats.addOpenNanos(System.nanoTime() - openStartNanos);
+            long flushStartNanos = 0;
+            try {
+                inputs = this.renderInputs(options, context, inFiles, outFile,
+                    defines, writer, recorder, stats);
+            } finally {
+                flushStartNanos = System.nanoTime();
+                closeWriter(options, writer, outFile);
+            }
+            if (outputDigest != null) {
+                outputHex = Digests.toHex(outputDigest.digest());
+            }
+            if (keepUnchanged && isUnchanged(outFile,
+                    writer.getNumBytesWritten(), outputHex, manifest)) {
+                tempFile.delete();
+                stats.setUnchanged();
+            } else if (tempFile != null
+                && !Files.replace(tempFile, replacedFile)) {
+                throw new VppException("unable to replace output file: "
+                    + outFile.getPath());
+            }
+            stats.addFlushNanos(System.nanoTime() - flushStartNanos);
+            stats.setBytesOut(writer.getNumBytesWritten());
+            if (recorder != null) {
+                stats.setDependencies(recorder.getFiles());
+            }
+            success = true;
+        } finally {
+            if (!success && outFile != null) {
+                // the output file is left as it was; the manifest no longer
+                // records it, so that it is rendered again by the next build
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+                if (manifest != null) {
+                    manifest.remove(outFile);
+                }
+            }
+        }
+
+        if (manifest != null) {
+            // the input files are recorded as they were rendered, rather than
+            // as they are now
+            final List<BuildManifest.FileState> inputStates =
+                new ArrayList<BuildManifest.FileState>(inputs.length);
+            for (final LoadedInput input : inputs) {
+                inputStates.add(input.state);
+            }
+            manifest.put(outFile, inputStates, recorder.getFiles(),
+                startMillis, defines.digest, outputHex);
+        }
+    }
+
+    /**
+     * Returns whether an output file already has the given contents. The
+     * output file is read only if it has the given size and the manifest, if
+     * any, did not record its digest since it was last modified, so a changed
+     * output is rarely read.
+     */
+    private static boolean isUnchanged(File outFile, long size, String digest,
+            BuildManifest manifest) {
+        if (!outFile.isFile() || outFile.length() != size) {
+            return false;
+        }
+        String oldDigest =
+            (manifest == null) ? null : manifest.getOutputDigest(outFile);
+        if (oldDigest == null) {
+            try {
+                oldDigest = Digests.digest(outFile);
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+        return oldDigest.equals(digest);
+    }
+
+    /**
+     * Renders input files, in order and with a single context, to a writer.
+     * <p>
+     * If more than one job is allowed then the input files are parsed
+     * concurrently and, unless an input file other than the last might affect
+     * the rendering of those after it (see {@link ContextUsage}), they are
+     * rendered concurrently into private buffers, which are written to the
+     * writer in order as soon as the input files before them have been
+     * written. The output is the same as that of rendering the input files
+     * one after another, which is done otherwise; input files that were
+     * already loaded concurrently are then rendered without loading them
+     * again.
+     *
+     * @return the loaded input files, in order; an element is null if
+     * standard input was rendered as a stream
+     */
+    private LoadedInput[] renderInputs(VppOptionsSnapshot options,
+            Context context, File[] inFiles, File outFile, Defines defines,
+            ChannelWriter writer, DependencyRecorder recorder,
+            OutputStats stats) throws VppException {
+        final int numThreads = Math.min(options.getJobs(), inFiles.length);
+        LoadedInput[] loaded = null;
+        if (numThreads > 1 && !Arrays.asList(inFiles).contains(null)
+            && isSplittable(options.getOutputCharset())) {
+            // initialize the engine before it is shared by multiple threads
+            this.getEngine();
+
+            final ExecutorService executor =
+                RenderExecutors.newExecutor(numThreads,
+                    options.isVirtualThreads());
+            try {
+                loaded = this.loadInputs(options, inFiles, executor, stats);
+                if (loaded != null && preservesContext(loaded)) {
+                    this.renderConcurrently(options, inFiles, loaded,
+                        outFile, defines, executor, numThreads, writer,
+                        recorder, stats);
+                    return loaded;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VppException("interrupted while waiting for "
+                    + "input files to be processed");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if (loaded != null) {
+            for (int i = 0; i < inFiles.length; i++) {
+                renderInput(options, loaded[i], getReaderName(inFiles[i]),
+                    context, writer, stats);
+            }
+            return loaded;
+        }
+        final LoadedInput[] inputs = new LoadedInput[inFiles.length];
+        for (int i = 0; i < inFiles.length; i++) {
+            inputs[i] =
+                this.render(options, context, inFiles[i], writer, stats);
+        }
+        return inputs;
+    }
+
+    /**
+     * Returns whether no loaded input file other than the last might affect
+     * the rendering of those after it, so that they can be rendered
+     * concurrently.
+     */
+    private static boolean preservesContext(LoadedInput[] inputs) {
+        for (int i = 0; i < inputs.length - 1; i++) {
+            final Template template = inputs[i].template;
+            if (template != null && !ContextUsage.preservesContext(template)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether text encoded in parts is the same as the text encoded
+     * all at once, which is not the case for character encodings that write a
+     * byte order mark or that shift between states.
+     */
+    private static boolean isSplittable(Charset charset) {
+        return (charset.newEncoder().maxBytesPerChar() <= 1.0f)
+            || SPLITTABLE_CHARSETS.contains(charset.name());
+    }
+
+    /**
+     * Loads input files concurrently.
+     *
+     * @return the loaded input files, in order, or null if an input file
+     * failed to load, in which case the input files are to be loaded and
+     * rendered one after another so that the error is reported in order
+     */
+    private LoadedInput[] loadInputs(final VppOptionsSnapshot options,
+            File[] inFiles, ExecutorService executor, OutputStats stats)
+            throws InterruptedException {
+        final List<Future<LoadedInput>> futures =
+            new ArrayList<Future<LoadedInput>>(inFiles.length);
+        final OutputStats[] inputStats = new OutputStats[inFiles.length];
+        for (int i = 0; i < inFiles.length; i++) {
+            final File inFile = inFiles[i];
+            final OutputStats loadStats =
+                createOutputStats(new File[] { inFile }, null);
+            inputStats[i] = loadStats;
+            futures.add(executor.submit(new Callable<LoadedInput>() {
+                public LoadedInput call() throws VppException {
+                    return loadInput(options, inFile, loadStats);
                 }
+            }));
+        }
+
+        final LoadedInput[] inputs = new LoadedInput[inFiles.length];
+        for (int i = 0; i < inputs.length; i++) {
+            try {
+                inputs[i] = futures.get(i).get();
+            } catch (final ExecutionException e) {
+                return null;
+            }
+        }
+
+        for (final OutputStats loadStats : inputStats) {
+            stats.add(loadStats);
+        }
+        return inputs;
+    }
+
+    /**
+     * Renders loaded input files concurrently, each with its own context
+     * chained to the defines, into private buffers that are written to a
+     * writer in order. At most <code>numThreads</code> input files are
+     * rendered ahead of the one being written, and the next input file is
+     * submitted as each buffer is written, so that the number of buffers held
+     * at once is bounded by the number of jobs rather than by the number of
+     * input files.
+     */
+    private void renderConcurrently(VppOptionsSnapshot options,
+            File[] inFiles, LoadedInput[] inputs, File outFile,
+            Defines defines, ExecutorService executor, int numThreads,
+            ChannelWriter writer, DependencyRecorder recorder,
+            OutputStats stats) throws VppException, InterruptedException {
+        final List<Future<RenderedInput>> futures =
+            new ArrayList<Future<RenderedInput>>(inFiles.length);
+        final int numAhead = Math.min(numThreads, inFiles.length);
+        for (int i = 0; i < numAhead; i++) {
+            futures.add(executor.submit(new RenderInputTask(options,
+                inFiles[i], inputs[i], outFile, defines,
+                (recorder != null))));
+        }
 
+        int numWritten = 0;
+        try {
+            while (numWritten < inFiles.length) {
+                final RenderedInput rendered;
+                try {
+                    rendered = futures.get(numWritten).get();
+                } catch (final ExecutionException e) {
+                    throw new VppException(getErrorMessage(e,
+                        inFiles[numWritten]));
+                }
+                numWritten++;
                 try {
-                    velocity.evaluate(context, writer, "vpp", reader);
+                    // the next input file is rendered while this one is
+                    // written
+                    final int next = futures.size();
+                    if (next < inFiles.length) {
+                        futures.add(executor.submit(new RenderInputTask(
+                            options, inFiles[next], inputs[next], outFile,
+                            defines, (recorder != null))));
+                    }
+                    writer.write(rendered.buffer);
+                } catch (final IOException e) {
+                    throw new VppException("unable to write output file: "
+                        + getWriterName(outFile) + " (" + e.getMessage()
+                        + ")");
                 } finally {
-                    if (closeReader) {
-                        try {
-                            reader.close();
-                        } catch (final IOException e) {
-                            throw new VppException(
-                                "unable to close input file: " + readerName
-                                    + " (" + e.getMessage() + ")");
-                        }
+                    discard(rendered.buffer);
+                }
+                stats.add(rendered.stats);
+                if (recorder != null) {
+                    recorder.addAll(rendered.recorder);
+                }
+            }
+        } finally {
+            // release the buffers of the input files that were not written
+            for (final Future<RenderedInput> future : futures.subList(
+                    numWritten, futures.size())) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (final Future<RenderedInput> future : futures.subList(
+                    numWritten, futures.size())) {
+                if (!future.isCancelled()) {
+                    try {
+                        discard(future.get().buffer);
+                    } catch (final ExecutionException e) {
+                        // the task released its own buffer
                     }
                 }
             }
+        }
+    }
+
+    private static void discard(SpillBuffer buffer) {
+        try {
+            buffer.close();
+        } catch (final IOException e) {
+            // the bytes of the buffer are no longer needed
+        }
+    }
+
+    /**
+     * Renders an input file, which is parsed only if its text is not already in
+     * the template cache.
+     *
+     * @return the loaded input file, or null if standard input was rendered
+     * as a stream
+     */
+    private LoadedInput render(VppOptionsSnapshot options, Context context,
+            File inFile, ChannelWriter writer, OutputStats stats)
+            throws VppException {
+        if (inFile == null && options.isStreaming()) {
+            this.renderStream(options, context, writer, stats);
+            return null;
+        }
+        final LoadedInput input = this.loadInput(options, inFile, stats);
+        renderInput(options, input, getReaderName(inFile), context, writer,
+            stats);
+        return input;
+    }
+
+    /**
+     * Reads and parses an input file or, if the input file is null, standard
+     * input. The text is parsed only if it contains Velocity syntax and is not
+     * already in the template cache.
+     */
+    private LoadedInput loadInput(VppOptionsSnapshot options, File inFile,
+            OutputStats stats) throws VppException {
+        final Charset charset = options.getInputCharset();
+        final String readerName = getReaderName(inFile);
+
+        final long loadStartNanos = System.nanoTime();
+        // the modification time is read first so that a modification while
+        // the file is read is never mistaken for the state that was read
+        final long lastModified =
+            (inFile == null) ? 0 : inFile.lastModified();
+        final TemplateSource source;
+        try {
+            if (inFile == null) {
+                source = TemplateSource.read(this.getStandardInput(), charset);
+            } else {
+                source = TemplateSource.read(inFile, charset);
+            }
+        } catch (final FileNotFoundException e) {
+            throw new VppException("unable to open file for reading: "
+                + readerName + " (" + e.getMessage() + ")");
+        } catch (final CharacterCodingException e) {
+            throw new VppException("unable to read input file: " + readerName
+                + " (not valid " + charset.name() + ")");
+        } catch (final IOException e) {
+            throw new VppException("unable to read input file: " + readerName
+                + " (" + e.getMessage() + ")");
+        }
+
+        final long parseStartNanos = System.nanoTime();
+        stats.addLoad(parseStartNanos - loadStartNanos, source.getNumBytes());
+        final BuildManifest.FileState state = (inFile == null) ? null
+            : BuildManifest.FileState.of(inFile, source, lastModified);
+        if (source.isPlainText()) {
+            return new LoadedInput(source, null, state);
+        }
+
+        final VppEngine engine = this.getEngine();
+        Template template = engine.getCachedTemplate(source);
+        final boolean cacheHit = (template != null);
+        try {
+            if (!cacheHit) {
+                template = engine.getTemplate(readerName, source);
+            }
+        } catch (final VelocityException e) {
+            throw createRenderException(options, readerName, e);
         } finally {
+            stats.addParse(System.nanoTime() - parseStartNanos, cacheHit);
+        }
+        return new LoadedInput(source, template, state);
+    }
+
+    /**
+     * Renders a loaded input file to a writer. An input file that contains no
+     * Velocity syntax renders to its text, which is written without Velocity;
+     * if the input and output character encodings are the same, then its
+     * bytes are written as they were read rather than being encoded again.
+     */
+    private static void renderInput(VppOptionsSnapshot options,
+            LoadedInput input, String readerName, Context context,
+            ChannelWriter writer, OutputStats stats) throws VppException {
+        final long renderStartNanos = System.nanoTime();
+        if (input.template != null) {
+            try {
+                input.template.merge(context, writer);
+            } catch (final VelocityException e) {
+                throw createRenderException(options, readerName, e);
+            }
+        } else {
+            final ByteBuffer bytes = input.source.getPlainTextBytes();
             try {
-                if (closeWriter) {
-                    writer.close();
+                if (bytes != null && options.getInputCharset().equals(
+                        options.getOutputCharset())) {
+                    writer.write(bytes);
                 } else {
-                    writer.flush();
+                    writer.write(input.source.toString());
+                }
+            } catch (final CharacterCodingException e) {
+                throw new VppException(readerName + ": output is not "
+                    + "encodable as " + options.getOutputEncoding());
+            } catch (final IOException e) {
+                throw new VppException("unable to write output ("
+                    + e.getMessage() + ")");
+            }
+        }
+        stats.addRenderNanos(System.nanoTime() - renderStartNanos);
+    }
+
+    /**
+     * Renders standard input in chunks, each of which is parsed without being
+     * cached, rendered with the given context and flushed to the given writer
+     * before the next chunk is read.
+     *
+     * @see StreamChunker
+     */
+    private void renderStream(VppOptionsSnapshot options, Context context,
+            Writer writer, OutputStats stats) throws VppException {
+        final Charset charset = options.getInputCharset();
+        final CharsetDecoder decoder =
+            charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        final StreamChunker chunker =
+            new StreamChunker(new InputStreamReader(this.getStandardInput(),
+                decoder), options.getStreamDelimiter(),
+                StreamChunker.DEFAULT_TARGET_LENGTH);
+        final VppEngine engine = this.getEngine();
+
+        while (true) {
+            final long loadStartNanos = System.nanoTime();
+            final String chunk;
+            try {
+                chunk = chunker.nextChunk();
+            } catch (final CharacterCodingException e) {
+                throw new VppException("unable to read input file: "
+                    + "<standard input> (not valid " + charset.name() + ")");
+            } catch (final IOException e) {
+                throw new VppException("unable to read input file: "
+                    + "<standard input> (" + e.getMessage() + ")");
+            }
+            if (chunk == null) {
+                break;
+            }
+
+            final String readerName =
+                "<standard input>, chunk at line "
+                    + chunker.getChunkLineNumber();
+            final TemplateSource source = TemplateSource.fromString(chunk);
+            final long parseStartNanos = System.nanoTime();
+            stats.addLoad(parseStartNanos - loadStartNanos,
+                source.getNumBytes());
+
+            try {
+                final Template template;
+                try {
+                    template = engine.parseTemplate(readerName, source);
+                } finally {
+                    stats.addParse(System.nanoTime() - parseStartNanos, false);
                 }
+
+                final long renderStartNanos = System.nanoTime();
+                template.merge(context, writer);
+                writer.flush();
+                stats.addRenderNanos(System.nanoTime() - renderStartNanos);
+            } catch (final VelocityException e) {
+                throw createRenderException(options, readerName, e);
+            } catch (final IOException e) {
+                throw new VppException("unable to write output ("
+                    + e.getMessage() + ")");
+            }
+        }
+    }
+
+    private static VppException createRenderException(
+            VppOptionsSnapshot options, String readerName,
+            VelocityException e) {
+        if (e.getCause() instanceof CharacterCodingException) {
+            return new VppException(readerName + ": output is not "
+                + "encodable as " + options.getOutputEncoding());
+        }
+        return new VppException(readerName + ": " + e.getMessage());
+    }
+
+    /**
+     * Opens a writer to an output file or, if the output file is null, to
+     * standard output, which encodes characters with the output encoding. If a
+     * message digest is given then it is updated with every byte written to
+     * the output file.
+     */
+    private ChannelWriter openWriter(VppOptionsSnapshot options,
+            File outFile, MessageDigest digest) throws VppException {
+        final Charset charset = options.getOutputCharset();
+        final ChannelWriter writer;
+        if (outFile == null) {
+            writer =
+                new ChannelWriter(Channels.newChannel(this.getStandardOutput()),
+                    false, charset, digest);
+        } else {
+            try {
+                final FileChannel channel =
+                    new FileOutputStream(outFile).getChannel();
+                writer = new ChannelWriter(channel, true, charset, digest);
             } catch (final IOException e) {
-                throw new VppException("unable to close output file: "
-                    + writerName + " (" + e.getMessage() + ")");
+                throw new VppException("unable to open file for writing: "
+                    + outFile.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+        return writer;
+    }
+
+    private static void closeWriter(VppOptionsSnapshot options,
+            Writer writer, File outFile) throws VppException {
+        try {
+            writer.close();
+        } catch (final CharacterCodingException e) {
+            throw new VppException("unable to write output file: "
+                + getWriterName(outFile) + " (output is not encodable as "
+                + options.getOutputEncoding() + ")");
+        } catch (final IOException e) {
+            throw new VppException("unable to close output file: "
+                + getWriterName(outFile) + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private static String getReaderName(File inFile) {
+        return (inFile == null) ? "<standard input>" : inFile.getPath();
+    }
+
+    private static String getWriterName(File outFile) {
+        return (outFile == null) ? "<standard output>" : outFile.getPath();
+    }
+
+    /**
+     * An input file found by expanding the input paths, with its rendering
+     * task or the reason that it was not rendered.
+     */
+    private static class PendingOutput {
+
+        public final File inFile;
+        public final OutputStats stats;
+        public Future<Void> future;
+        public String error;
+
+        public PendingOutput(File inFile, OutputStats stats) {
+            this.inFile = inFile;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * The defines of a run.
+     */
+    private static class Defines {
+
+        /**
+         * The context of the defines, to which the context of every render
+         * chains.
+         */
+        public final DefinesContext context;
+
+        /**
+         * The digest of the defines that is recorded in the manifest; null if
+         * the build is not incremental.
+         */
+        public final String digest;
+
+        public Defines(DefinesContext context, String digest) {
+            this.context = context;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Renders one input file to one output file; used to process input files
+     * concurrently.
+     */
+    private class RenderFileTask implements Callable<Void> {
+
+        private final VppOptionsSnapshot options;
+        private final File inFile;
+        private final File outFile;
+        private final BuildManifest manifest;
+        private final Defines defines;
+        private final OutputStats stats;
+
+        public RenderFileTask(VppOptionsSnapshot options, File inFile,
+                File outFile, BuildManifest manifest, Defines defines,
+                OutputStats stats) {
+            this.options = options;
+            this.inFile = inFile;
+            this.outFile = outFile;
+            this.manifest = manifest;
+            this.defines = defines;
+            this.stats = stats;
+        }
+
+        public Void call() throws VppException {
+            renderOutput(this.options, new File[] { this.inFile },
+                this.outFile, this.manifest, this.defines, this.stats);
+            return null;
+        }
+    }
+
+    /**
+     * An input file that has been read and, if it contains Velocity syntax,
+     * parsed.
+     */
+    private static class LoadedInput {
+
+        public final TemplateSource source;
+
+        /**
+         * The parsed template; null if the input file contains no Velocity
+         * syntax.
+         */
+        public final Template template;
+
+        /**
+         * The state of the input file as it was loaded; null for standard
+         * input.
+         */
+        public final BuildManifest.FileState state;
+
+        public LoadedInput(TemplateSource source, Template template,
+                BuildManifest.FileState state) {
+            this.source = source;
+            this.template = template;
+            this.state = state;
+        }
+    }
+
+    /**
+     * The output of one input file rendered into a private buffer.
+     */
+    private static class RenderedInput {
+
+        public final SpillBuffer buffer;
+        public final OutputStats stats;
+
+        /**
+         * The templates loaded while rendering; null if they are not
+         * recorded.
+         */
+        public final DependencyRecorder recorder;
+
+        public RenderedInput(SpillBuffer buffer, OutputStats stats,
+                DependencyRecorder recorder) {
+            this.buffer = buffer;
+            this.stats = stats;
+            this.recorder = recorder;
+        }
+    }
+
+    /**
+     * Renders one input file of a concatenated output into a private buffer;
+     * used to render the input files of one output concurrently.
+     */
+    private class RenderInputTask implements Callable<RenderedInput> {
+
+        private final VppOptionsSnapshot options;
+        private final File inFile;
+        private final LoadedInput input;
+        private final File outFile;
+        private final Defines defines;
+        private final boolean recordDependencies;
+
+        public RenderInputTask(VppOptionsSnapshot options, File inFile,
+                LoadedInput input, File outFile, Defines defines,
+                boolean recordDependencies) {
+            this.options = options;
+            this.inFile = inFile;
+            this.input = input;
+            this.outFile = outFile;
+            this.defines = defines;
+            this.recordDependencies = recordDependencies;
+        }
+
+        public RenderedInput call() throws VppException {
+            final OutputStats stats =
+                createOutputStats(new File[] { this.inFile }, this.outFile);
+            final Context context = createContext(this.defines.context);
+            DependencyRecorder recorder = null;
+            if (this.recordDependencies) {
+                recorder =
+                    new DependencyRecorder(getEngine().getTemplateRoot());
+                recorder.attachTo(context);
+            }
+
+            final SpillBuffer buffer = new SpillBuffer();
+            boolean success = false;
+            try {
+                final ChannelWriter writer =
+                    new ChannelWriter(Channels.newChannel(buffer), false,
+                        this.options.getOutputCharset(), null);
+                try {
+                    renderInput(this.options, this.input,
+                        getReaderName(this.inFile), context, writer, stats);
+                } finally {
+                    closeWriter(this.options, writer, this.outFile);
+                }
+                success = true;
+                return new RenderedInput(buffer, stats, recorder);
+            } finally {
+                if (!success) {
+                    discard(buffer);
+                }
             }
         }
     }
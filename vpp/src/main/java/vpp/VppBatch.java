@@ -0,0 +1,522 @@
+/*
+ * VppBatch.java
+ * By: Denver Coneybeare
+ * Oct 15, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import vpp.util.JsonParser;
+
+/**
+ * Runs many jobs, each of which renders its own inputs to its own output with
+ * its own defines, with one engine.
+ * <p>
+ * Each job's options are a copy of the base options given to the constructor
+ * with the job's input paths, output and defines applied on top. Jobs are
+ * usually read from a batch file by {@link #readJobs(File, File)}, which
+ * contains one JSON object per line, for example:
+ *
+ * <pre>
+ * {"input": "page.vm", "output": "en/page.html", "defines": {"lang": "en"}}
+ * {"input": ["a.vm", "b.vm"], "output": "fr/b.html", "defines": {"lang": "fr"}}
+ * </pre>
+ *
+ * The members of a job are "input" (a path or an array of paths, which replace
+ * the input paths of the base options), "output" (an output path) or
+ * "outputDirectory" (an output directory), which replace the output of the
+ * base options, and "defines" (an object whose members are set as defines;
+ * their values must be strings, numbers, booleans or null). Every job must end
+ * up with at least one input path and either an output path or an output
+ * directory. Blank lines and lines that start with "#" are ignored.
+ * <p>
+ * Because every job shares one engine, each template is parsed once no matter
+ * how many jobs render it. The jobs are run concurrently by as many threads as
+ * the base options allow jobs (see {@link VppOptions#getJobs()}), which are
+ * virtual threads if the base options say so (see
+ * {@link VppOptions#isVirtualThreads()}), and each job processes its own input
+ * files serially. If the base options specify a
+ * manifest path then the manifest is loaded once, shared by every job, and
+ * saved once every job has finished. Likewise, the defines of the base options
+ * are shared by every job that is read from a batch file rather than copied
+ * into each job's options: each such job holds only its own defines, which
+ * are layered over the shared defines when the job is rendered.
+ * <p>
+ * The jobs of this class may be read by any thread, but {@link #run()} must
+ * not be invoked concurrently with itself or with reading jobs.
+ */
+public class VppBatch {
+
+    private final VppOptions baseOptions;
+    private final List<Job> jobs;
+    private final List<VppListener> listeners;
+    private VppEngine engine;
+
+    /**
+     * Creates a new instance of <code>VppBatch</code>, which creates its own
+     * engine when first run.
+     *
+     * @param baseOptions the options that each job's options are applied to;
+     * they are copied when each job is added
+     * @throws NullPointerException if baseOptions==null
+     */
+    public VppBatch(VppOptions baseOptions) {
+        this(baseOptions, null);
+    }
+
+    /**
+     * Creates a new instance of <code>VppBatch</code> that uses the given
+     * engine.
+     *
+     * @param baseOptions the options that each job's options are applied to;
+     * they are copied when each job is added
+     * @param engine the engine to use; may be null, in which case an engine
+     * is created as described by {@link Vpp#Vpp(VppOptions, VppEngine)}
+     * @throws NullPointerException if baseOptions==null
+     */
+    public VppBatch(VppOptions baseOptions, VppEngine engine) {
+        if (baseOptions == null) {
+            throw new NullPointerException("baseOptions==null");
+        }
+        this.baseOptions = baseOptions;
+        this.engine = engine;
+        this.jobs = new ArrayList<Job>();
+        this.listeners = new CopyOnWriteArrayList<VppListener>();
+    }
+
+    /**
+     * Adds a listener that receives the statistics of every output rendered by
+     * subsequent invocations of {@link #run()}, and then the statistics of
+     * the whole batch.
+     *
+     * @param listener the listener to add
+     * @throws NullPointerException if listener==null
+     */
+    public void addListener(VppListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener==null");
+        }
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener that was added by {@link #addListener(VppListener)}.
+     * If the given listener was not added then this method does nothing.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeListener(VppListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Returns the engine used by this object, creating it if this is the first
+     * invocation and no engine was given to the constructor.
+     *
+     * @return the engine used by this object; never returns null
+     */
+    public synchronized VppEngine getEngine() {
+        if (this.engine == null) {
+            this.engine = Vpp.createEngine(this.baseOptions);
+        }
+        return this.engine;
+    }
+
+    /**
+     * Adds a job.
+     *
+     * @param name the name of the job, which prefixes its error messages
+     * @param options the complete options of the job, which are copied
+     * @throws NullPointerException if name==null or options==null
+     */
+    public synchronized void addJob(String name, VppOptions options) {
+        if (name == null) {
+            throw new NullPointerException("name==null");
+        }
+        this.jobs.add(new Job(name, new VppOptions(options), false));
+    }
+
+    /**
+     * Returns the number of jobs that have been added.
+     *
+     * @return the number of jobs that have been added
+     */
+    public synchronized int getNumJobs() {
+        return this.jobs.size();
+    }
+
+    /**
+     * Reads the jobs of a batch file, encoded in UTF-8, and adds them to this
+     * object.
+     *
+     * @param file the batch file
+     * @param baseDirectory the directory against which relative paths in the
+     * batch file are resolved; may be null to leave them relative to the
+     * current directory
+     * @throws VppException if reading the file fails or if any of its jobs is
+     * invalid, in which case none of its jobs are added
+     * @throws NullPointerException if file==null
+     */
+    public void readJobs(File file, File baseDirectory) throws VppException {
+        final Reader reader;
+        try {
+            reader =
+                new InputStreamReader(new FileInputStream(file), "UTF-8");
+        } catch (final FileNotFoundException e) {
+            throw new VppException("unable to open batch file: "
+                + file.getPath() + " (" + e.getMessage() + ")");
+        } catch (final IOException e) {
+            throw new VppException("unable to read batch file: "
+                + file.getPath() + " (" + e.getMessage() + ")");
+        }
+        try {
+            this.readJobs(reader, file.getPath(), baseDirectory);
+        } finally {
+            try {
+                reader.close();
+            } catch (final IOException e) {
+                // nothing to do; the file was only read
+            }
+        }
+    }
+
+    /**
+     * Reads the jobs of a batch file and adds them to this object.
+     *
+     * @param reader the reader from which to read the batch file; it is not
+     * closed by this method
+     * @param name the name of the batch file, which prefixes error messages
+     * @param baseDirectory the directory against which relative paths in the
+     * batch file are resolved; may be null to leave them relative to the
+     * current directory
+     * @throws VppException if reading fails or if any of the jobs is invalid,
+     * in which case none of the jobs are added
+     * @throws NullPointerException if reader==null or name==null
+     */
+    public void readJobs(Reader reader, String name, File baseDirectory)
+            throws VppException {
+        final List<Job> newJobs = new ArrayList<Job>();
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        int lineNumber = 0;
+        try {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                lineNumber++;
+                final String trimmedLine = line.trim();
+                if (trimmedLine.length() == 0 || trimmedLine.startsWith("#")) {
+                    continue;
+                }
+                final String jobName = name + ":" + lineNumber;
+                newJobs.add(new Job(jobName, this.parseJob(jobName,
+                    trimmedLine, baseDirectory), true));
+            }
+        } catch (final IOException e) {
+            throw new VppException("unable to read batch file: " + name
+                + " (" + e.getMessage() + ")");
+        }
+
+        synchronized (this) {
+            this.jobs.addAll(newJobs);
+        }
+    }
+
+    private VppOptions parseJob(String jobName, String line,
+            File baseDirectory) throws VppException {
+        final Object value;
+        try {
+            value = JsonParser.parse(line);
+        } catch (final ParseException e) {
+            throw new VppException(jobName + ": invalid JSON ("
+                + e.getMessage() + ")");
+        }
+        if (!(value instanceof Map)) {
+            throw new VppException(jobName + ": a job must be a JSON object");
+        }
+
+        // the defines of the base options are layered under those of the job
+        // when it is run rather than copied into it
+        final VppOptions options = new VppOptions(this.baseOptions);
+        options.clearDefines();
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            final String key = (String) entry.getKey();
+            final Object member = entry.getValue();
+            if (key.equals("input")) {
+                for (final String path : options.getInputPaths()) {
+                    options.removeInputPath(path);
+                }
+                if (member instanceof List) {
+                    for (final Object element : (List<?>) member) {
+                        options.addInputPath(resolvePath(baseDirectory,
+                            getString(jobName, key, element)));
+                    }
+                } else {
+                    options.addInputPath(resolvePath(baseDirectory,
+                        getString(jobName, key, member)));
+                }
+            } else if (key.equals("output")) {
+                options.setOutputPath(resolvePath(baseDirectory,
+                    getString(jobName, key, member)));
+                options.setOutputDirectory(null);
+            } else if (key.equals("outputDirectory")) {
+                options.setOutputDirectory(resolvePath(baseDirectory,
+                    getString(jobName, key, member)));
+                options.setOutputPath(null);
+            } else if (key.equals("defines")) {
+                if (!(member instanceof Map)) {
+                    throw new VppException(jobName
+                        + ": \"defines\" must be a JSON object");
+                }
+                for (final Map.Entry<?, ?> define : ((Map<?, ?>) member)
+                    .entrySet()) {
+                    options.setDefine((String) define.getKey(),
+                        getDefineValue(jobName, define.getValue()));
+                }
+            } else {
+                throw new VppException(jobName + ": unknown job member: "
+                    + key);
+            }
+        }
+
+        if (options.getNumInputPaths() == 0) {
+            throw new VppException(jobName + ": no input paths");
+        } else if (options.getOutputPath() == null
+            && options.getOutputDirectory() == null) {
+            throw new VppException(jobName
+                + ": no output path or output directory");
+        }
+        options.setJobs(1);
+        return options;
+    }
+
+    private static String getString(String jobName, String key, Object value)
+            throws VppException {
+        if (!(value instanceof String)) {
+            throw new VppException(jobName + ": \"" + key
+                + "\" must be a string");
+        }
+        return (String) value;
+    }
+
+    private static String getDefineValue(String jobName, Object value)
+            throws VppException {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        throw new VppException(jobName + ": define values must be strings, "
+            + "numbers, booleans or null");
+    }
+
+    private static String resolvePath(File baseDirectory, String path) {
+        if (baseDirectory == null || new File(path).isAbsolute()) {
+            return path;
+        }
+        return new File(baseDirectory, path).getPath();
+    }
+
+    /**
+     * Runs every job that has been added.
+     *
+     * @throws VppException if loading or saving the manifest fails, or if any
+     * job fails; every job is run even if others fail, and the exception
+     * describes all of the failures
+     */
+    public void run() throws VppException {
+        final long startNanos = System.nanoTime();
+        final List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<Job>(this.jobs);
+        }
+        final List<List<OutputStats>> jobOutputs =
+            new ArrayList<List<OutputStats>>(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            jobOutputs.add(new ArrayList<OutputStats>());
+        }
+
+        try {
+            final VppEngine engine = this.getEngine();
+            final String manifestPath = this.baseOptions.getManifestPath();
+            final BuildManifest manifest =
+                (manifestPath == null) ? null : BuildManifest.load(new File(
+                    manifestPath));
+            try {
+                this.runJobs(jobs, engine, manifest, jobOutputs);
+            } finally {
+                if (manifest != null) {
+                    manifest.save();
+                }
+            }
+        } finally {
+            if (!this.listeners.isEmpty()) {
+                final List<OutputStats> outputs = new ArrayList<OutputStats>();
+                for (final List<OutputStats> jobOutput : jobOutputs) {
+                    synchronized (jobOutput) {
+                        outputs.addAll(jobOutput);
+                    }
+                }
+                final RunStats stats =
+                    new RunStats(System.nanoTime() - startNanos, outputs);
+                for (final VppListener listener : this.listeners) {
+                    listener.runFinished(stats);
+                }
+            }
+        }
+    }
+
+    private void runJobs(List<Job> jobs, VppEngine engine,
+            BuildManifest manifest, List<List<OutputStats>> jobOutputs)
+            throws VppException {
+        final List<String> errors = new ArrayList<String>();
+        final DefinesContext baseDefines =
+            Vpp.createDefinesContext(this.baseOptions.snapshot(),
+                engine.getDefineFileCache(), null);
+        final int numThreads =
+            Math.min(this.baseOptions.getJobs(), jobs.size());
+        if (numThreads <= 1) {
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    this.createTask(jobs.get(i), engine, manifest,
+                        baseDefines, jobOutputs.get(i)).call();
+                } catch (final VppException e) {
+                    errors.add(jobs.get(i).name + ": " + e.getMessage());
+                }
+            }
+        } else {
+            final ExecutorService executor =
+                RenderExecutors.newExecutor(numThreads,
+                    this.baseOptions.isVirtualThreads());
+            try {
+                final List<Future<Void>> futures =
+                    new ArrayList<Future<Void>>(jobs.size());
+                for (int i = 0; i < jobs.size(); i++) {
+                    futures.add(executor.submit(this.createTask(jobs.get(i),
+                        engine, manifest, baseDefines, jobOutputs.get(i))));
+                }
+
+                // wait in submission order so that errors are reported in the
+                // same order as they would be by a serial run
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (final ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        errors.add(jobs.get(i).name
+                            + ": "
+                            + ((cause instanceof VppException) ? cause
+                                .getMessage() : cause.toString()));
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VppException("interrupted while waiting for "
+                    + "jobs to be processed");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if (errors.size() == 1) {
+            throw new VppException(errors.get(0));
+        } else if (errors.size() > 1) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(errors.size()).append(" of ").append(jobs.size());
+            sb.append(" jobs failed:");
+            for (final String error : errors) {
+                sb.append("\n  ").append(error);
+            }
+            throw new VppException(sb.toString());
+        }
+    }
+
+    /**
+     * Creates the task that runs a job, forwarding the statistics of its
+     * outputs to the listeners of this object and collecting them in the
+     * given list.
+     */
+    private JobTask createTask(Job job, VppEngine engine,
+            BuildManifest manifest, DefinesContext baseDefines,
+            final List<OutputStats> outputs) {
+        final Vpp vpp = new Vpp(job.options, engine);
+        vpp.setSharedManifest(manifest);
+        if (job.layered) {
+            vpp.setBaseDefines(baseDefines);
+        }
+        if (!this.listeners.isEmpty()) {
+            vpp.addListener(new VppListener() {
+                public void outputFinished(OutputStats stats) {
+                    synchronized (outputs) {
+                        outputs.add(stats);
+                    }
+                    for (final VppListener listener : listeners) {
+                        listener.outputFinished(stats);
+                    }
+                }
+
+                public void runFinished(RunStats stats) {
+                    // the statistics of the batch are given to the listeners
+                    // once every job has finished
+                }
+            });
+        }
+        return new JobTask(vpp);
+    }
+
+    /**
+     * Runs one job; used to run jobs concurrently.
+     */
+    private static class JobTask implements Callable<Void> {
+
+        private final Vpp vpp;
+
+        public JobTask(Vpp vpp) {
+            this.vpp = vpp;
+        }
+
+        public Void call() throws VppException {
+            this.vpp.run();
+            return null;
+        }
+    }
+
+    /**
+     * A job of the batch.
+     */
+    private static class Job {
+
+        public final String name;
+        public final VppOptions options;
+
+        /**
+         * Whether the options hold only the job's own defines, which are
+         * layered over the defines of the base options.
+         */
+        public final boolean layered;
+
+        public Job(String name, VppOptions options, boolean layered) {
+            this.name = name;
+            this.options = options;
+            this.layered = layered;
+        }
+    }
+}
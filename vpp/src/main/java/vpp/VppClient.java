@@ -0,0 +1,140 @@
+/*
+ * VppClient.java
+ * By: Denver Coneybeare
+ * Oct 02, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * A client of {@link VppServer}, which forwards a command line to a running
+ * daemon instead of running it in this Java Virtual Machine.
+ */
+class VppClient {
+
+    /**
+     * The number of milliseconds to wait for a connection to the daemon.
+     */
+    static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+
+    /**
+     * The number of milliseconds to wait for the next bytes of the response,
+     * which includes the time taken by the daemon to run the command line.
+     */
+    static final int READ_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final int port;
+    private final File tokenFile;
+
+    /**
+     * Creates a new instance of <code>VppClient</code> that reads the token of
+     * the daemon from the default token file for the given port.
+     *
+     * @param port the port on which the daemon listens
+     */
+    public VppClient(int port) {
+        this(port, VppServer.getDefaultTokenFile(port));
+    }
+
+    /**
+     * Creates a new instance of <code>VppClient</code>.
+     *
+     * @param port the port on which the daemon listens
+     * @param tokenFile the file to which the daemon wrote its token
+     * @throws NullPointerException if tokenFile==null
+     */
+    public VppClient(int port, File tokenFile) {
+        if (tokenFile == null) {
+            throw new NullPointerException("tokenFile==null");
+        }
+        this.port = port;
+        this.tokenFile = tokenFile;
+    }
+
+    /**
+     * Forwards a command line to the daemon and waits for it to be run.
+     *
+     * @param args the command-line arguments
+     * @param workingDirectory the directory against which the daemon resolves
+     * relative paths
+     * @param stdout the stream to which to write the output that the daemon
+     * would have written to standard output
+     * @param stderr the stream to which to write the error message returned by
+     * the daemon, if any
+     * @return the exit code returned by the daemon
+     * @throws ConnectException if no daemon is running
+     * @throws IOException if communicating with the daemon fails
+     */
+    public int forward(String[] args, File workingDirectory,
+            OutputStream stdout, PrintStream stderr) throws IOException {
+        final byte[] token;
+        try {
+            token = VppServer.readTokenFile(this.tokenFile);
+        } catch (final NoSuchFileException e) {
+            throw new ConnectException("daemon token file not found: "
+                + this.tokenFile.getPath());
+        }
+
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress
+                .getByName("127.0.0.1"), this.port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+
+            final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(socket
+                    .getOutputStream()));
+            out.writeInt(VppServer.PROTOCOL_VERSION);
+            out.write(token);
+            VppServer.writeString(out, workingDirectory.getPath());
+            out.writeInt(args.length);
+            for (final String arg : args) {
+                VppServer.writeString(out, arg);
+            }
+            out.flush();
+
+            final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(socket
+                    .getInputStream()));
+            final int exitCode = in.readInt();
+            final String message = VppServer.readString(in);
+            final long stdoutLength = in.readLong();
+            final byte[] buffer = new byte[8192];
+            long remaining = stdoutLength;
+            while (remaining > 0) {
+                final int numRead = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, remaining));
+                if (numRead < 0) {
+                    throw new IOException("connection closed by daemon");
+                }
+                stdout.write(buffer, 0, numRead);
+                remaining -= numRead;
+            }
+            stdout.flush();
+
+            if (message.length() > 0) {
+                stderr.println("ERROR: " + message);
+            }
+            return exitCode;
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * VppEngine.java
+ * By: Denver Coneybeare
+ * Oct 02, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeInstance;
+
+/**
+ * An initialized Velocity engine and its template cache, which may be shared
+ * by any number of instances of {@link Vpp}.
+ * <p>
+ * Initializing a Velocity engine builds its resource loaders, directive tables
+ * and introspection caches, which is expensive relative to rendering a small
+ * template. Applications that create many instances of {@link Vpp}, or that
+ * invoke {@link Vpp#run()} many times, should create one instance of this class
+ * and give it to each instance of {@link Vpp} so that this cost is paid once
+ * and so that the parsed templates and introspection results are reused.
+ * <p>
+ * Instances of this class are immutable, apart from their caches, and are
+ * thread-safe; they may be used by any number of threads concurrently.
+ */
+public class VppEngine {
+
+    private final RuntimeInstance runtime;
+    private final String configKey;
+    private final File templateRoot;
+    private final TemplateCache templateCache;
+    private final DefineFileCache defineFileCache;
+
+    /**
+     * Creates and initializes a new instance of <code>VppEngine</code> whose
+     * template root is the current directory and which has its own template
+     * cache with the default limits.
+     */
+    public VppEngine() {
+        this(new File("."));
+    }
+
+    /**
+     * Creates and initializes a new instance of <code>VppEngine</code> which
+     * has its own template cache with the default limits.
+     *
+     * @param templateRoot the directory relative to which the paths given to
+     * the <code>#parse</code> and <code>#include</code> directives are
+     * resolved
+     * @throws NullPointerException if templateRoot==null
+     */
+    public VppEngine(File templateRoot) {
+        this(templateRoot, new TemplateCache(), null);
+    }
+
+    /**
+     * Creates and initializes a new instance of <code>VppEngine</code>.
+     *
+     * @param templateRoot the directory relative to which the paths given to
+     * the <code>#parse</code> and <code>#include</code> directives are
+     * resolved
+     * @param templateCache the cache of parsed templates to use; may be shared
+     * by other instances of this class, since templates parsed by engines with
+     * different configurations are never shared
+     * @param properties Velocity configuration properties that override those
+     * set by this class; may be null
+     * @throws NullPointerException if templateRoot==null or
+     * templateCache==null
+     */
+    public VppEngine(File templateRoot, TemplateCache templateCache,
+            Properties properties) {
+        if (templateRoot == null) {
+            throw new NullPointerException("templateRoot==null");
+        } else if (templateCache == null) {
+            throw new NullPointerException("templateCache==null");
+        }
+        this.templateRoot = templateRoot;
+        this.templateCache = templateCache;
+        this.defineFileCache = new DefineFileCache();
+
+        final Properties allProperties = createDefaultProperties(templateRoot);
+        if (properties != null) {
+            for (final String name : properties.stringPropertyNames()) {
+                allProperties.setProperty(name, properties.getProperty(name));
+            }
+        }
+
+        this.runtime = new RuntimeInstance();
+        this.runtime.init(allProperties);
+        this.configKey = createConfigKey(allProperties);
+    }
+
+    /**
+     * Creates the Velocity configuration properties used by default. Templates
+     * loaded by <code>#parse</code> and <code>#include</code> are decoded with
+     * the default encoding of input files rather than with Velocity's default
+     * encoding, are cached by the resource manager and are only checked for
+     * modification every couple of seconds, the pool of parsers is large
+     * enough that concurrent renders do not have to create throw-away
+     * parsers, and references are resolved by {@link FastUberspect}.
+     */
+    private static Properties createDefaultProperties(File templateRoot) {
+        final int numProcessors = Runtime.getRuntime().availableProcessors();
+        final Properties properties = new Properties();
+        properties.setProperty("file.resource.loader.path",
+            templateRoot.getPath());
+        properties.setProperty("input.encoding", VppOptions.DEFAULT_ENCODING);
+        properties.setProperty("file.resource.loader.cache", "true");
+        properties.setProperty(
+            "file.resource.loader.modificationCheckInterval", "2");
+        properties.setProperty("resource.manager.defaultcache.size",
+            String.valueOf(TemplateCache.DEFAULT_MAX_ENTRIES));
+        properties.setProperty("parser.pool.size",
+            String.valueOf(Math.max(20, numProcessors * 2)));
+        properties.setProperty("runtime.introspection.uberspect",
+            FastUberspect.class.getName());
+        return properties;
+    }
+
+    /**
+     * Creates a string that uniquely identifies the given engine properties,
+     * for use as the "config key" of the template cache.
+     */
+    private static String createConfigKey(Properties properties) {
+        final Map<String, String> sortedProperties =
+            new TreeMap<String, String>();
+        for (final String name : properties.stringPropertyNames()) {
+            sortedProperties.put(name, properties.getProperty(name));
+        }
+        return sortedProperties.toString();
+    }
+
+    /**
+     * Returns the parsed template for the given template text, parsing it only
+     * if it is not already in this engine's template cache.
+     *
+     * @param name the name of the template, which is used in error messages;
+     * a cached template keeps the name with which it was parsed
+     * @param text the text of the template
+     * @return the parsed template, which may be merged concurrently by multiple
+     * threads; never returns null
+     * @throws ParseErrorException if the template fails to parse
+     * @throws NullPointerException if name==null or text==null
+     * @see TemplateCache#getTemplate
+     */
+    public Template getTemplate(String name, String text)
+            throws ParseErrorException {
+        return this.templateCache.getTemplate(this.runtime, this.configKey,
+            name, text);
+    }
+
+    /**
+     * Returns the parsed template for the given template source, parsing it
+     * only if it is not already in this engine's template cache.
+     *
+     * @param name the name of the template, which is used in error messages;
+     * a cached template keeps the name with which it was parsed
+     * @param source the text of the template
+     * @return the parsed template, which may be merged concurrently by multiple
+     * threads; never returns null
+     * @throws ParseErrorException if the template fails to parse
+     * @throws NullPointerException if name==null or source==null
+     * @see TemplateCache#getTemplate
+     */
+    public Template getTemplate(String name, TemplateSource source)
+            throws ParseErrorException {
+        return this.templateCache.getTemplate(this.runtime, this.configKey,
+            name, source);
+    }
+
+    /**
+     * Parses a template without looking it up in or adding it to this
+     * engine's template cache; used for templates that are unlikely to be
+     * rendered again, so that they do not evict those that are.
+     *
+     * @param name the name of the template, which is used in error messages
+     * @param source the text of the template
+     * @return the parsed template; never returns null
+     * @throws ParseErrorException if the template fails to parse
+     * @throws NullPointerException if name==null or source==null
+     */
+    public Template parseTemplate(String name, TemplateSource source)
+            throws ParseErrorException {
+        return TemplateCache.parse(this.runtime, name, source);
+    }
+
+    /**
+     * Returns the parsed template for the given template source if it is in
+     * this engine's template cache.
+     *
+     * @param source the text of the template
+     * @return the parsed template, which has the name with which it was
+     * parsed, or null if it is not cached
+     * @throws NullPointerException if source==null
+     * @see TemplateCache#getCachedTemplate
+     */
+    public Template getCachedTemplate(TemplateSource source) {
+        return this.templateCache.getCachedTemplate(this.configKey, source);
+    }
+
+    /**
+     * Returns the Velocity runtime of this engine.
+     *
+     * @return the Velocity runtime of this engine, which is initialized; never
+     * returns null
+     */
+    public RuntimeInstance getRuntime() {
+        return this.runtime;
+    }
+
+    /**
+     * Returns a string that uniquely identifies the configuration of this
+     * engine.
+     *
+     * @return a string that uniquely identifies the configuration of this
+     * engine; never returns null
+     */
+    public String getConfigKey() {
+        return this.configKey;
+    }
+
+    /**
+     * Returns the cache of parsed define files used with this engine, so that
+     * every run that uses this engine shares the define files that it loads.
+     *
+     * @return the cache of parsed define files; never returns null
+     */
+    DefineFileCache getDefineFileCache() {
+        return this.defineFileCache;
+    }
+
+    /**
+     * Returns the cache of parsed templates used by this engine.
+     *
+     * @return the object that was given to the constructor for the
+     * "templateCache" parameter, or the template cache created by the
+     * constructor; never returns null
+     */
+    public TemplateCache getTemplateCache() {
+        return this.templateCache;
+    }
+
+    /**
+     * Returns the directory relative to which the paths given to the
+     * <code>#parse</code> and <code>#include</code> directives are resolved.
+     *
+     * @return the object that was given to the constructor for the
+     * "templateRoot" parameter, or the current directory; never returns null
+     */
+    public File getTemplateRoot() {
+        return this.templateRoot;
+    }
+}
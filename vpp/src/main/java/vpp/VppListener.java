@@ -0,0 +1,39 @@
+/*
+ * VppListener.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+/**
+ * Receives timing and throughput statistics from {@link Vpp}.
+ * <p>
+ * When input files are processed concurrently, {@link #outputFinished} is
+ * invoked concurrently by the worker threads; implementations must therefore be
+ * thread-safe. Exceptions thrown by a listener are propagated to the invoker of
+ * {@link Vpp#run()}.
+ *
+ * @see Vpp#addListener(VppListener)
+ */
+public interface VppListener {
+
+    /**
+     * Invoked when an output file, or standard output, has been written,
+     * skipped because it is up to date, or has failed.
+     *
+     * @param stats the statistics of the output; never null
+     */
+    void outputFinished(OutputStats stats);
+
+    /**
+     * Invoked when {@link Vpp#run()} finishes, whether or not it succeeds.
+     *
+     * @param stats the statistics of the run, including those of every output
+     * that was given to {@link #outputFinished}; never null
+     */
+    void runFinished(RunStats stats);
+}
@@ -9,7 +9,9 @@
  */
 package vpp;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,25 +23,191 @@ import java.util.Map;
  * instances of this class may be safely accessed concurrently from multiple
  * threads. To perform multiple operations atomically, simply synchronize on the
  * instance of this class.
+ * <p>
+ * Threads that only read options, such as rendering threads, should instead
+ * use an immutable {@link VppOptionsSnapshot} obtained from
+ * {@link #snapshot()}, which can be read without locking. The lists and map of
+ * this class are copied when they are modified after being shared with a
+ * snapshot or a copy rather than when a snapshot is taken, and the most recent
+ * snapshot is reused until the options change, so taking a snapshot of options
+ * that are rarely modified is cheap.
  */
 public class VppOptions {
 
-    private final List<String> inputPaths;
+    /**
+     * The default character encoding of input files and output files.
+     */
+    public static final String DEFAULT_ENCODING = "UTF-8";
+
+    private List<String> inputPaths;
+    private List<String> includePatterns;
+    private List<String> excludePatterns;
     private String outputPath;
-    private final Map<String, String> defines;
+    private String outputDirectory;
+    private String stripSuffix;
+    private boolean streaming;
+    private String streamDelimiter;
+    private int jobs;
+    private boolean virtualThreads;
+    private boolean keepUnchanged;
+    private String manifestPath;
+    private String inputEncoding;
+    private String outputEncoding;
+    private Map<String, String> defines;
+    private List<String> defineFiles;
+
+    /**
+     * Whether the map of defines is shared with a snapshot or with another
+     * instance of this class, and must therefore be copied before it is
+     * modified.
+     */
+    private boolean definesShared;
+
+    /**
+     * Whether the lists of input paths, include and exclude patterns and
+     * define files are shared with a snapshot or with another instance of this
+     * class, and must therefore be copied before they are modified.
+     */
+    private boolean listsShared;
+
+    /**
+     * The snapshot of the current options; null if the options changed since
+     * the most recent snapshot was taken.
+     */
+    private VppOptionsSnapshot snapshot;
 
     /**
      * Creates a new instance of <code>VppOptions</code>.
      */
     public VppOptions() {
         this.inputPaths = new ArrayList<String>();
+        this.includePatterns = new ArrayList<String>();
+        this.excludePatterns = new ArrayList<String>();
         this.defines = new HashMap<String, String>();
+        this.defineFiles = new ArrayList<String>();
+        this.jobs = 1;
+        this.inputEncoding = DEFAULT_ENCODING;
+        this.outputEncoding = DEFAULT_ENCODING;
+    }
+
+    /**
+     * Creates a new instance of <code>VppOptions</code> whose options are a
+     * copy of those of the given object. Subsequent changes to either object
+     * do not affect the other.
+     * 
+     * @param other the object whose options to copy
+     * @throws NullPointerException if other==null
+     */
+    public VppOptions(VppOptions other) {
+        synchronized (other) {
+            // the collections are shared until either object modifies them
+            this.inputPaths = other.inputPaths;
+            this.includePatterns = other.includePatterns;
+            this.excludePatterns = other.excludePatterns;
+            this.outputPath = other.outputPath;
+            this.outputDirectory = other.outputDirectory;
+            this.stripSuffix = other.stripSuffix;
+            this.streaming = other.streaming;
+            this.streamDelimiter = other.streamDelimiter;
+            this.jobs = other.jobs;
+            this.virtualThreads = other.virtualThreads;
+            this.keepUnchanged = other.keepUnchanged;
+            this.manifestPath = other.manifestPath;
+            this.inputEncoding = other.inputEncoding;
+            this.outputEncoding = other.outputEncoding;
+            this.defines = other.defines;
+            this.definesShared = true;
+            other.definesShared = true;
+            this.defineFiles = other.defineFiles;
+            this.listsShared = true;
+            other.listsShared = true;
+        }
+    }
+
+    /**
+     * Adds a file to this object's list of define files, each of whose entries
+     * is a define. The defines of a define file whose name ends with ".json"
+     * are the members of the JSON object that it contains, and keep their
+     * types: numbers, booleans, lists and maps can be used directly by
+     * <code>#foreach</code> and <code>#if</code>. Any other define file is a
+     * Java properties file whose defines are strings. The defines of later
+     * define files override those of earlier ones, and the defines set by
+     * {@link #setDefine(String, String)} override those of every define file.
+     * 
+     * @param path the path of the define file to add
+     * @throws NullPointerException if path==null
+     * @see #getDefineFiles()
+     */
+    public synchronized void addDefineFile(String path) {
+        if (path == null) {
+            throw new NullPointerException("path==null");
+        }
+        this.unshareLists();
+        this.defineFiles.add(path);
+        this.snapshot = null;
+    }
+
+    /**
+     * Adds a pattern to this object's list of exclude patterns. Files and
+     * directories found by expanding an input directory or glob pattern are
+     * skipped if they match any exclude pattern; excluded directories are not
+     * searched. Input paths that name a file are never excluded.
+     * <p>
+     * Patterns use the glob syntax described by {@link #addInputPath(String)}.
+     * A pattern that contains a "/" is matched against the path relative to
+     * the input directory, or to the directory that precedes the first
+     * wildcard of an input glob pattern; other patterns are matched against
+     * the name of the file or directory.
+     * 
+     * @param pattern the pattern to add
+     * @throws NullPointerException if pattern==null
+     * @see #getExcludePatterns()
+     * @see #addIncludePattern(String)
+     */
+    public synchronized void addExcludePattern(String pattern) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern==null");
+        }
+        this.unshareLists();
+        this.excludePatterns.add(pattern);
+        this.snapshot = null;
+    }
+
+    /**
+     * Adds a pattern to this object's list of include patterns. If any include
+     * patterns are specified then files found by expanding an input directory
+     * or glob pattern are skipped unless they match at least one of them.
+     * Input paths that name a file are always included.
+     * <p>
+     * Patterns are matched as described by {@link #addExcludePattern(String)}.
+     * 
+     * @param pattern the pattern to add
+     * @throws NullPointerException if pattern==null
+     * @see #getIncludePatterns()
+     * @see #addExcludePattern(String)
+     */
+    public synchronized void addIncludePattern(String pattern) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern==null");
+        }
+        this.unshareLists();
+        this.includePatterns.add(pattern);
+        this.snapshot = null;
     }
 
     /**
      * Adds a path to this object's list of input paths. No checking for
      * duplicates is added; therefore, if the given path is already in the list
      * then it is added again.
+     * <p>
+     * A path may name a file, a directory, or a glob pattern. A directory is
+     * expanded to every file beneath it, and a glob pattern to every file
+     * beneath the directory that precedes its first wildcard whose path
+     * matches the pattern, subject to the include and exclude patterns. In a
+     * pattern, "*" matches any characters other than "/", "**" matches any
+     * characters, "**&#47;" matches zero or more directories, "?" matches one
+     * character other than "/", "[abc]" matches one of the given characters,
+     * and "{a,b}" matches either of the comma-separated alternatives.
      * 
      * @param path the path to add
      * @throws NullPointerException if path==null
@@ -51,7 +219,24 @@ public class VppOptions {
         if (path == null) {
             throw new NullPointerException("path==null");
         }
+        this.unshareLists();
         this.inputPaths.add(path);
+        this.snapshot = null;
+    }
+
+    /**
+     * Removes all defines from this object's set of defines, and all define
+     * files from its list of define files.
+     * 
+     * @see #removeDefine(String)
+     */
+    public synchronized void clearDefines() {
+        if (!this.defines.isEmpty() || !this.defineFiles.isEmpty()) {
+            this.defines = new HashMap<String, String>();
+            this.definesShared = false;
+            this.defineFiles = new ArrayList<String>();
+            this.snapshot = null;
+        }
     }
 
     /**
@@ -72,6 +257,19 @@ public class VppOptions {
         return value;
     }
 
+    /**
+     * Returns the paths added to this object's list of define files.
+     * 
+     * @return a newly-created array whose values are the paths of the define
+     * files in the same order in which they were added; never returns null
+     * @see #addDefineFile(String)
+     */
+    public synchronized String[] getDefineFiles() {
+        final String[] array = new String[this.defineFiles.size()];
+        this.defineFiles.toArray(array);
+        return array;
+    }
+
     /**
      * Returns the keys of this object's set of defines. This method creates a
      * new array and copies each of the keys into that array and returns it. The
@@ -88,6 +286,45 @@ public class VppOptions {
         return array;
     }
 
+    /**
+     * Returns the patterns added to this object's list of exclude patterns.
+     * 
+     * @return a newly-created array whose values are the exclude patterns in
+     * the same order in which they were added; never returns null
+     * @see #addExcludePattern(String)
+     */
+    public synchronized String[] getExcludePatterns() {
+        final String[] array = new String[this.excludePatterns.size()];
+        this.excludePatterns.toArray(array);
+        return array;
+    }
+
+    /**
+     * Returns the patterns added to this object's list of include patterns.
+     * 
+     * @return a newly-created array whose values are the include patterns in
+     * the same order in which they were added; never returns null
+     * @see #addIncludePattern(String)
+     */
+    public synchronized String[] getIncludePatterns() {
+        final String[] array = new String[this.includePatterns.size()];
+        this.includePatterns.toArray(array);
+        return array;
+    }
+
+    /**
+     * Returns the character encoding of input files, which is also the
+     * character encoding of the templates loaded by the <code>#parse</code>
+     * and <code>#include</code> directives.
+     * 
+     * @return the name of the character encoding of input files; never returns
+     * null; the default is {@link #DEFAULT_ENCODING}
+     * @see #setInputEncoding(String)
+     */
+    public synchronized String getInputEncoding() {
+        return this.inputEncoding;
+    }
+
     /**
      * Returns this object's list of input paths. This method creates a new
      * array and copies each of the input paths into that array and returns it.
@@ -127,6 +364,52 @@ public class VppOptions {
         return size;
     }
 
+    /**
+     * Returns the maximum number of input files to process concurrently.
+     * 
+     * @return the maximum number of input files to process concurrently; will
+     * always be greater than or equal to 1; the default is 1
+     * @see #setJobs(int)
+     * @see #getOutputDirectory()
+     */
+    public synchronized int getJobs() {
+        return this.jobs;
+    }
+
+    /**
+     * Returns the path of the manifest file of an incremental build.
+     * 
+     * @return the path of the manifest file; may be null, which indicates that
+     * the build is not incremental and that every output is rendered
+     * @see #setManifestPath(String)
+     */
+    public synchronized String getManifestPath() {
+        return this.manifestPath;
+    }
+
+    /**
+     * Returns the output directory to use.
+     * 
+     * @return the output directory to use; may be null, which indicates that
+     * all input files are to be written to the output path instead of each
+     * input file being written to its own file in a directory
+     * @see #setOutputDirectory(String)
+     */
+    public synchronized String getOutputDirectory() {
+        return this.outputDirectory;
+    }
+
+    /**
+     * Returns the character encoding of output files and standard output.
+     * 
+     * @return the name of the character encoding of output files; never
+     * returns null; the default is {@link #DEFAULT_ENCODING}
+     * @see #setOutputEncoding(String)
+     */
+    public synchronized String getOutputEncoding() {
+        return this.outputEncoding;
+    }
+
     /**
      * Returns the output path to use.
      * 
@@ -138,6 +421,67 @@ public class VppOptions {
         return this.outputPath;
     }
 
+    /**
+     * Returns the line at which standard input is split into chunks when it is
+     * streamed.
+     * 
+     * @return the delimiter line; may be null, which indicates that standard
+     * input is split at lines at which no directive is open
+     * @see #setStreamDelimiter(String)
+     * @see #isStreaming()
+     */
+    public synchronized String getStreamDelimiter() {
+        return this.streamDelimiter;
+    }
+
+    /**
+     * Returns the suffix to remove from the names of input files to form the
+     * names of their output files when an output directory is used.
+     * 
+     * @return the suffix to remove; may be null, which indicates that output
+     * files have the same names as their input files
+     * @see #setStripSuffix(String)
+     * @see #getOutputDirectory()
+     */
+    public synchronized String getStripSuffix() {
+        return this.stripSuffix;
+    }
+
+    /**
+     * Returns whether output files whose contents would not change are left
+     * untouched.
+     * 
+     * @return true if output files whose contents would not change are left
+     * untouched, or false if every output file is replaced
+     * @see #setKeepUnchanged(boolean)
+     */
+    public synchronized boolean isKeepUnchanged() {
+        return this.keepUnchanged;
+    }
+
+    /**
+     * Returns whether standard input is streamed.
+     * 
+     * @return true if standard input is rendered in chunks as it is read, or
+     * false if it is read to its end and then rendered as one template
+     * @see #setStreaming(boolean)
+     */
+    public synchronized boolean isStreaming() {
+        return this.streaming;
+    }
+
+    /**
+     * Returns whether jobs are run on virtual threads.
+     * 
+     * @return true if each input file is rendered on a virtual thread of its
+     * own when virtual threads are supported, or false if the input files are
+     * rendered by a fixed pool of platform threads
+     * @see #setVirtualThreads(boolean)
+     */
+    public synchronized boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
     /**
      * Removes a define from this object's set of defines. If the given define
      * is not present in this object's set of defines then this method does
@@ -149,8 +493,9 @@ public class VppOptions {
      * @see #getDefineKeys()
      */
     public synchronized void removeDefine(String key) {
-        if (key != null) {
-            this.defines.remove(key);
+        if (key != null && this.defines.containsKey(key)) {
+            this.getModifiableDefines().remove(key);
+            this.snapshot = null;
         }
     }
 
@@ -169,8 +514,10 @@ public class VppOptions {
      * @see #getNumInputPaths()
      */
     public synchronized void removeInputPath(String path) {
-        if (path != null) {
+        if (path != null && this.inputPaths.contains(path)) {
+            this.unshareLists();
             this.inputPaths.remove(path);
+            this.snapshot = null;
         }
     }
 
@@ -188,7 +535,112 @@ public class VppOptions {
         if (key == null) {
             throw new NullPointerException("key==null");
         }
-        this.defines.put(key, value);
+        this.getModifiableDefines().put(key, value);
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the character encoding of input files, which is also the character
+     * encoding of the templates loaded by the <code>#parse</code> and
+     * <code>#include</code> directives.
+     * 
+     * @param encoding the name of the character encoding of input files
+     * @throws NullPointerException if encoding==null
+     * @throws IllegalArgumentException if the given encoding is not supported
+     * @see #getInputEncoding()
+     */
+    public synchronized void setInputEncoding(String encoding) {
+        this.inputEncoding = canonicalEncoding(encoding);
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the maximum number of input files to process concurrently. When
+     * input files are concatenated into one output, they are only rendered
+     * concurrently if none but the last might affect the rendering of those
+     * after it, such as by <code>#set</code>. The output produced is the same
+     * regardless of this value.
+     * 
+     * @param jobs the maximum number of input files to process concurrently
+     * @throws IllegalArgumentException if jobs&lt;1
+     * @see #getJobs()
+     * @see #setOutputDirectory(String)
+     */
+    public synchronized void setJobs(int jobs) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs<1: " + jobs);
+        }
+        this.jobs = jobs;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets whether output files whose contents would not change are left
+     * untouched. When they are, each output is still rendered to a temporary
+     * file, but the temporary file is then compared with the existing output
+     * file and discarded if their contents are the same, so that the output
+     * file keeps its modification time and the tools that rebuild whatever
+     * depends on it, such as make, do not consider it changed. The sizes of
+     * the files are compared first, so the existing output file is only read
+     * if it is the same size as the new output, and not even then if the
+     * manifest of an incremental build recorded its digest and it has not
+     * been modified since. By default, every output file is replaced.
+     * 
+     * @param keepUnchanged true to leave output files whose contents would not
+     * change untouched, false to replace every output file
+     * @see #isKeepUnchanged()
+     * @see #setManifestPath(String)
+     */
+    public synchronized void setKeepUnchanged(boolean keepUnchanged) {
+        this.keepUnchanged = keepUnchanged;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the path of the manifest file of an incremental build. If set, then
+     * the manifest file records the state of each output file and of the files
+     * and defines from which it was rendered, and an output file is only
+     * rendered if it, one of those files, or one of the defines has changed
+     * since the previous build that used the same manifest file. The manifest
+     * file is created if it does not exist.
+     * 
+     * @param path the path of the manifest file; may be null, which indicates
+     * that the build is not incremental and that every output is rendered
+     * @see #getManifestPath()
+     */
+    public synchronized void setManifestPath(String path) {
+        this.manifestPath = path;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the output directory to use. If set, then each input file is written
+     * to its own file in this directory, whose name is the name of the input
+     * file with the "strip suffix", if any, removed. An output directory may
+     * not be used together with an output path.
+     * 
+     * @param path the output directory to use; may be null, which indicates
+     * that all input files are to be written to the output path instead
+     * @see #getOutputDirectory()
+     * @see #setStripSuffix(String)
+     * @see #setJobs(int)
+     */
+    public synchronized void setOutputDirectory(String path) {
+        this.outputDirectory = path;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the character encoding of output files and standard output.
+     * 
+     * @param encoding the name of the character encoding of output files
+     * @throws NullPointerException if encoding==null
+     * @throws IllegalArgumentException if the given encoding is not supported
+     * @see #getOutputEncoding()
+     */
+    public synchronized void setOutputEncoding(String encoding) {
+        this.outputEncoding = canonicalEncoding(encoding);
+        this.snapshot = null;
     }
 
     /**
@@ -201,6 +653,147 @@ public class VppOptions {
      */
     public synchronized void setOutputPath(String path) {
         this.outputPath = path;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the line at which standard input is split into chunks when it is
+     * streamed. Each line of standard input whose text, without its line
+     * terminator, equals the delimiter ends a chunk and is not rendered.
+     * 
+     * @param delimiter the delimiter line; may be null to split standard input
+     * at lines at which no directive, comment or parenthesis is open, which is
+     * the default
+     * @see #getStreamDelimiter()
+     * @see #setStreaming(boolean)
+     */
+    public synchronized void setStreamDelimiter(String delimiter) {
+        this.streamDelimiter = delimiter;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets whether standard input is streamed. When standard input is
+     * streamed, it is split into chunks, each of which is rendered as its own
+     * template and flushed to the output as soon as it has been read, so that
+     * the output of a long stream is produced while it is still being read
+     * and only one chunk is held in memory at a time. The chunks share the
+     * values set by <code>#set</code> and the macros defined by
+     * <code>#macro</code>; however, a directive that spans chunks, such as
+     * <code>#foreach</code>, must end within the chunk in which it starts,
+     * which is always the case unless a delimiter is set. By default,
+     * standard input is read to its end and then rendered as one template.
+     * 
+     * @param streaming true to stream standard input, false to render it as
+     * one template
+     * @see #isStreaming()
+     * @see #setStreamDelimiter(String)
+     */
+    public synchronized void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets the suffix to remove from the names of input files to form the names
+     * of their output files when an output directory is used. For example, if
+     * the suffix is ".vm" then the input file "Foo.java.vm" is written to the
+     * file "Foo.java" in the output directory. Input files whose names do not
+     * end with the suffix are written to files with the same name.
+     * 
+     * @param suffix the suffix to remove; may be null, which indicates that
+     * output files have the same names as their input files
+     * @see #getStripSuffix()
+     * @see #setOutputDirectory(String)
+     */
+    public synchronized void setStripSuffix(String suffix) {
+        this.stripSuffix = suffix;
+        this.snapshot = null;
+    }
+
+    /**
+     * Sets whether jobs are run on virtual threads. When virtual threads are
+     * used, each input file is rendered on a virtual thread of its own and at
+     * most {@link #getJobs()} of them render at once; because a virtual
+     * thread that blocks while reading or writing a file does not tie up a
+     * platform thread, the number of jobs can be made large when rendering
+     * many small files. Virtual threads require Java 21 or later; on earlier
+     * versions, this option is ignored and a fixed pool of platform threads
+     * is used, which is also the default.
+     * 
+     * @param virtualThreads true to run jobs on virtual threads, false to run
+     * them on a fixed pool of platform threads
+     * @see #isVirtualThreads()
+     * @see #setJobs(int)
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        this.snapshot = null;
+    }
+
+    /**
+     * Returns a snapshot of the current options, which is not affected by
+     * subsequent changes to this object.
+     * 
+     * @return an immutable snapshot of the current options, which is the same
+     * object as was returned by the previous invocation if the options have
+     * not changed since; never returns null
+     */
+    public synchronized VppOptionsSnapshot snapshot() {
+        if (this.snapshot == null) {
+            this.snapshot =
+                new VppOptionsSnapshot(
+                    Collections.unmodifiableList(this.inputPaths),
+                    Collections.unmodifiableList(this.includePatterns),
+                    Collections.unmodifiableList(this.excludePatterns),
+                    this.outputPath,
+                    this.outputDirectory, this.stripSuffix, this.streaming,
+                    this.streamDelimiter, this.jobs, this.virtualThreads,
+                    this.keepUnchanged, this.manifestPath,
+                    this.inputEncoding, this.outputEncoding,
+                    Collections.unmodifiableMap(this.defines),
+                    Collections.unmodifiableList(this.defineFiles));
+            this.definesShared = true;
+            this.listsShared = true;
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * Returns the map of defines, first replacing it with a copy if it is
+     * shared.
+     */
+    private Map<String, String> getModifiableDefines() {
+        if (this.definesShared) {
+            this.defines = new HashMap<String, String>(this.defines);
+            this.definesShared = false;
+        }
+        return this.defines;
+    }
+
+    /**
+     * Replaces the lists with copies if they are shared, so that they can be
+     * modified.
+     */
+    private void unshareLists() {
+        if (this.listsShared) {
+            this.inputPaths = new ArrayList<String>(this.inputPaths);
+            this.includePatterns = new ArrayList<String>(this.includePatterns);
+            this.excludePatterns = new ArrayList<String>(this.excludePatterns);
+            this.defineFiles = new ArrayList<String>(this.defineFiles);
+            this.listsShared = false;
+        }
+    }
+
+    /**
+     * Returns the canonical name of the given character encoding.
+     */
+    private static String canonicalEncoding(String encoding) {
+        if (encoding == null) {
+            throw new NullPointerException("encoding==null");
+        }
+        // throws IllegalArgumentException if the encoding is not supported
+        return Charset.forName(encoding).name();
     }
 
 }
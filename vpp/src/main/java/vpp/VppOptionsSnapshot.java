@@ -0,0 +1,283 @@
+/*
+ * VppOptionsSnapshot.java
+ * By: Denver Coneybeare
+ * Oct 16, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of {@link VppOptions}, created by
+ * {@link VppOptions#snapshot()}.
+ * <p>
+ * Instances of this class are immutable; therefore, they may be shared by any
+ * number of threads, which read them without locking. The lists and map that
+ * are returned are unmodifiable and are not copied by each invocation.
+ *
+ * @see VppOptions
+ */
+public final class VppOptionsSnapshot {
+
+    private final List<String> inputPaths;
+    private final List<String> includePatterns;
+    private final List<String> excludePatterns;
+    private final String outputPath;
+    private final String outputDirectory;
+    private final String stripSuffix;
+    private final boolean streaming;
+    private final String streamDelimiter;
+    private final int jobs;
+    private final boolean virtualThreads;
+    private final boolean keepUnchanged;
+    private final String manifestPath;
+    private final String inputEncoding;
+    private final String outputEncoding;
+    private final Charset inputCharset;
+    private final Charset outputCharset;
+    private final Map<String, String> defines;
+    private final List<String> defineFiles;
+
+    /**
+     * Creates a new instance of <code>VppOptionsSnapshot</code>. The given
+     * lists and map must be unmodifiable.
+     */
+    VppOptionsSnapshot(List<String> inputPaths, List<String> includePatterns,
+            List<String> excludePatterns, String outputPath,
+            String outputDirectory, String stripSuffix, boolean streaming,
+            String streamDelimiter, int jobs, boolean virtualThreads,
+            boolean keepUnchanged, String manifestPath, String inputEncoding,
+            String outputEncoding, Map<String, String> defines,
+            List<String> defineFiles) {
+        this.inputPaths = inputPaths;
+        this.includePatterns = includePatterns;
+        this.excludePatterns = excludePatterns;
+        this.outputPath = outputPath;
+        this.outputDirectory = outputDirectory;
+        this.stripSuffix = stripSuffix;
+        this.streaming = streaming;
+        this.streamDelimiter = streamDelimiter;
+        this.jobs = jobs;
+        this.virtualThreads = virtualThreads;
+        this.keepUnchanged = keepUnchanged;
+        this.manifestPath = manifestPath;
+        this.inputEncoding = inputEncoding;
+        this.outputEncoding = outputEncoding;
+        this.inputCharset = Charset.forName(inputEncoding);
+        this.outputCharset = Charset.forName(outputEncoding);
+        this.defines = defines;
+        this.defineFiles = defineFiles;
+    }
+
+    /**
+     * Returns the value of a define.
+     *
+     * @param key the key of the define whose value to return; may be null
+     * @return the value of the given define; returns null if the define is not
+     * set, if the define is explicitly set to null, or if the given key is
+     * null
+     * @see VppOptions#getDefine(String)
+     */
+    public String getDefine(String key) {
+        return (key == null) ? null : this.defines.get(key);
+    }
+
+    /**
+     * Returns the paths of the define files.
+     *
+     * @return an unmodifiable list of the paths of the define files in the
+     * order in which they were added; never returns null
+     * @see VppOptions#getDefineFiles()
+     */
+    public List<String> getDefineFiles() {
+        return this.defineFiles;
+    }
+
+    /**
+     * Returns the defines.
+     *
+     * @return an unmodifiable map from the key of each define to its value,
+     * which may be null; never returns null
+     */
+    public Map<String, String> getDefines() {
+        return this.defines;
+    }
+
+    /**
+     * Returns the exclude patterns.
+     *
+     * @return an unmodifiable list of the exclude patterns in the order in
+     * which they were added; never returns null
+     * @see VppOptions#getExcludePatterns()
+     */
+    public List<String> getExcludePatterns() {
+        return this.excludePatterns;
+    }
+
+    /**
+     * Returns the include patterns.
+     *
+     * @return an unmodifiable list of the include patterns in the order in
+     * which they were added; never returns null
+     * @see VppOptions#getIncludePatterns()
+     */
+    public List<String> getIncludePatterns() {
+        return this.includePatterns;
+    }
+
+    /**
+     * Returns the character encoding of input files.
+     *
+     * @return the character encoding of input files; never returns null
+     * @see VppOptions#getInputEncoding()
+     */
+    public Charset getInputCharset() {
+        return this.inputCharset;
+    }
+
+    /**
+     * Returns the canonical name of the character encoding of input files.
+     *
+     * @return the canonical name of the character encoding of input files;
+     * never returns null
+     * @see VppOptions#getInputEncoding()
+     */
+    public String getInputEncoding() {
+        return this.inputEncoding;
+    }
+
+    /**
+     * Returns the input paths.
+     *
+     * @return an unmodifiable list of the input paths in the order in which
+     * they were added; never returns null, and is empty if input is to be read
+     * from standard input
+     * @see VppOptions#getInputPaths()
+     */
+    public List<String> getInputPaths() {
+        return this.inputPaths;
+    }
+
+    /**
+     * Returns the maximum number of input files to process concurrently.
+     *
+     * @return the maximum number of input files to process concurrently;
+     * always greater than or equal to 1
+     * @see VppOptions#getJobs()
+     */
+    public int getJobs() {
+        return this.jobs;
+    }
+
+    /**
+     * Returns the path of the manifest file of an incremental build.
+     *
+     * @return the path of the manifest file; may be null
+     * @see VppOptions#getManifestPath()
+     */
+    public String getManifestPath() {
+        return this.manifestPath;
+    }
+
+    /**
+     * Returns the output directory.
+     *
+     * @return the output directory; may be null
+     * @see VppOptions#getOutputDirectory()
+     */
+    public String getOutputDirectory() {
+        return this.outputDirectory;
+    }
+
+    /**
+     * Returns the character encoding of output files and standard output.
+     *
+     * @return the character encoding of output; never returns null
+     * @see VppOptions#getOutputEncoding()
+     */
+    public Charset getOutputCharset() {
+        return this.outputCharset;
+    }
+
+    /**
+     * Returns the canonical name of the character encoding of output files and
+     * standard output.
+     *
+     * @return the canonical name of the character encoding of output; never
+     * returns null
+     * @see VppOptions#getOutputEncoding()
+     */
+    public String getOutputEncoding() {
+        return this.outputEncoding;
+    }
+
+    /**
+     * Returns the output path.
+     *
+     * @return the output path; may be null
+     * @see VppOptions#getOutputPath()
+     */
+    public String getOutputPath() {
+        return this.outputPath;
+    }
+
+    /**
+     * Returns the line at which standard input is split into chunks when it is
+     * streamed.
+     *
+     * @return the delimiter line; may be null
+     * @see VppOptions#getStreamDelimiter()
+     */
+    public String getStreamDelimiter() {
+        return this.streamDelimiter;
+    }
+
+    /**
+     * Returns the suffix to remove from the names of output files.
+     *
+     * @return the suffix; may be null
+     * @see VppOptions#getStripSuffix()
+     */
+    public String getStripSuffix() {
+        return this.stripSuffix;
+    }
+
+    /**
+     * Returns whether output files whose contents would not change are left
+     * untouched.
+     *
+     * @return true if output files whose contents would not change are left
+     * untouched
+     * @see VppOptions#isKeepUnchanged()
+     */
+    public boolean isKeepUnchanged() {
+        return this.keepUnchanged;
+    }
+
+    /**
+     * Returns whether standard input is streamed.
+     *
+     * @return true if standard input is rendered in chunks as it is read
+     * @see VppOptions#isStreaming()
+     */
+    public boolean isStreaming() {
+        return this.streaming;
+    }
+
+    /**
+     * Returns whether jobs are run on virtual threads.
+     *
+     * @return true if each input file is rendered on a virtual thread of its
+     * own when virtual threads are supported
+     * @see VppOptions#isVirtualThreads()
+     */
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * VppServer.java
+ * By: Denver Coneybeare
+ * Oct 02, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import vpp.util.SpillBuffer;
+
+/**
+ * A daemon that runs the Velocity Pre-processor on behalf of clients, so that
+ * the cost of starting the Java Virtual Machine and initializing the template
+ * engine is paid once rather than once per invocation.
+ * <p>
+ * Each request consists of the command-line arguments and the working
+ * directory of a client (see {@link VppClient}); the daemon runs them as
+ * {@link Main} would, with relative paths resolved against the client's working
+ * directory, and responds with the exit code, the error message, if any, and
+ * the bytes that would have been written to standard output. Those bytes are
+ * collected in a {@link SpillBuffer}, so the memory used by a request does not
+ * grow with the size of its output. Requests are processed concurrently and
+ * share one template cache and one engine per working directory and input
+ * encoding; only the engines of the most recently used working directories
+ * are kept (see {@link #MAX_ENGINES}).
+ * <p>
+ * The daemon only listens on the loopback interface. Because it reads and
+ * writes files as the user that started it, it only runs requests that carry
+ * a secret token, which it writes when it starts to a file that only that user
+ * can read (see {@link #getDefaultTokenFile(int)}).
+ */
+public class VppServer {
+
+    /**
+     * The default port on which the daemon listens.
+     */
+    public static final int DEFAULT_PORT = 7519;
+
+    /**
+     * The version of the protocol spoken between the daemon and its clients.
+     */
+    static final int PROTOCOL_VERSION = 3;
+
+    /**
+     * The maximum length, in bytes, of a string in a request.
+     */
+    static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    /**
+     * The maximum number of command-line arguments in a request.
+     */
+    static final int MAX_NUM_ARGS = 4096;
+
+    /**
+     * The maximum number of requests that are processed at once; further
+     * connections wait to be accepted.
+     */
+    static final int MAX_CONCURRENT_REQUESTS = 16;
+
+    /**
+     * The number of milliseconds that the daemon waits for the next bytes of a
+     * request before abandoning it.
+     */
+    static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * The maximum number of engines kept, one for each working directory and
+     * input encoding; the least-recently-used engine is discarded first.
+     */
+    static final int MAX_ENGINES = 16;
+
+    /**
+     * The number of random bytes in a token.
+     */
+    private static final int TOKEN_LENGTH = 32;
+
+    private final int port;
+    private final File tokenFile;
+    private final TemplateCache templateCache;
+    private final LinkedHashMap<String, VppEngine> engines;
+    private byte[] token;
+
+    /**
+     * Creates a new instance of <code>VppServer</code> that writes its token to
+     * the default token file for the given port.
+     *
+     * @param port the port on which to listen
+     */
+    public VppServer(int port) {
+        this(port, getDefaultTokenFile(port));
+    }
+
+    /**
+     * Creates a new instance of <code>VppServer</code>.
+     *
+     * @param port the port on which to listen; if 0 then an unused port is
+     * chosen by {@link #listen()}
+     * @param tokenFile the file to which to write the token that clients must
+     * send with each request
+     * @throws NullPointerException if tokenFile==null
+     */
+    public VppServer(int port, File tokenFile) {
+        if (tokenFile == null) {
+            throw new NullPointerException("tokenFile==null");
+        }
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.templateCache = new TemplateCache();
+        this.engines = new LinkedHashMap<String, VppEngine>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the file to which a daemon listening on the given port writes its
+     * token by default, which is in the home directory of the current user.
+     *
+     * @param port the port on which the daemon listens
+     * @return the token file; never returns null
+     */
+    public static File getDefaultTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".vpp-daemon-" + port
+            + ".token");
+    }
+
+    /**
+     * Listens for and processes requests from clients. This method only
+     * returns if an error occurs.
+     *
+     * @throws VppException if listening for requests fails
+     */
+    public void run() throws VppException {
+        final ServerSocket serverSocket = this.listen();
+        System.err.println("vpp daemon listening on 127.0.0.1:"
+            + serverSocket.getLocalPort());
+        this.serve(serverSocket);
+    }
+
+    /**
+     * Starts listening on the loopback interface and writes a new token to the
+     * token file.
+     *
+     * @return the socket on which to accept connections
+     * @throws VppException if listening or writing the token file fails
+     */
+    ServerSocket listen() throws VppException {
+        final ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress
+                .getByName("127.0.0.1"), this.port));
+        } catch (final IOException e) {
+            throw new VppException("unable to listen on port " + this.port
+                + " (" + e.getMessage() + ")");
+        }
+
+        final byte[] newToken = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(newToken);
+        try {
+            writeTokenFile(this.tokenFile, newToken);
+        } catch (final IOException e) {
+            try {
+                serverSocket.close();
+            } catch (final IOException e2) {
+                // nothing more can be done
+            }
+            throw new VppException("unable to write token file: "
+                + this.tokenFile.getPath() + " (" + e.getMessage() + ")");
+        }
+        synchronized (this) {
+            this.token = newToken;
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Accepts connections on a socket returned from {@link #listen()} and
+     * processes their requests, at most {@link #MAX_CONCURRENT_REQUESTS} at a
+     * time. This method only returns if an error occurs, such as the socket
+     * being closed.
+     *
+     * @param serverSocket the socket on which to accept connections; it is
+     * closed when this method returns
+     * @throws VppException if accepting a connection fails
+     */
+    void serve(ServerSocket serverSocket) throws VppException {
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+        final Semaphore permits = new Semaphore(MAX_CONCURRENT_REQUESTS);
+        try {
+            while (true) {
+                // wait for a free thread before accepting, so that waiting
+                // connections stay in the socket's backlog
+                permits.acquireUninterruptibly();
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (final IOException e) {
+                    permits.release();
+                    throw new VppException("unable to accept connection ("
+                        + e.getMessage() + ")");
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            handleConnection(socket);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                serverSocket.close();
+            } catch (final IOException e) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Returns the engine used for requests from clients with the given working
+     * directory and input encoding, creating it if this is the first such
+     * request or if it was discarded to make room for the engines of other
+     * working directories.
+     */
+    private synchronized VppEngine getEngine(File workingDirectory,
+            String inputEncoding) {
+        final String key = inputEncoding + ":" + workingDirectory.getPath();
+        VppEngine engine = this.engines.get(key);
+        if (engine == null) {
+            final Properties properties = new Properties();
+            properties.setProperty(RuntimeConstants.INPUT_ENCODING,
+                inputEncoding);
+            // clients typically run right after editing a template, so the
+            // templates loaded by #parse and #include are not cached, and
+            // changes to them are seen immediately, as in watch mode
+            properties.setProperty("file.resource.loader.cache", "false");
+            engine =
+                new VppEngine(workingDirectory, this.templateCache, properties);
+            this.engines.put(key, engine);
+            final Iterator<VppEngine> it = this.engines.values().iterator();
+            while (this.engines.size() > MAX_ENGINES) {
+                it.next();
+                it.remove();
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the number of engines that are kept; for testing.
+     */
+    synchronized int getNumEngines() {
+        return this.engines.size();
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            try {
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(socket
+                        .getInputStream()));
+                final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(socket
+                        .getOutputStream()));
+                this.handleRequest(in, out);
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        } catch (final IOException e) {
+            System.err.println("WARNING: vpp daemon request failed: "
+                + e.getMessage());
+        }
+    }
+
+    private void handleRequest(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        final int version = in.readInt();
+        if (version != PROTOCOL_VERSION) {
+            writeErrorResponse(out, "unsupported protocol version: " + version);
+            return;
+        }
+
+        final byte[] requestToken = new byte[TOKEN_LENGTH];
+        in.readFully(requestToken);
+        final byte[] expectedToken;
+        synchronized (this) {
+            expectedToken = this.token;
+        }
+        if (!MessageDigest.isEqual(requestToken, expectedToken)) {
+            writeErrorResponse(out, "invalid daemon token");
+            return;
+        }
+
+        final File workingDirectory = new File(readString(in));
+        final int numArgs = in.readInt();
+        if (numArgs < 0 || numArgs > MAX_NUM_ARGS) {
+            throw new IOException("invalid number of arguments: " + numArgs);
+        }
+        final String[] args = new String[numArgs];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(in);
+        }
+
+        final SpillBuffer stdout = new SpillBuffer();
+        try {
+            this.runRequest(args, workingDirectory, stdout, out);
+        } finally {
+            stdout.close();
+        }
+    }
+
+    private void runRequest(String[] args, File workingDirectory,
+            SpillBuffer stdout, DataOutputStream out) throws IOException {
+        int exitCode = 0;
+        String message = "";
+        try {
+            final Main main = new Main(args, workingDirectory);
+            final VppOptions options = main.parseArgs();
+            if (options == null || main.isDaemon()
+                || (main.getBatchPath() == null
+                    && options.getNumInputPaths() == 0)
+                || "-".equals(main.getBatchPath())) {
+                throw new ParseException("invalid arguments for daemon");
+            }
+            final VppEngine engine =
+                this.getEngine(workingDirectory, options.getInputEncoding());
+            if (main.getBatchPath() != null) {
+                main.createBatch(options, engine).run();
+            } else {
+                final Vpp vpp = new Vpp(options, engine);
+                vpp.setStandardStreams(new ByteArrayInputStream(new byte[0]),
+                    stdout);
+                vpp.run();
+            }
+        } catch (final ParseException e) {
+            exitCode = 2;
+            message = e.getMessage();
+        } catch (final VppException e) {
+            exitCode = 1;
+            message = e.getMessage();
+        } catch (final RuntimeException e) {
+            exitCode = 1;
+            message = "unexpected error in daemon: " + e;
+        }
+
+        writeResponse(out, exitCode, message, stdout);
+    }
+
+    private static void writeErrorResponse(DataOutputStream out,
+            String message) throws IOException {
+        final SpillBuffer empty = new SpillBuffer();
+        try {
+            writeResponse(out, 2, message, empty);
+        } finally {
+            empty.close();
+        }
+    }
+
+    private static void writeResponse(DataOutputStream out, int exitCode,
+            String message, SpillBuffer stdout) throws IOException {
+        out.writeInt(exitCode);
+        writeString(out, message);
+        out.writeLong(stdout.size());
+        out.flush();
+        stdout.transferTo(Channels.newChannel(out));
+    }
+
+    /**
+     * Writes a string of any length in the format read by
+     * {@link #readString(DataInputStream)}.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}
+     * that is at most {@link #MAX_STRING_LENGTH} bytes long.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("invalid string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a token to a file that only the current user can read, replacing
+     * the file if it exists.
+     */
+    private static void writeTokenFile(File file, byte[] token)
+            throws IOException {
+        final File absFile = file.getAbsoluteFile();
+        // unlike File.createTempFile, this creates the file readable and
+        // writable by its owner only on POSIX file systems
+        final File tempFile =
+            java.nio.file.Files.createTempFile(
+                absFile.getParentFile().toPath(), "." + absFile.getName()
+                    + ".", ".tmp").toFile();
+        try {
+            tempFile.setReadable(false, false);
+            tempFile.setReadable(true, true);
+            tempFile.setWritable(false, false);
+            tempFile.setWritable(true, true);
+            final OutputStream out =
+                java.nio.file.Files.newOutputStream(tempFile.toPath());
+            try {
+                out.write(token);
+            } finally {
+                out.close();
+            }
+            java.nio.file.Files.move(tempFile.toPath(), absFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Reads a token written to a file by a daemon.
+     *
+     * @throws NoSuchFileException if the token file does not exist
+     * @throws IOException if reading the token file fails, or it does not
+     * contain a token
+     */
+    static byte[] readTokenFile(File file) throws IOException {
+        final byte[] token =
+            java.nio.file.Files.readAllBytes(file.toPath());
+        if (token.length != TOKEN_LENGTH) {
+            throw new IOException("invalid token file: " + file.getPath());
+        }
+        return token;
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * VppWatcher.java
+ * By: Denver Coneybeare
+ * Oct 13, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+
+/**
+ * Renders the input files of a set of options and then renders them again
+ * whenever they, or the templates that they <code>#parse</code> or
+ * <code>#include</code>, change.
+ * <p>
+ * The directories of the input files and of the templates that they load are
+ * watched with a {@link WatchService}. Bursts of events, such as those caused
+ * by an editor saving a file, are collected until no event has arrived for the
+ * "debounce" interval, and then only the affected input files are rendered
+ * again; when all input files are written to a single output, any change
+ * renders all of them. An input directory or glob pattern is rendered again as
+ * a whole when any file beneath its searched directory is created, changed or
+ * deleted, or when a template that one of its files loads changes. Changes to
+ * the output files, and to the temporary files from which they are written,
+ * are ignored unless they are themselves input files or loaded templates, so
+ * that writing the output does not cause another render. The engine, and
+ * therefore the parsed input files, are kept between renders; the templates
+ * loaded by <code>#parse</code> and <code>#include</code> are not cached by
+ * the engine so that changes to them are seen immediately.
+ * <p>
+ * Errors are printed and do not stop the watcher, so that a template with a
+ * syntax error can be fixed and is then rendered again. Likewise, a watched
+ * directory that is deleted is watched again once it is re-created, and the
+ * input files that depend on it are then rendered again.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class VppWatcher implements Closeable {
+
+    /**
+     * The default time, in milliseconds, that must pass without changes before
+     * the changed input files are rendered.
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private final VppOptions options;
+    private final VppEngine engine;
+    private final long debounceMillis;
+    private final PrintStream log;
+    private final boolean perFile;
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> watchKeys;
+
+    /**
+     * The directories that must be watched but could not be, such as deleted
+     * ones; the nearest existing ancestor of each is watched instead, so that
+     * its re-creation is noticed.
+     */
+    private final Set<Path> missingDirectories;
+
+    /**
+     * The input paths, in order, mapped to their absolute paths or, for input
+     * directories and glob patterns, to the absolute paths of the directories
+     * that they search.
+     */
+    private final Map<String, Path> inputPaths;
+
+    /**
+     * The input paths that name input directories or are glob patterns.
+     */
+    private final Set<String> expandedInputPaths;
+
+    /**
+     * The absolute path of the output directory, whose changes are ignored
+     * unless they are to watched files; null if all input files are written
+     * to a single output.
+     */
+    private final Path outputDirectory;
+
+    /**
+     * The absolute path of the output file, whose changes are ignored unless
+     * it is a watched file; null if each input file is written to its own
+     * output file, or if the output is written to standard output.
+     */
+    private final Path outputFile;
+
+    /**
+     * For each input path, the files whose changes cause it to be rendered
+     * again, including itself.
+     */
+    private final Map<String, Set<Path>> watchedFiles;
+
+    /**
+     * Creates a new instance of <code>VppWatcher</code> with its own engine
+     * whose template root is the current directory.
+     *
+     * @param options the options with which to render; the input paths are
+     * read when this object is created, and subsequent changes to the options
+     * are used by subsequent renders
+     * @param log the stream to which to print the outcome of each render
+     * @throws VppException if the options do not specify any input paths, or
+     * if the file system cannot be watched
+     * @throws NullPointerException if options==null or log==null
+     */
+    public VppWatcher(VppOptions options, PrintStream log) throws VppException {
+        this(options, createEngine(options), DEFAULT_DEBOUNCE_MILLIS, log);
+    }
+
+    /**
+     * Creates a new instance of <code>VppWatcher</code>.
+     *
+     * @param options the options with which to render; the input paths are
+     * read when this object is created, and subsequent changes to the options
+     * are used by subsequent renders
+     * @param engine the engine to use; if its resource loader caches templates
+     * then changes to templates loaded by <code>#parse</code> and
+     * <code>#include</code> may not be seen immediately
+     * @param debounceMillis the time, in milliseconds, that must pass without
+     * changes before the changed input files are rendered
+     * @param log the stream to which to print the outcome of each render
+     * @throws VppException if the options do not specify any input paths, or
+     * if the file system cannot be watched
+     * @throws NullPointerException if options==null, engine==null or log==null
+     */
+    public VppWatcher(VppOptions options, VppEngine engine,
+            long debounceMillis, PrintStream log) throws VppException {
+        if (options == null) {
+            throw new NullPointerException("options==null");
+        } else if (engine == null) {
+            throw new NullPointerException("engine==null");
+        } else if (log == null) {
+            throw new NullPointerException("log==null");
+        }
+        this.options = options;
+        this.engine = engine;
+        this.debounceMillis = debounceMillis;
+        this.log = log;
+        final String outputDirectory = options.getOutputDirectory();
+        this.perFile = (outputDirectory != null);
+        this.outputDirectory =
+            this.perFile ? toAbsolutePath(outputDirectory) : null;
+        final String outputPath = options.getOutputPath();
+        this.outputFile = (this.perFile || outputPath == null) ? null
+            : toAbsolutePath(outputPath);
+        this.watchKeys = new HashMap<Path, WatchKey>();
+        this.missingDirectories = new LinkedHashSet<Path>();
+        this.watchedFiles = new HashMap<String, Set<Path>>();
+
+        this.inputPaths = new LinkedHashMap<String, Path>();
+        this.expandedInputPaths = new HashSet<String>();
+        for (final String inputPath : options.getInputPaths()) {
+            final File file = InputScanner.getBaseDirectory(inputPath);
+            this.inputPaths.put(inputPath, toAbsolutePath(file.getPath()));
+            if (InputScanner.isExpandable(inputPath)) {
+                this.expandedInputPaths.add(inputPath);
+            }
+        }
+        if (this.inputPaths.isEmpty()) {
+            throw new VppException("watch mode requires input paths");
+        }
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (final IOException e) {
+            throw new VppException("unable to watch for file changes ("
+                + e.getMessage() + ")");
+        }
+    }
+
+    private static VppEngine createEngine(VppOptions options) {
+        final Properties properties = new Properties();
+        properties.setProperty(RuntimeConstants.INPUT_ENCODING,
+            options.getInputEncoding());
+        properties.setProperty("file.resource.loader.cache", "false");
+        return new VppEngine(new File("."), new TemplateCache(), properties);
+    }
+
+    private static Path toAbsolutePath(String path) {
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Renders every input file and then renders them again whenever they
+     * change. This method only returns if the current thread is interrupted.
+     *
+     * @throws VppException if watching for changes fails
+     */
+    public void run() throws VppException {
+        this.start();
+        try {
+            while (true) {
+                this.poll(-1);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Renders every input file and starts watching for changes.
+     *
+     * @throws VppException if watching for changes fails; errors rendering
+     * input files are printed instead
+     */
+    public void start() throws VppException {
+        this.render(new ArrayList<String>(this.inputPaths.keySet()));
+    }
+
+    /**
+     * Waits for changes and renders the input files affected by them.
+     *
+     * @param timeoutMillis the maximum time, in milliseconds, to wait for the
+     * first change; a negative value waits indefinitely
+     * @return the number of input files that were rendered, which is zero if
+     * no change occurred before the timeout or the changes did not affect any
+     * input file
+     * @throws VppException if watching for changes fails
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting
+     */
+    public int poll(long timeoutMillis) throws VppException,
+            InterruptedException {
+        WatchKey key;
+        if (timeoutMillis < 0) {
+            key = this.watchService.take();
+        } else {
+            key = this.watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        final Set<Path> changedFiles = new HashSet<Path>();
+        boolean overflow = false;
+        while (key != null) {
+            overflow |= this.collectChanges(key, changedFiles);
+            key =
+                this.watchService.poll(this.debounceMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        this.watchMissingDirectories(changedFiles);
+
+        final List<String> affectedInputs = new ArrayList<String>();
+        for (final String input : this.inputPaths.keySet()) {
+            if (overflow || this.isAffected(input, changedFiles)) {
+                affectedInputs.add(input);
+            }
+        }
+
+        if (affectedInputs.isEmpty()) {
+            return 0;
+        } else if (!this.perFile) {
+            // every input file is rendered to the same output
+            affectedInputs.clear();
+            affectedInputs.addAll(this.inputPaths.keySet());
+        }
+        this.render(affectedInputs);
+        return affectedInputs.size();
+    }
+
+    /**
+     * Returns whether the given input path must be rendered again because of
+     * changes to the given files.
+     */
+    private boolean isAffected(String input, Set<Path> changedFiles) {
+        final Path path = this.inputPaths.get(input);
+        final Set<Path> files = this.watchedFiles.get(input);
+        for (final Path changedFile : changedFiles) {
+            if (changedFile.equals(path)) {
+                return true;
+            } else if (files != null && files.contains(changedFile)) {
+                return true;
+            } else if (this.isOutput(changedFile)) {
+                continue;
+            } else if (this.expandedInputPaths.contains(input)
+                && changedFile.startsWith(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the given file is beneath the output directory, or is
+     * the output file or one of the temporary files from which it is written.
+     */
+    private boolean isOutput(Path file) {
+        if (this.outputDirectory != null) {
+            return file.startsWith(this.outputDirectory);
+        } else if (this.outputFile == null) {
+            return false;
+        } else if (file.equals(this.outputFile)) {
+            return true;
+        }
+
+        // temporary files are named ".<name>.<random number>.tmp"; see
+        // vpp.util.Files.createTempFileFor(File)
+        final Path dir = file.getParent();
+        final String name = file.getFileName().toString();
+        final String outputName = this.outputFile.getFileName().toString();
+        return dir != null && dir.equals(this.outputFile.getParent())
+            && name.startsWith("." + outputName + ".")
+            && name.endsWith(".tmp");
+    }
+
+    /**
+     * Returns the input path whose output includes the given input file.
+     */
+    private String findInputPath(Path inputFile) {
+        for (final Map.Entry<String, Path> entry : this.inputPaths.entrySet()) {
+            if (entry.getValue().equals(inputFile)) {
+                return entry.getKey();
+            }
+        }
+        for (final String input : this.expandedInputPaths) {
+            if (inputFile.startsWith(this.inputPaths.get(input))) {
+                return input;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the files changed according to the events of the given key to the
+     * given set, and returns whether events were lost.
+     */
+    private boolean collectChanges(WatchKey key, Set<Path> changedFiles) {
+        boolean overflow = false;
+        final Path dir = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else {
+                final Path name = (Path) event.context();
+                changedFiles.add(dir.resolve(name));
+            }
+        }
+        if (!key.reset()) {
+            // the directory is no longer accessible; rendering an input file
+            // that depends on it watches it again once it is re-created
+            this.watchKeys.remove(dir);
+        }
+        return overflow;
+    }
+
+    /**
+     * Renders the given input files, prints the outcome, and updates the files
+     * that are watched.
+     */
+    private void render(List<String> inputs) {
+        final VppOptions runOptions = new VppOptions(this.options);
+        for (final String inputPath : this.options.getInputPaths()) {
+            runOptions.removeInputPath(inputPath);
+        }
+        for (final String input : inputs) {
+            runOptions.addInputPath(input);
+        }
+
+        final List<OutputStats> outputs = new ArrayList<OutputStats>();
+        final Vpp vpp = new Vpp(runOptions, this.engine);
+        vpp.addListener(new VppListener() {
+            public void outputFinished(OutputStats stats) {
+                synchronized (outputs) {
+                    outputs.add(stats);
+                }
+            }
+
+            public void runFinished(RunStats stats) {
+                // the outputs are collected as they finish
+            }
+        });
+
+        final long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            vpp.run();
+            failed = false;
+            final long millis =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            this.log.println("vpp: rendered " + inputs.size() + " of "
+                + this.inputPaths.size() + " input files in " + millis + " ms");
+        } catch (final VppException e) {
+            this.log.println("ERROR: " + e.getMessage());
+        }
+
+        synchronized (outputs) {
+            this.updateWatchedFiles(inputs, outputs, failed);
+        }
+        for (final String input : inputs) {
+            if (this.expandedInputPaths.contains(input)) {
+                this.watchTree(this.inputPaths.get(input));
+            }
+            for (final Path file : this.watchedFiles.get(input)) {
+                this.watch(file);
+            }
+        }
+    }
+
+    /**
+     * Records the files whose changes cause the given input paths to be
+     * rendered again. The templates loaded by a failed render are not known,
+     * so if rendering failed then the previously-recorded ones are kept.
+     */
+    private void updateWatchedFiles(List<String> inputs,
+            List<OutputStats> outputs, boolean failed) {
+        final Map<String, Set<Path>> newWatchedFiles =
+            new HashMap<String, Set<Path>>();
+        for (final String input : inputs) {
+            final Set<Path> files = new LinkedHashSet<Path>();
+            files.add(this.inputPaths.get(input));
+            final Set<Path> oldFiles = this.watchedFiles.get(input);
+            if (failed && oldFiles != null) {
+                files.addAll(oldFiles);
+            }
+            newWatchedFiles.put(input, files);
+        }
+
+        for (final OutputStats output : outputs) {
+            final Set<Path> files = new LinkedHashSet<Path>();
+            for (final String inputPath : output.getInputPaths()) {
+                files.add(toAbsolutePath(inputPath));
+            }
+            for (final String dependencyPath : output.getDependencyPaths()) {
+                files.add(toAbsolutePath(dependencyPath));
+            }
+            for (final String inputPath : output.getInputPaths()) {
+                final String input =
+                    this.findInputPath(toAbsolutePath(inputPath));
+                if (input != null && newWatchedFiles.containsKey(input)) {
+                    newWatchedFiles.get(input).addAll(files);
+                }
+            }
+        }
+
+        this.watchedFiles.putAll(newWatchedFiles);
+    }
+
+    /**
+     * Watches the given directory and every directory beneath it, so that
+     * files created anywhere beneath it are noticed.
+     */
+    private void watchTree(final Path dir) {
+        if (!Files.isDirectory(dir)) {
+            this.watchMissingDirectory(dir, null);
+            return;
+        }
+        try {
+            Files.walkFileTree(dir,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path subdir,
+                            BasicFileAttributes attributes) throws IOException {
+                        // an output directory beneath the searched
+                        // directory is not searched, and so not watched
+                        if (outputDirectory != null
+                            && !dir.startsWith(outputDirectory)
+                            && subdir.startsWith(outputDirectory)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        try {
+                            registerDirectory(subdir);
+                        } catch (final IOException e) {
+                            watchMissingDirectory(subdir, e);
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                            IOException e) {
+                        // a file deleted during the walk is not watched
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        } catch (final IOException e) {
+            this.watchMissingDirectory(dir, e);
+        }
+    }
+
+    /**
+     * Watches the directory of the given file, if it is not already watched.
+     */
+    private void watch(Path file) {
+        final Path dir = file.getParent();
+        if (dir == null) {
+            return;
+        }
+        try {
+            this.registerDirectory(dir);
+        } catch (final IOException e) {
+            this.watchMissingDirectory(dir, e);
+        }
+    }
+
+    /**
+     * Records that the given directory could not be watched, prints the error
+     * the first time, and watches its nearest existing ancestor instead.
+     *
+     * @param e the error watching the directory; may be null if it does not
+     * exist
+     */
+    private void watchMissingDirectory(Path dir, IOException e) {
+        if (this.missingDirectories.add(dir)) {
+            final String message =
+                (e == null) ? "no such directory" : e.getMessage();
+            this.log.println("ERROR: unable to watch directory: " + dir
+                + " (" + message + ")");
+        }
+        for (Path ancestor = dir.getParent(); ancestor != null;
+                ancestor = ancestor.getParent()) {
+            try {
+                this.registerDirectory(ancestor);
+                return;
+            } catch (final IOException ancestorError) {
+                // try the next ancestor
+            }
+        }
+    }
+
+    /**
+     * Watches the directories that could not be watched before and now can
+     * be, and adds them and the watched files in them to the given set of
+     * changed files, since files may have been created in them before they
+     * were watched.
+     */
+    private void watchMissingDirectories(Set<Path> changedFiles) {
+        final List<Path> dirs = new ArrayList<Path>(this.missingDirectories);
+        for (final Path dir : dirs) {
+            if (!Files.isDirectory(dir)) {
+                // still missing; watch whichever ancestor now exists
+                this.watchMissingDirectory(dir, null);
+                continue;
+            }
+            try {
+                this.registerDirectory(dir);
+            } catch (final IOException e) {
+                continue;
+            }
+            this.missingDirectories.remove(dir);
+            changedFiles.add(dir);
+            for (final Set<Path> files : this.watchedFiles.values()) {
+                for (final Path file : files) {
+                    if (dir.equals(file.getParent())) {
+                        changedFiles.add(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void registerDirectory(Path dir) throws IOException {
+        // the key of a directory that was deleted and re-created is no longer
+        // valid, although its events may not have been collected yet
+        final WatchKey oldKey = this.watchKeys.get(dir);
+        if (oldKey == null || !oldKey.isValid()) {
+            final WatchKey key =
+                dir.register(this.watchService, ENTRY_CREATE, ENTRY_DELETE,
+                    ENTRY_MODIFY);
+            this.watchKeys.put(dir, key);
+        }
+    }
+
+    /**
+     * Stops watching for changes.
+     *
+     * @throws IOException if closing the watch service fails
+     */
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Bytes.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utility functions for searching buffers of bytes.
+ */
+public class Bytes {
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Bytes() {
+    }
+
+    /**
+     * Returns whether the remaining bytes of a buffer contain either of two
+     * bytes. The position of the buffer is not changed.
+     * <p>
+     * The bytes are tested eight at a time by reading them as a long and
+     * testing all of its bytes at once with a few arithmetic operations, so
+     * that a buffer that contains neither byte, which is the expected case, is
+     * searched with one eighth of the branches of a byte-by-byte search.
+     *
+     * @param buffer the buffer to search
+     * @param b1 a byte for which to search
+     * @param b2 another byte for which to search
+     * @return true if the remaining bytes of the buffer contain b1 or b2, or
+     * false if they contain neither
+     * @throws NullPointerException if buffer==null
+     */
+    public static boolean containsEither(ByteBuffer buffer, byte b1, byte b2) {
+        final long pattern1 = (b1 & 0xFFL) * LOW_BITS;
+        final long pattern2 = (b2 & 0xFFL) * LOW_BITS;
+        final int limit = buffer.limit();
+        int i = buffer.position();
+        for (; limit - i >= 8; i += 8) {
+            final long word = buffer.getLong(i);
+            if ((hasZeroByte(word ^ pattern1) | hasZeroByte(word ^ pattern2))
+                != 0) {
+                return true;
+            }
+        }
+        for (; i < limit; i++) {
+            final byte b = buffer.get(i);
+            if (b == b1 || b == b2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a value with the high bit of each byte set that is zero in the
+     * given value; the high bits of the other bytes may also be set, but only
+     * above a byte that is zero, so the result is non-zero if and only if a
+     * byte of the given value is zero.
+     */
+    private static long hasZeroByte(long word) {
+        return (word - LOW_BITS) & ~word & HIGH_BITS;
+    }
+}
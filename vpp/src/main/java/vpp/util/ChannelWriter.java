@@ -0,0 +1,408 @@
+/*
+ * ChannelWriter.java
+ * By: Denver Coneybeare
+ * Oct 09, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A writer that encodes characters with an explicit character encoding and
+ * writes the encoded bytes to a channel.
+ * <p>
+ * Velocity writes its output as many small fragments. This class collects them
+ * in a character buffer, encodes them in bulk, and only writes to the channel
+ * when its byte buffer is full, so that rendering a file results in a few
+ * large writes rather than one write per fragment. Characters that cannot be
+ * encoded with the character encoding cause an exception to be thrown rather
+ * than being silently replaced.
+ * <p>
+ * The buffers and encoder of a writer with the default buffer size are
+ * returned to a small shared pool when it is closed, and taken from the pool
+ * by the writers created after it, so that rendering many small files does not
+ * allocate new buffers for each one. The pool is shared rather than kept per
+ * thread because renders may run on short-lived virtual threads.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class ChannelWriter extends Writer {
+
+    /**
+     * The default size, in bytes, of the buffer of encoded bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of sets of buffers kept in the shared pool, for all
+     * character encodings.
+     */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /**
+     * The shared pool, with the buffers for each character encoding kept
+     * apart, since buffers for another encoding may be sized differently.
+     */
+    private static final ConcurrentMap<Charset, Queue<Buffers>> POOL =
+        new ConcurrentHashMap<Charset, Queue<Buffers>>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final CharsetEncoder encoder;
+    private final MessageDigest digest;
+    private final CharBuffer charBuffer;
+    private final ByteBuffer byteBuffer;
+    private final boolean pooled;
+    private long numBytesWritten;
+    private boolean closed;
+
+    /**
+     * Creates a new instance of <code>ChannelWriter</code> with a buffer of
+     * the default size.
+     *
+     * @param channel the channel to which to write the encoded bytes
+     * @param closeChannel whether to close the channel when this writer is
+     * closed; if false, then closing this writer only flushes it
+     * @param charset the character encoding with which to encode characters
+     * @param digest a message digest to update with every byte written to the
+     * channel; may be null
+     * @throws NullPointerException if channel==null or charset==null
+     */
+    public ChannelWriter(WritableByteChannel channel, boolean closeChannel,
+            Charset charset, MessageDigest digest) {
+        this(channel, closeChannel, charset, digest, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new instance of <code>ChannelWriter</code>.
+     *
+     * @param channel the channel to which to write the encoded bytes
+     * @param closeChannel whether to close the channel when this writer is
+     * closed; if false, then closing this writer only flushes it
+     * @param charset the character encoding with which to encode characters
+     * @param digest a message digest to update with every byte written to the
+     * channel; may be null
+     * @param bufferSize the size, in bytes, of the buffer of encoded bytes
+     * @throws NullPointerException if channel==null or charset==null
+     * @throws IllegalArgumentException if bufferSize is too small to hold the
+     * encoding of a single character
+     */
+    public ChannelWriter(WritableByteChannel channel, boolean closeChannel,
+            Charset charset, MessageDigest digest, int bufferSize) {
+        if (channel == null) {
+            throw new NullPointerException("channel==null");
+        } else if (charset == null) {
+            throw new NullPointerException("charset==null");
+        }
+
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.digest = digest;
+        this.pooled = (bufferSize == DEFAULT_BUFFER_SIZE);
+
+        final Buffers buffers = this.pooled ? acquire(charset) : null;
+        if (buffers != null) {
+            this.encoder = buffers.encoder;
+            this.byteBuffer = buffers.byteBuffer;
+            this.charBuffer = buffers.charBuffer;
+            return;
+        }
+
+        this.encoder =
+            charset.newEncoder().onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        final int maxBytesPerChar =
+            (int) Math.ceil(this.encoder.maxBytesPerChar());
+        if (bufferSize < maxBytesPerChar * 2) {
+            throw new IllegalArgumentException("bufferSize too small: "
+                + bufferSize);
+        }
+        this.byteBuffer = ByteBuffer.allocate(bufferSize);
+        this.charBuffer = CharBuffer.allocate(bufferSize / maxBytesPerChar);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        this.ensureOpen();
+        if (!this.charBuffer.hasRemaining()) {
+            this.encode(false);
+        }
+        this.charBuffer.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (!this.charBuffer.hasRemaining()) {
+                this.encode(false);
+            }
+            final int count = Math.min(remaining, this.charBuffer.remaining());
+            this.charBuffer.put(cbuf, offset, count);
+            offset += count;
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || off + len > str.length()) {
+            throw new IndexOutOfBoundsException();
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (!this.charBuffer.hasRemaining()) {
+                this.encode(false);
+            }
+            final int count = Math.min(remaining, this.charBuffer.remaining());
+            this.charBuffer.put(str, offset, offset + count);
+            offset += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Encodes the buffered characters and writes all encoded bytes to the
+     * channel. A trailing high surrogate remains buffered until the character
+     * that completes it is written.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.ensureOpen();
+        this.encode(false);
+        this.writeBytes();
+    }
+
+    /**
+     * Flushes this writer and then writes the bytes collected by a buffer to
+     * the channel, as if this writer had encoded them. The bytes must have
+     * been encoded with the same character encoding as this writer uses. They
+     * update the message digest and are counted in the number of bytes
+     * written.
+     *
+     * @param buffer the buffer whose bytes to write
+     * @throws IOException if writing fails
+     * @throws NullPointerException if buffer==null
+     */
+    public void write(SpillBuffer buffer) throws IOException {
+        this.flush();
+        buffer.transferTo(new CountingChannel());
+    }
+
+    /**
+     * Flushes this writer and then writes the remaining bytes of a buffer to
+     * the channel, as if this writer had encoded them. The bytes must have
+     * been encoded with the same character encoding as this writer uses. They
+     * update the message digest and are counted in the number of bytes
+     * written.
+     *
+     * @param bytes the bytes to write; its position is advanced to its limit
+     * @throws IOException if writing fails
+     * @throws NullPointerException if bytes==null
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        this.flush();
+        final CountingChannel channel = new CountingChannel();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Flushes this writer and, if requested when this writer was created,
+     * closes the channel. Closing a closed writer has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.encode(true);
+            while (true) {
+                final CoderResult result = this.encoder.flush(this.byteBuffer);
+                if (!result.isOverflow()) {
+                    break;
+                }
+                this.writeBytes();
+            }
+            this.writeBytes();
+        } finally {
+            this.closed = true;
+            if (this.pooled) {
+                release(new Buffers(this.encoder, this.byteBuffer,
+                    this.charBuffer));
+            }
+            if (this.closeChannel) {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the channel so far; bytes that
+     * are still buffered are not counted.
+     *
+     * @return the number of bytes written to the channel
+     */
+    public long getNumBytesWritten() {
+        return this.numBytesWritten;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("writer closed");
+        }
+    }
+
+    /**
+     * Encodes the buffered characters into the byte buffer, writing the byte
+     * buffer to the channel each time that it fills up.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        this.charBuffer.flip();
+        try {
+            while (true) {
+                final CoderResult result =
+                    this.encoder.encode(this.charBuffer, this.byteBuffer,
+                        endOfInput);
+                if (result.isOverflow()) {
+                    this.writeBytes();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            this.charBuffer.compact();
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        this.byteBuffer.flip();
+        if (this.digest != null) {
+            this.digest.update(this.byteBuffer.duplicate());
+        }
+        this.numBytesWritten += this.byteBuffer.remaining();
+        while (this.byteBuffer.hasRemaining()) {
+            this.channel.write(this.byteBuffer);
+        }
+        this.byteBuffer.clear();
+    }
+
+    /**
+     * Takes buffers for the given character encoding from the pool.
+     *
+     * @return the buffers, reset for a new writer, or null if the pool has no
+     * buffers for the given character encoding
+     */
+    private static Buffers acquire(Charset charset) {
+        final Queue<Buffers> queue = POOL.get(charset);
+        final Buffers buffers = (queue == null) ? null : queue.poll();
+        if (buffers == null) {
+            return null;
+        }
+        POOL_SIZE.decrementAndGet();
+        buffers.encoder.reset();
+        buffers.byteBuffer.clear();
+        buffers.charBuffer.clear();
+        return buffers;
+    }
+
+    private static void release(Buffers buffers) {
+        if (POOL_SIZE.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            final Charset charset = buffers.encoder.charset();
+            Queue<Buffers> queue = POOL.get(charset);
+            if (queue == null) {
+                final Queue<Buffers> newQueue =
+                    new ConcurrentLinkedQueue<Buffers>();
+                queue = POOL.putIfAbsent(charset, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+            queue.offer(buffers);
+        } else {
+            POOL_SIZE.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of sets of buffers for the given character encoding
+     * that are in the pool; for testing.
+     */
+    static int getNumPooledBuffers(Charset charset) {
+        final Queue<Buffers> queue = POOL.get(charset);
+        return (queue == null) ? 0 : queue.size();
+    }
+
+    /**
+     * The buffers and encoder of a writer, kept in the pool between writers.
+     */
+    private static class Buffers {
+
+        public final CharsetEncoder encoder;
+        public final ByteBuffer byteBuffer;
+        public final CharBuffer charBuffer;
+
+        public Buffers(CharsetEncoder encoder, ByteBuffer byteBuffer,
+                CharBuffer charBuffer) {
+            this.encoder = encoder;
+            this.byteBuffer = byteBuffer;
+            this.charBuffer = charBuffer;
+        }
+    }
+
+    /**
+     * A channel that writes to the channel of this writer, updating the
+     * message digest and the number of bytes written.
+     */
+    private class CountingChannel implements WritableByteChannel {
+
+        public int write(ByteBuffer src) throws IOException {
+            final ByteBuffer written = src.duplicate();
+            final int count = ChannelWriter.this.channel.write(src);
+            if (ChannelWriter.this.digest != null) {
+                written.limit(written.position() + count);
+                ChannelWriter.this.digest.update(written);
+            }
+            ChannelWriter.this.numBytesWritten += count;
+            return count;
+        }
+
+        public boolean isOpen() {
+            return ChannelWriter.this.channel.isOpen();
+        }
+
+        public void close() {
+            // the channel of the writer is closed by the writer
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * CharBufferReader.java
+ * By: Denver Coneybeare
+ * Oct 10, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * A reader whose characters are the remaining characters of a character
+ * buffer. Unlike {@link java.io.StringReader}, the characters are not copied
+ * into a string first.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class CharBufferReader extends Reader {
+
+    private final CharBuffer buffer;
+    private int mark;
+
+    /**
+     * Creates a new instance of <code>CharBufferReader</code>. The position of
+     * the given buffer is advanced as characters are read; to leave the
+     * buffer unchanged, give a duplicate of it.
+     *
+     * @param buffer the buffer whose remaining characters to read
+     * @throws NullPointerException if buffer==null
+     */
+    public CharBufferReader(CharBuffer buffer) {
+        if (buffer == null) {
+            throw new NullPointerException("buffer==null");
+        }
+        this.buffer = buffer;
+        this.mark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        if (!this.buffer.hasRemaining()) {
+            return -1;
+        }
+        return this.buffer.get();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        final int remaining = this.buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        final int count = Math.min(len, remaining);
+        this.buffer.get(cbuf, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        final int count = (int) Math.min(n, this.buffer.remaining());
+        this.buffer.position(this.buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        this.mark = this.buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        this.buffer.position(this.mark);
+    }
+
+    /**
+     * Does nothing; the buffer remains readable.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Digests.java
+ * By: Denver Coneybeare
+ * 2011-09-25
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility functions for computing message digests (i.e. content hashes).
+ */
+public class Digests {
+
+    /**
+     * The name of the message digest algorithm used by this class.
+     */
+    public static final String ALGORITHM = "SHA-1";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Digests() {
+    }
+
+    /**
+     * Creates a new message digest object for the algorithm used by this
+     * class.
+     *
+     * @return a newly-created message digest object; never returns null
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new RuntimeException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * Computes the digest of a byte array.
+     *
+     * @param bytes the bytes whose digest to compute
+     * @param offset the index of the first byte in the given array to digest
+     * @param length the number of bytes in the given array to digest
+     * @return the digest of the given bytes, as a string of lowercase
+     * hexadecimal digits; never returns null
+     * @throws NullPointerException if bytes==null
+     */
+    public static String digest(byte[] bytes, int offset, int length) {
+        final MessageDigest digest = newDigest();
+        digest.update(bytes, offset, length);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the digest of the contents of a file.
+     *
+     * @param file the file whose digest to compute
+     * @return the digest of the contents of the given file, as a string of
+     * lowercase hexadecimal digits; never returns null
+     * @throws IOException if reading the file fails
+     * @throws NullPointerException if file==null
+     */
+    public static String digest(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[65536];
+            while (true) {
+                final int numRead = in.read(buffer);
+                if (numRead < 0) {
+                    break;
+                }
+                digest.update(buffer, 0, numRead);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts a byte array to a string of hexadecimal digits.
+     *
+     * @param bytes the bytes to convert
+     * @return a string with two lowercase hexadecimal digits for each byte of
+     * the given array; never returns null
+     * @throws NullPointerException if bytes==null
+     */
+    public static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int b = bytes[i] & 0xFF;
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Files.java
+ * By: Denver Coneybeare
+ * Oct 09, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Utility functions for writing files so that they are never observed
+ * partially written.
+ */
+public class Files {
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private Files() {
+    }
+
+    /**
+     * Returns the file to replace in order to write the given file with
+     * {@link #createTempFileFor(File)} and {@link #replace(File, File)}. If
+     * the given file is a symbolic link to a regular file then the file that
+     * it links to is returned, so that the link is kept. Other files that
+     * exist but are not regular files, such as devices and pipes, and dangling
+     * symbolic links, cannot be replaced and must be written directly.
+     *
+     * @param file the file to be written
+     * @return the file to replace, which is the given file if it does not
+     * exist, or null if the given file must be written directly
+     * @throws IOException if resolving a symbolic link fails
+     * @throws NullPointerException if file==null
+     */
+    public static File getReplaceableFile(File file) throws IOException {
+        final Path path = file.toPath();
+        if (!java.nio.file.Files.exists(path)) {
+            return java.nio.file.Files.isSymbolicLink(path) ? null : file;
+        }
+        final Path realPath = path.toRealPath();
+        if (!java.nio.file.Files.isRegularFile(realPath,
+                LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        return realPath.equals(path.toAbsolutePath()) ? file : realPath
+            .toFile();
+    }
+
+    /**
+     * Creates a temporary file in the same directory as the given file, to be
+     * written and then moved onto the given file by
+     * {@link #replace(File, File)}. Because the temporary file is in the same
+     * directory, the move is a rename within a single file system. If the
+     * given file exists then its permissions are copied to the temporary file,
+     * so that replacing it does not change them.
+     *
+     * @param file the file that the temporary file will replace
+     * @return the newly-created, empty temporary file; never returns null
+     * @throws IOException if creating the temporary file fails
+     * @throws NullPointerException if file==null
+     */
+    public static File createTempFileFor(File file) throws IOException {
+        final File absFile = file.getAbsoluteFile();
+        final File tempFile =
+            File.createTempFile("." + absFile.getName() + ".", ".tmp",
+                absFile.getParentFile());
+        if (absFile.exists()) {
+            try {
+                copyPermissions(absFile, tempFile);
+            } catch (final IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+        }
+        return tempFile;
+    }
+
+    /**
+     * Replaces a file with another file by renaming the other file. If the
+     * target file exists and cannot be renamed over, as is the case on some
+     * platforms, it is deleted first.
+     *
+     * @param source the file to rename
+     * @param target the file to replace
+     * @return true if the target file was replaced, or false if the rename
+     * failed, in which case the source file still exists
+     * @throws NullPointerException if source==null or target==null
+     */
+    public static boolean replace(File source, File target) {
+        if (source.renameTo(target)) {
+            return true;
+        }
+        target.delete();
+        return source.renameTo(target);
+    }
+
+    /**
+     * Gives a file the permissions of another file. On file systems without
+     * POSIX permissions only whether the file is executable is copied.
+     */
+    private static void copyPermissions(File source, File target)
+            throws IOException {
+        final PosixFileAttributeView sourceView =
+            java.nio.file.Files.getFileAttributeView(source.toPath(),
+                PosixFileAttributeView.class);
+        final PosixFileAttributeView targetView =
+            java.nio.file.Files.getFileAttributeView(target.toPath(),
+                PosixFileAttributeView.class);
+        if (sourceView != null && targetView != null) {
+            targetView.setPermissions(sourceView.readAttributes()
+                .permissions());
+        } else if (source.canExecute()) {
+            target.setExecutable(true);
+        }
+    }
+}
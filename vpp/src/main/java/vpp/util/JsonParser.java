@@ -0,0 +1,286 @@
+/*
+ * JsonParser.java
+ * By: Denver Coneybeare
+ * Oct 15, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal parser of JSON text.
+ * <p>
+ * JSON objects are parsed into instances of {@link Map} whose iteration order
+ * is that of their members, arrays into instances of {@link List}, strings
+ * into instances of {@link String}, numbers into instances of {@link Long} if
+ * they are integers that fit in a <code>long</code> and of {@link Double}
+ * otherwise, <code>true</code> and <code>false</code> into instances of
+ * {@link Boolean}, and <code>null</code> into null.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class JsonParser {
+
+    private final String text;
+    private int pos;
+
+    private JsonParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON value.
+     *
+     * @param text the JSON text, which must contain exactly one value,
+     * optionally surrounded by whitespace
+     * @return the parsed value, as described in the documentation of this
+     * class; may be null
+     * @throws ParseException if the text is not valid JSON; the error offset
+     * is the index of the character at which the error was detected
+     * @throws NullPointerException if text==null
+     */
+    public static Object parse(String text) throws ParseException {
+        if (text == null) {
+            throw new NullPointerException("text==null");
+        }
+        final JsonParser parser = new JsonParser(text);
+        parser.skipWhitespace();
+        final Object value = parser.parseValue();
+        parser.skipWhitespace();
+        if (parser.pos < text.length()) {
+            throw parser.error("unexpected character after value");
+        }
+        return value;
+    }
+
+    private Object parseValue() throws ParseException {
+        if (this.pos >= this.text.length()) {
+            throw this.error("unexpected end of text");
+        }
+        final char c = this.text.charAt(this.pos);
+        switch (c) {
+        case '{':
+            return this.parseObject();
+        case '[':
+            return this.parseArray();
+        case '"':
+            return this.parseString();
+        case 't':
+            this.expectWord("true");
+            return Boolean.TRUE;
+        case 'f':
+            this.expectWord("false");
+            return Boolean.FALSE;
+        case 'n':
+            this.expectWord("null");
+            return null;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return this.parseNumber();
+            }
+            throw this.error("unexpected character: " + c);
+        }
+    }
+
+    private Map<String, Object> parseObject() throws ParseException {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        this.pos++;
+        this.skipWhitespace();
+        if (this.peek() == '}') {
+            this.pos++;
+            return map;
+        }
+        while (true) {
+            this.skipWhitespace();
+            if (this.peek() != '"') {
+                throw this.error("expected member name");
+            }
+            final String name = this.parseString();
+            this.skipWhitespace();
+            this.expect(':');
+            this.skipWhitespace();
+            map.put(name, this.parseValue());
+            this.skipWhitespace();
+            if (this.peek() == ',') {
+                this.pos++;
+            } else {
+                this.expect('}');
+                return map;
+            }
+        }
+    }
+
+    private List<Object> parseArray() throws ParseException {
+        final List<Object> list = new ArrayList<Object>();
+        this.pos++;
+        this.skipWhitespace();
+        if (this.peek() == ']') {
+            this.pos++;
+            return list;
+        }
+        while (true) {
+            this.skipWhitespace();
+            list.add(this.parseValue());
+            this.skipWhitespace();
+            if (this.peek() == ',') {
+                this.pos++;
+            } else {
+                this.expect(']');
+                return list;
+            }
+        }
+    }
+
+    private String parseString() throws ParseException {
+        final StringBuilder sb = new StringBuilder();
+        this.pos++;
+        while (true) {
+            if (this.pos >= this.text.length()) {
+                throw this.error("unterminated string");
+            }
+            final char c = this.text.charAt(this.pos++);
+            if (c == '"') {
+                return sb.toString();
+            } else if (c < 0x20) {
+                this.pos--;
+                throw this.error("control character in string");
+            } else if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            if (this.pos >= this.text.length()) {
+                throw this.error("unterminated string");
+            }
+            final char escape = this.text.charAt(this.pos++);
+            switch (escape) {
+            case '"':
+            case '\\':
+            case '/':
+                sb.append(escape);
+                break;
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                if (this.pos + 4 > this.text.length()) {
+                    throw this.error("invalid unicode escape");
+                }
+                try {
+                    sb.append((char) Integer.parseInt(
+                        this.text.substring(this.pos, this.pos + 4), 16));
+                } catch (final NumberFormatException e) {
+                    throw this.error("invalid unicode escape");
+                }
+                this.pos += 4;
+                break;
+            default:
+                this.pos--;
+                throw this.error("invalid escape: \\" + escape);
+            }
+        }
+    }
+
+    private Object parseNumber() throws ParseException {
+        final int start = this.pos;
+        boolean integer = true;
+        if (this.peek() == '-') {
+            this.pos++;
+        }
+        if (!this.skipDigits()) {
+            throw this.error("invalid number");
+        }
+        if (this.peek() == '.') {
+            integer = false;
+            this.pos++;
+            if (!this.skipDigits()) {
+                throw this.error("invalid number");
+            }
+        }
+        if (this.peek() == 'e' || this.peek() == 'E') {
+            integer = false;
+            this.pos++;
+            if (this.peek() == '+' || this.peek() == '-') {
+                this.pos++;
+            }
+            if (!this.skipDigits()) {
+                throw this.error("invalid number");
+            }
+        }
+
+        final String number = this.text.substring(start, this.pos);
+        if (integer) {
+            try {
+                return Long.valueOf(number);
+            } catch (final NumberFormatException e) {
+                // too large for a long
+            }
+        }
+        return Double.valueOf(number);
+    }
+
+    private boolean skipDigits() {
+        final int start = this.pos;
+        while (this.peek() >= '0' && this.peek() <= '9') {
+            this.pos++;
+        }
+        return this.pos > start;
+    }
+
+    private void expectWord(String word) throws ParseException {
+        if (!this.text.startsWith(word, this.pos)) {
+            throw this.error("unexpected character: "
+                + this.text.charAt(this.pos));
+        }
+        this.pos += word.length();
+    }
+
+    private void expect(char c) throws ParseException {
+        if (this.peek() != c) {
+            throw this.error("expected '" + c + "'");
+        }
+        this.pos++;
+    }
+
+    /**
+     * Returns the current character, or 0 at the end of the text.
+     */
+    private char peek() {
+        return (this.pos < this.text.length()) ? this.text.charAt(this.pos)
+            : 0;
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.text.length()) {
+            final char c = this.text.charAt(this.pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            this.pos++;
+        }
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at offset " + this.pos, this.pos);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * JsonWriter.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal streaming writer of JSON text.
+ * <p>
+ * Values are written with {@link #value(String)}, {@link #value(long)} and so
+ * on, inside objects and arrays that are opened and closed with
+ * {@link #beginObject()}, {@link #endObject()}, {@link #beginArray()} and
+ * {@link #endArray()}; each value in an object must be preceded by
+ * {@link #name(String)}. Commas are inserted automatically. Misuse, such as
+ * writing a value in an object without a name, results in an
+ * {@link IllegalStateException}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class JsonWriter {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Writer writer;
+
+    /**
+     * For each open object or array, whether it is an object (true) or an
+     * array (false).
+     */
+    private final List<Boolean> scopes;
+    private boolean needsComma;
+    private boolean hasName;
+
+    /**
+     * Creates a new instance of <code>JsonWriter</code>.
+     *
+     * @param writer the writer to which to write the JSON text; it is never
+     * closed by this object
+     * @throws NullPointerException if writer==null
+     */
+    public JsonWriter(Writer writer) {
+        if (writer == null) {
+            throw new NullPointerException("writer==null");
+        }
+        this.writer = writer;
+        this.scopes = new ArrayList<Boolean>();
+    }
+
+    /**
+     * Begins a JSON object.
+     *
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter beginObject() throws IOException {
+        this.beforeValue();
+        this.writer.write('{');
+        this.scopes.add(Boolean.TRUE);
+        this.needsComma = false;
+        return this;
+    }
+
+    /**
+     * Ends the innermost JSON object.
+     *
+     * @return this object
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the innermost scope is not an object
+     */
+    public JsonWriter endObject() throws IOException {
+        this.endScope(true);
+        this.writer.write('}');
+        return this;
+    }
+
+    /**
+     * Begins a JSON array.
+     *
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter beginArray() throws IOException {
+        this.beforeValue();
+        this.writer.write('[');
+        this.scopes.add(Boolean.FALSE);
+        this.needsComma = false;
+        return this;
+    }
+
+    /**
+     * Ends the innermost JSON array.
+     *
+     * @return this object
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if the innermost scope is not an array
+     */
+    public JsonWriter endArray() throws IOException {
+        this.endScope(false);
+        this.writer.write(']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of the innermost JSON object.
+     *
+     * @param name the name
+     * @return this object
+     * @throws IOException if writing fails
+     * @throws NullPointerException if name==null
+     * @throws IllegalStateException if the innermost scope is not an object or
+     * a name was already written
+     */
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name==null");
+        } else if (!this.inObject() || this.hasName) {
+            throw new IllegalStateException("unexpected name: " + name);
+        }
+        if (this.needsComma) {
+            this.writer.write(',');
+        }
+        this.writeString(name);
+        this.writer.write(':');
+        this.hasName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value.
+     *
+     * @param value the value; may be null, in which case null is written
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter value(String value) throws IOException {
+        this.beforeValue();
+        if (value == null) {
+            this.writer.write("null");
+        } else {
+            this.writeString(value);
+        }
+        this.needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a numeric value.
+     *
+     * @param value the value
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter value(long value) throws IOException {
+        this.beforeValue();
+        this.writer.write(Long.toString(value));
+        this.needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a boolean value.
+     *
+     * @param value the value
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter value(boolean value) throws IOException {
+        this.beforeValue();
+        this.writer.write(value ? "true" : "false");
+        this.needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes a null value.
+     *
+     * @return this object
+     * @throws IOException if writing fails
+     */
+    public JsonWriter nullValue() throws IOException {
+        return this.value((String) null);
+    }
+
+    /**
+     * Flushes the underlying writer.
+     *
+     * @throws IOException if flushing fails
+     */
+    public void flush() throws IOException {
+        this.writer.flush();
+    }
+
+    private boolean inObject() {
+        final int size = this.scopes.size();
+        return size > 0 && this.scopes.get(size - 1).booleanValue();
+    }
+
+    private void beforeValue() throws IOException {
+        if (this.inObject()) {
+            if (!this.hasName) {
+                throw new IllegalStateException("value without a name");
+            }
+            this.hasName = false;
+        } else if (this.needsComma) {
+            this.writer.write(',');
+        }
+    }
+
+    private void endScope(boolean object) {
+        final int size = this.scopes.size();
+        if (size == 0 || this.scopes.get(size - 1).booleanValue() != object
+            || this.hasName) {
+            throw new IllegalStateException("unexpected end of "
+                + (object ? "object" : "array"));
+        }
+        this.scopes.remove(size - 1);
+        this.needsComma = true;
+    }
+
+    private void writeString(String s) throws IOException {
+        this.writer.write('"');
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                this.writer.write("\\\"");
+                break;
+            case '\\':
+                this.writer.write("\\\\");
+                break;
+            case '\n':
+                this.writer.write("\\n");
+                break;
+            case '\r':
+                this.writer.write("\\r");
+                break;
+            case '\t':
+                this.writer.write("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                    this.writer.write("\\u");
+                    this.writer.write(HEX_DIGITS[(c >> 12) & 0xF]);
+                    this.writer.write(HEX_DIGITS[(c >> 8) & 0xF]);
+                    this.writer.write(HEX_DIGITS[(c >> 4) & 0xF]);
+                    this.writer.write(HEX_DIGITS[c & 0xF]);
+                } else {
+                    this.writer.write(c);
+                }
+                break;
+            }
+        }
+        this.writer.write('"');
+    }
+}
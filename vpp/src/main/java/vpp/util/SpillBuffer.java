@@ -0,0 +1,303 @@
+/*
+ * SpillBuffer.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An output stream that collects bytes to be written somewhere else later,
+ * with bounded memory use however many bytes are written to it.
+ * <p>
+ * Bytes are held in fixed-size memory segments until their number exceeds a
+ * threshold, at which point they are moved to a temporary file and all
+ * further bytes are written to that file. {@link #transferTo} then writes the
+ * collected bytes to their real destination, using
+ * {@link FileChannel#transferTo} if they were spilled to a file so that they
+ * are not copied through the heap. Segments are returned to a small shared
+ * pool when the buffer is closed so that buffers created one after another do
+ * not allocate new ones.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class SpillBuffer extends OutputStream {
+
+    /**
+     * The size, in bytes, of each memory segment.
+     */
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * The default number of bytes held in memory before spilling to a file.
+     */
+    public static final long DEFAULT_THRESHOLD = 4L * 1024 * 1024;
+
+    /**
+     * The maximum number of segments kept in the shared pool.
+     */
+    private static final int MAX_POOLED_SEGMENTS = 128;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL =
+        new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private final long threshold;
+    private final File tempDir;
+    private final List<byte[]> segments;
+    private byte[] current;
+    private int currentLength;
+    private long size;
+    private File spillFile;
+    private FileChannel spillChannel;
+    private boolean closed;
+
+    /**
+     * Creates a new instance of <code>SpillBuffer</code> with the default
+     * threshold that spills to the default temporary-file directory.
+     */
+    public SpillBuffer() {
+        this(DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * Creates a new instance of <code>SpillBuffer</code>.
+     *
+     * @param threshold the number of bytes to hold in memory; once more than
+     * this many bytes have been written, they are moved to a temporary file
+     * @param tempDir the directory in which to create the temporary file, or
+     * null to use the default temporary-file directory
+     * @throws IllegalArgumentException if threshold&lt;0
+     */
+    public SpillBuffer(long threshold, File tempDir) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("invalid threshold: "
+                + threshold);
+        }
+        this.threshold = threshold;
+        this.tempDir = tempDir;
+        this.segments = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Returns the number of bytes written to this buffer.
+     *
+     * @return the number of bytes written to this buffer
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Returns whether the bytes written to this buffer have been moved to a
+     * temporary file.
+     *
+     * @return true if the bytes have been spilled to a file, or false if they
+     * are all held in memory
+     */
+    public boolean isSpilled() {
+        return (this.spillChannel != null);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (this.spillChannel == null && this.size + len > this.threshold) {
+            this.spill();
+        }
+
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (this.current == null || this.currentLength == SEGMENT_SIZE) {
+                this.nextSegment();
+            }
+            final int count =
+                Math.min(remaining, SEGMENT_SIZE - this.currentLength);
+            System.arraycopy(b, offset, this.current, this.currentLength,
+                count);
+            this.currentLength += count;
+            offset += count;
+            remaining -= count;
+        }
+        this.size += len;
+    }
+
+    /**
+     * Writes all bytes written to this buffer to a channel. This buffer may
+     * continue to be written to afterwards, and transferring again writes all
+     * of the bytes again.
+     *
+     * @param target the channel to which to write the bytes
+     * @throws IOException if reading the temporary file or writing to the
+     * channel fails
+     * @throws NullPointerException if target==null
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        this.ensureOpen();
+        if (target == null) {
+            throw new NullPointerException("target==null");
+        }
+
+        if (this.spillChannel == null) {
+            for (final byte[] segment : this.segments) {
+                final int length = (segment == this.current)
+                    ? this.currentLength : SEGMENT_SIZE;
+                writeFully(target, ByteBuffer.wrap(segment, 0, length));
+            }
+            return;
+        }
+
+        this.flushSegment();
+        final long fileSize = this.spillChannel.position();
+        long position = 0;
+        while (position < fileSize) {
+            final long count = this.spillChannel.transferTo(position,
+                fileSize - position, target);
+            if (count <= 0) {
+                throw new IOException("unable to transfer from "
+                    + this.spillFile.getPath());
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Releases the memory segments of this buffer and deletes its temporary
+     * file, if any. The bytes written to this buffer are discarded.
+     *
+     * @throws IOException if closing the temporary file fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        for (final byte[] segment : this.segments) {
+            release(segment);
+        }
+        this.segments.clear();
+        this.current = null;
+
+        if (this.spillChannel != null) {
+            try {
+                this.spillChannel.close();
+            } finally {
+                this.spillFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Moves the segments held in memory to a newly-created temporary file,
+     * keeping one segment to buffer the writes to the file.
+     */
+    private void spill() throws IOException {
+        final File file = File.createTempFile("vpp.", ".spill", this.tempDir);
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (final IOException e) {
+            file.delete();
+            throw e;
+        }
+        this.spillFile = file;
+        this.spillChannel = raf.getChannel();
+
+        for (final byte[] segment : this.segments) {
+            final int length = (segment == this.current)
+                ? this.currentLength : SEGMENT_SIZE;
+            writeFully(this.spillChannel, ByteBuffer.wrap(segment, 0, length));
+        }
+
+        // the segments are only released once they have all been written;
+        // if writing fails then they are still held, and close() releases
+        // each of them exactly once
+        for (final byte[] segment : this.segments) {
+            if (segment != this.current) {
+                release(segment);
+            }
+        }
+        this.segments.clear();
+        if (this.current != null) {
+            this.segments.add(this.current);
+            this.currentLength = 0;
+        }
+    }
+
+    /**
+     * Starts a new memory segment, or, if spilled, writes the single segment
+     * to the temporary file so that it can be reused.
+     */
+    private void nextSegment() throws IOException {
+        if (this.spillChannel != null && this.current != null) {
+            this.flushSegment();
+            return;
+        }
+        this.current = acquire();
+        this.currentLength = 0;
+        this.segments.add(this.current);
+    }
+
+    private void flushSegment() throws IOException {
+        if (this.currentLength > 0) {
+            writeFully(this.spillChannel,
+                ByteBuffer.wrap(this.current, 0, this.currentLength));
+            this.currentLength = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("buffer closed");
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel,
+            ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] acquire() {
+        final byte[] segment = POOL.poll();
+        if (segment == null) {
+            return new byte[SEGMENT_SIZE];
+        }
+        POOL_SIZE.decrementAndGet();
+        return segment;
+    }
+
+    private static void release(byte[] segment) {
+        if (POOL_SIZE.incrementAndGet() <= MAX_POOLED_SEGMENTS) {
+            POOL.offer(segment);
+        } else {
+            POOL_SIZE.decrementAndGet();
+        }
+    }
+}
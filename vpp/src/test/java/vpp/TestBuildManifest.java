@@ -0,0 +1,119 @@
+/*
+ * TestBuildManifest.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static vpp.TestVpp.createFile;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vpp.util.Digests;
+
+public class TestBuildManifest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testPutAndSave() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final File in = createFile(root, "in.vm", "#parse(\"inc.vm\")");
+        final File inc = createFile(root, "inc.vm", "inc");
+        final File out = createFile(root, "out.txt", "inc");
+        setPast(in, inc, out);
+        final File manifestFile = new File(root, "manifest");
+
+        final BuildManifest manifest = BuildManifest.load(manifestFile);
+        manifest.put(out, load(in), Collections.singletonList(inc),
+            System.currentTimeMillis(), "d", Digests.digest(out));
+        assertTrue(manifest.isUpToDate(out, new File[] { in }, "d"));
+        assertFalse(manifest.isUpToDate(out, new File[] { in }, "e"));
+        manifest.save();
+
+        // no temporary file is left behind
+        final String[] names = root.list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[] { "in.vm", "inc.vm", "manifest",
+            "out.txt" }, names);
+
+        final BuildManifest loaded = BuildManifest.load(manifestFile);
+        assertTrue(loaded.isUpToDate(out, new File[] { in }, "d"));
+        createFile(root, "inc.vm", "INC");
+        assertFalse(loaded.isUpToDate(out, new File[] { in }, "d"));
+    }
+
+    @Test
+    public void testPutRecordsInputAsRendered() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final File in = createFile(root, "in.vm", "old");
+        final File out = createFile(root, "out.txt", "old");
+        setPast(in, out);
+        final List<BuildManifest.FileState> inputs = load(in);
+
+        // the input changes after it was rendered but before it is recorded
+        createFile(root, "in.vm", "new");
+        assertTrue(in.setLastModified(in.lastModified() - 5000));
+
+        final BuildManifest manifest =
+            BuildManifest.load(new File(root, "manifest"));
+        manifest.put(out, inputs, new ArrayList<File>(),
+            System.currentTimeMillis(), "d", Digests.digest(out));
+        assertFalse(manifest.isUpToDate(out, new File[] { in }, "d"));
+    }
+
+    @Test
+    public void testPutRecentlyModifiedDependency() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final File in = createFile(root, "in.vm", "#parse(\"inc.vm\")");
+        final File inc = createFile(root, "inc.vm", "inc");
+        final File out = createFile(root, "out.txt", "inc");
+        setPast(in, out);
+
+        // the dependency may have been modified while it was rendered
+        final BuildManifest manifest =
+            BuildManifest.load(new File(root, "manifest"));
+        final long startMillis = inc.lastModified() - 1000;
+        manifest.put(out, load(in), Collections.singletonList(inc),
+            startMillis, "d", Digests.digest(out));
+        assertFalse(manifest.isUpToDate(out, new File[] { in }, "d"));
+
+        setPast(inc);
+        manifest.put(out, load(in), Collections.singletonList(inc),
+            System.currentTimeMillis(), "d", Digests.digest(out));
+        assertTrue(manifest.isUpToDate(out, new File[] { in }, "d"));
+    }
+
+    private static List<BuildManifest.FileState> load(File file)
+            throws Exception {
+        final long lastModified = file.lastModified();
+        final TemplateSource source = TemplateSource.read(file, UTF8);
+        return Collections.singletonList(BuildManifest.FileState.of(file,
+            source, lastModified));
+    }
+
+    private static void setPast(File... files) {
+        for (final File file : files) {
+            assertTrue(file.setLastModified(file.lastModified() - 10000));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * TestContextUsage.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestContextUsage {
+
+    @Test
+    public void testPreservesContext() throws Exception {
+        assertPreservesContext(true, "text $a $a.b $a.get(1) $a.size()");
+        assertPreservesContext(true,
+            "#foreach($i in [1..3])#if($i == 2)$i#else#break#end#end");
+        assertPreservesContext(true, "#include(\"a.txt\")#literal()$x#end");
+    }
+
+    @Test
+    public void testChangesContext() throws Exception {
+        assertPreservesContext(false, "#set($a = 1)");
+        assertPreservesContext(false, "#if(true)#set($a = 1)#end");
+        assertPreservesContext(false, "#define($a)x#end");
+        assertPreservesContext(false, "#macro(m)x#end");
+        assertPreservesContext(false, "#m()");
+        assertPreservesContext(false, "#parse(\"a.vm\")");
+        assertPreservesContext(false, "#evaluate(\"x\")");
+        assertPreservesContext(false, "$list.add(1)");
+        assertPreservesContext(false, "$map.put('a', 1)");
+        assertPreservesContext(false, "#foreach($i in $a)$b.setX($i)#end");
+    }
+
+    private static void assertPreservesContext(boolean expected,
+            String text) throws Exception {
+        final VppEngine engine = new VppEngine();
+        assertEquals(text, expected, ContextUsage.preservesContext(engine
+            .getTemplate("test", text)));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * TestDefineFileCache.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static vpp.TestVpp.createFile;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDefineFileCache {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testLoadJson() throws Exception {
+        final File file =
+            createFile(this.tempDir.getRoot(), "defines.json",
+                "{\"s\": \"x\", \"i\": 3, \"l\": 10000000000, \"d\": 1.5, "
+                    + "\"b\": false, \"n\": null, \"list\": [1, \"a\"], "
+                    + "\"map\": {\"k\": [true]}}");
+        final Map<String, Object> values =
+            new DefineFileCache().load(file).getValues();
+        assertEquals("x", values.get("s"));
+        assertEquals(Integer.valueOf(3), values.get("i"));
+        assertEquals(Long.valueOf(10000000000L), values.get("l"));
+        assertEquals(Double.valueOf(1.5), values.get("d"));
+        assertEquals(Boolean.FALSE, values.get("b"));
+        assertTrue(values.containsKey("n"));
+        assertNull(values.get("n"));
+        assertEquals(Arrays.asList(Integer.valueOf(1), "a"),
+            values.get("list"));
+        final Map<?, ?> map = (Map<?, ?>) values.get("map");
+        assertEquals(Arrays.asList(Boolean.TRUE), map.get("k"));
+
+        try {
+            ((List<?>) map.get("k")).clear();
+            fail("UnsupportedOperationException should have been thrown");
+        } catch (final UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLoadProperties() throws Exception {
+        final File file =
+            createFile(this.tempDir.getRoot(), "defines.properties",
+                "# comment\na=1\nb = two words\n");
+        final Map<String, Object> values =
+            new DefineFileCache().load(file).getValues();
+        assertEquals(2, values.size());
+        assertEquals("1", values.get("a"));
+        assertEquals("two words", values.get("b"));
+    }
+
+    @Test
+    public void testLoadIsCached() throws Exception {
+        final File file =
+            createFile(this.tempDir.getRoot(), "defines.json", "{\"a\": 1}");
+        final DefineFileCache cache = new DefineFileCache();
+        final DefineFileCache.DefineFile defineFile1 = cache.load(file);
+        assertSame(defineFile1, cache.load(file));
+        assertEquals(1, cache.getNumParses());
+
+        // touched but not changed: read again but not parsed again
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        final DefineFileCache.DefineFile defineFile2 = cache.load(file);
+        assertSame(defineFile1.getValues(), defineFile2.getValues());
+        assertEquals(1, cache.getNumParses());
+
+        createFile(this.tempDir.getRoot(), "defines.json", "{\"a\": 22}");
+        assertTrue(file.setLastModified(file.lastModified() - 20000));
+        final DefineFileCache.DefineFile defineFile3 = cache.load(file);
+        assertEquals(Integer.valueOf(22), defineFile3.getValues().get("a"));
+        assertNotSame(defineFile1.getDigest(), defineFile3.getDigest());
+        assertEquals(2, cache.getNumParses());
+    }
+
+    @Test
+    public void testLoadInvalid() throws Exception {
+        final DefineFileCache cache = new DefineFileCache();
+        assertLoadFails(cache, createFile(this.tempDir.getRoot(), "a.json",
+            "[1, 2]"));
+        assertLoadFails(cache, createFile(this.tempDir.getRoot(), "b.json",
+            "{\"a\": }"));
+        assertLoadFails(cache, new File(this.tempDir.getRoot(), "missing"));
+    }
+
+    private static void assertLoadFails(DefineFileCache cache, File file) {
+        try {
+            cache.load(file);
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(file.getPath()));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * TestDefinesContext.java
+ * By: Denver Coneybeare
+ * Oct 16, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.velocity.VelocityContext;
+import org.junit.Test;
+
+public class TestDefinesContext {
+
+    @Test
+    public void testLayering() {
+        final Map<String, String> baseDefines = new HashMap<String, String>();
+        baseDefines.put("a", "base-a");
+        baseDefines.put("b", "base-b");
+        baseDefines.put("c", "base-c");
+        final Map<String, String> jobDefines = new HashMap<String, String>();
+        jobDefines.put("b", "job-b");
+        jobDefines.put("c", null);
+        jobDefines.put("d", "job-d");
+
+        final DefinesContext base = new DefinesContext(baseDefines, null);
+        final DefinesContext context = new DefinesContext(jobDefines, base);
+        assertEquals("base-a", context.get("a"));
+        assertEquals("job-b", context.get("b"));
+        assertNull(context.get("c"));
+        assertEquals("job-d", context.get("d"));
+        assertNull(context.get("e"));
+        assertNull(context.get(null));
+        assertTrue(context.containsKey("a"));
+        assertFalse(context.containsKey("e"));
+        assertEquals(new HashSet<Object>(Arrays.asList("a", "b", "c", "d")),
+            new HashSet<Object>(Arrays.asList(context.getKeys())));
+        assertEquals("base-b", base.get("b"));
+    }
+
+    @Test
+    public void testAppendKey() {
+        final Map<String, String> defines = new HashMap<String, String>();
+        defines.put("b", "2");
+        defines.put("a", null);
+        final StringBuilder sb = new StringBuilder();
+        new DefinesContext(defines, null).appendKey(sb);
+        assertEquals("1:a-\n1:b1:2\nend\n", sb.toString());
+
+        final StringBuilder sb2 = new StringBuilder();
+        defines.put("a", "");
+        new DefinesContext(defines, null).appendKey(sb2);
+        assertFalse(sb.toString().equals(sb2.toString()));
+    }
+
+    @Test
+    public void testRenderContextDoesNotModifyDefines() {
+        final Map<String, String> defines = new HashMap<String, String>();
+        defines.put("a", "define");
+        final DefinesContext definesContext =
+            new DefinesContext(defines, null);
+
+        final VelocityContext context = new VelocityContext(definesContext);
+        assertEquals("define", context.get("a"));
+        context.put("a", "set");
+        assertEquals("set", context.get("a"));
+        assertEquals("define", definesContext.get("a"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPut() {
+        new DefinesContext(new HashMap<String, String>(), null).put("a", "b");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemove() {
+        new DefinesContext(new HashMap<String, String>(), null).remove("a");
+    }
+}
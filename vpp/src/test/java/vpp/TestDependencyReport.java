@@ -0,0 +1,94 @@
+/*
+ * TestDependencyReport.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static vpp.TestVpp.createFile;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDependencyReport {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testWriteMakefile() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final File in = createFile(root, "in.vm", "#parse(\"inc.vm\")x");
+        final File inc = createFile(root, "inc.vm", "i");
+        final File out = new File(root, "out.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        options.setManifestPath(new File(root, "manifest").getPath());
+
+        final VppEngine engine = new VppEngine(root);
+        final String expected =
+            out.getPath() + ": \\\n  " + in.getPath() + " \\\n  "
+                + inc.getPath() + "\n\n" + inc.getPath() + ":\n";
+        assertEquals(expected, this.writeMakefile(options, engine));
+
+        // an up-to-date output has the dependencies recorded by the manifest
+        assertEquals(expected, this.writeMakefile(options, engine));
+    }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final File in = createFile(root, "in.vm", "#include(\"inc.txt\")");
+        final File inc = createFile(root, "inc.txt", "i");
+        final File outDir = new File(root, "out");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputDirectory(outDir.getPath());
+
+        final StatsReport report = new StatsReport();
+        final Vpp vpp = new Vpp(options, new VppEngine(root));
+        vpp.addListener(report);
+        vpp.run();
+
+        final StringWriter json = new StringWriter();
+        DependencyReport.writeJson(report.getRunStats(), json);
+        assertTrue(json.toString(), json.toString().startsWith(
+            "{\"version\":1,\"outputs\":[{\"output\":"));
+        assertTrue(json.toString(), json.toString().contains(
+            "\"dependencies\":[" + quote(inc.getPath()) + "]}]}\n"));
+    }
+
+    @Test
+    public void testEscapeMakePath() {
+        assertEquals("a\\ b$$c\\#d",
+            DependencyReport.escapeMakePath("a b$c#d"));
+    }
+
+    private String writeMakefile(VppOptions options, VppEngine engine)
+            throws Exception {
+        final StatsReport report = new StatsReport();
+        final Vpp vpp = new Vpp(options, engine);
+        vpp.addListener(report);
+        vpp.run();
+        final StringWriter writer = new StringWriter();
+        DependencyReport.writeMakefile(report.getRunStats(), writer);
+        return writer.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\") + "\"";
+    }
+}
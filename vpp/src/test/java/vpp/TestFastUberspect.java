@@ -0,0 +1,134 @@
+/*
+ * TestFastUberspect.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.junit.Test;
+
+public class TestFastUberspect {
+
+    private static final String TEMPLATE =
+        "$map.a $map.class.simpleName $map.get('a') $map.containsKey('b') "
+            + "$map.size() $list.get(1) $list.size() $array.size() "
+            + "$array.get(0) $bean.name $bean.active $bean.other "
+            + "$bean.add(1, 2) $bean.join('x', 'y') $bean.upper('z') "
+            + "#foreach($x in $list)$x#end";
+
+    @Test
+    public void testMatchesDefaultUberspect() throws Exception {
+        final String expected =
+            "A HashMap A false 1 2 3 2 p bean got active got other 3 x,y Z "
+                + "123";
+        assertEquals(expected, render(new VppEngine(), TEMPLATE));
+        assertEquals(expected, render(createDefaultEngine(), TEMPLATE));
+    }
+
+    @Test
+    public void testCachedAcrossTemplates() throws Exception {
+        final VppEngine engine = new VppEngine();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("bean Z",
+                render(engine, "$bean.name $bean.upper('z')"));
+        }
+    }
+
+    @Test
+    public void testExceptionsAreReported() throws Exception {
+        assertInvocationFails("$list.get(5)");
+        assertInvocationFails("$bean.fail");
+        assertInvocationFails("$bean.upper(null)");
+    }
+
+    private static void assertInvocationFails(String template)
+            throws Exception {
+        try {
+            render(new VppEngine(), template);
+            fail("MethodInvocationException should have been thrown");
+        } catch (final MethodInvocationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("threw"));
+        }
+    }
+
+    private static VppEngine createDefaultEngine() {
+        final Properties properties = new Properties();
+        properties.setProperty("runtime.introspection.uberspect",
+            UberspectImpl.class.getName());
+        return new VppEngine(new File("."), new TemplateCache(), properties);
+    }
+
+    private static String render(VppEngine engine, String text)
+            throws Exception {
+        final Map<String, String> map = new HashMap<String, String>();
+        map.put("a", "A");
+        final VelocityContext context = new VelocityContext();
+        context.put("map", map);
+        context.put("list", Collections.unmodifiableList(
+            Arrays.asList(Integer.valueOf(1), Integer.valueOf(2),
+                Integer.valueOf(3))));
+        context.put("array", new String[] { "p", "q" });
+        context.put("bean", new Bean());
+
+        final StringWriter writer = new StringWriter();
+        engine.getTemplate("test", text).merge(context, writer);
+        return writer.toString();
+    }
+
+    public static class Bean {
+
+        public String getName() {
+            return "bean";
+        }
+
+        public boolean isActive() {
+            return true;
+        }
+
+        public String get(String key) {
+            return "got " + key;
+        }
+
+        public long add(long a, long b) {
+            return a + b;
+        }
+
+        public String join(String... parts) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String part : parts) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(part);
+            }
+            return sb.toString();
+        }
+
+        public String upper(String s) {
+            return s.toUpperCase();
+        }
+
+        public String getFail() {
+            throw new IllegalStateException("fail");
+        }
+    }
+}
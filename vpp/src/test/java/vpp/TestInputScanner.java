@@ -0,0 +1,185 @@
+/*
+ * TestInputScanner.java
+ * By: Denver Coneybeare
+ * Oct 14, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static vpp.TestVpp.createFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestInputScanner {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = this.tempDir.newFolder("src");
+        final File sub = new File(this.root, "sub");
+        final File deep = new File(sub, "deep");
+        final File skip = new File(this.root, "skip");
+        assertTrue(deep.mkdirs());
+        assertTrue(skip.mkdirs());
+        createFile(this.root, "a.vm", "");
+        createFile(this.root, "b.txt", "");
+        createFile(sub, "c.vm", "");
+        createFile(deep, "d.vm", "");
+        createFile(skip, "e.vm", "");
+    }
+
+    @Test
+    public void testGlobToRegex() {
+        assertGlob("*.vm", "a.vm", true);
+        assertGlob("*.vm", "x/a.vm", false);
+        assertGlob("**/*.vm", "a.vm", true);
+        assertGlob("**/*.vm", "x/y/a.vm", true);
+        assertGlob("x/**", "x/y/a.vm", true);
+        assertGlob("?.vm", "a.vm", true);
+        assertGlob("?.vm", "ab.vm", false);
+        assertGlob("[ab].vm", "b.vm", true);
+        assertGlob("[!ab].vm", "b.vm", false);
+        assertGlob("*.{vm,txt}", "b.txt", true);
+        assertGlob("*.{vm,txt}", "b.xml", false);
+        assertGlob("a+b.vm", "a+b.vm", true);
+    }
+
+    private static void assertGlob(String glob, String path, boolean expected) {
+        final Pattern pattern = Pattern.compile(InputScanner.globToRegex(glob));
+        assertEquals(glob + " vs " + path, expected,
+            pattern.matcher(path).matches());
+    }
+
+    @Test
+    public void testGetBaseDirectory() {
+        assertEquals(new File("src/main"),
+            InputScanner.getBaseDirectory("src/main/**/*.vm"));
+        assertEquals(new File("."), InputScanner.getBaseDirectory("*.vm"));
+        assertEquals(new File("a.vm"), InputScanner.getBaseDirectory("a.vm"));
+    }
+
+    @Test
+    public void testListDirectory() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[0], new String[0]);
+        assertEquals(paths("a.vm", "b.txt", "skip/e.vm", "sub/c.vm",
+            "sub/deep/d.vm"), scanner.list(this.root.getPath()));
+    }
+
+    @Test
+    public void testListGlob() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[0], new String[0]);
+        assertEquals(paths("a.vm", "skip/e.vm", "sub/c.vm", "sub/deep/d.vm"),
+            scanner.list(this.root.getPath() + "/**/*.vm"));
+        assertEquals(paths("sub/c.vm"),
+            scanner.list(this.root.getPath() + "/sub/*.vm"));
+    }
+
+    @Test
+    public void testListIncludeExclude() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[] { "*.vm" }, new String[] { "skip",
+                "sub/deep/*" });
+        assertEquals(paths("a.vm", "sub/c.vm"),
+            scanner.list(this.root.getPath()));
+    }
+
+    @Test
+    public void testListFileIsNeverFiltered() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[] { "*.vm" }, new String[0]);
+        final String path = new File(this.root, "b.txt").getPath();
+        assertEquals(paths("b.txt"), scanner.list(path));
+    }
+
+    @Test(expected = VppException.class)
+    public void testListGlobNoMatches() throws Exception {
+        new InputScanner(new String[0], new String[0]).list(this.root.getPath()
+            + "/*.xml");
+    }
+
+    @Test(expected = VppException.class)
+    public void testListNotFound() throws Exception {
+        new InputScanner(new String[0], new String[0]).list(new File(
+            this.root, "missing").getPath());
+    }
+
+    @Test
+    public void testGetMaxDepth() {
+        assertEquals(1, InputScanner.getMaxDepth("*.vm"));
+        assertEquals(2, InputScanner.getMaxDepth("*/*.vm"));
+        assertEquals(3, InputScanner.getMaxDepth("{a,b/c}/*.vm"));
+        assertEquals(-1, InputScanner.getMaxDepth("**/*.vm"));
+        assertEquals(-1, InputScanner.getMaxDepth("x/**"));
+    }
+
+    @Test
+    public void testListPatternDepth() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[0], new String[0]);
+        assertEquals(paths("skip/e.vm", "sub/c.vm"), scanner.list(new File(
+            this.root, "*/?.vm").getPath()));
+        assertEquals(paths("sub/deep/d.vm"), scanner.list(new File(
+            this.root, "*/*/*.vm").getPath()));
+    }
+
+    @Test
+    public void testListExcludedDirectory() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[0], new String[0], new File(
+                this.root, "sub"));
+        assertEquals(paths("a.vm", "b.txt", "skip/e.vm"), scanner
+            .list(this.root.getPath()));
+    }
+
+    @Test
+    public void testCallbackException() throws Exception {
+        final InputScanner scanner =
+            new InputScanner(new String[0], new String[0]);
+        final List<String> found = new ArrayList<String>();
+        try {
+            scanner.scan(this.root.getPath(), new InputScanner.Callback() {
+                public void inputFound(File file, String relativePath)
+                        throws VppException {
+                    synchronized (found) {
+                        found.add(relativePath);
+                    }
+                    throw new VppException("stop");
+                }
+            });
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            assertEquals("stop", e.getMessage());
+        }
+        final int numFound = found.size();
+        Thread.sleep(50);
+        assertEquals(numFound, found.size());
+    }
+
+    private List<File> paths(String... relativePaths) {
+        final List<File> files = new ArrayList<File>();
+        for (final String relativePath : relativePaths) {
+            files.add(new File(this.root, relativePath));
+        }
+        return files;
+    }
+}
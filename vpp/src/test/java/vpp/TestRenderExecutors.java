@@ -0,0 +1,165 @@
+/*
+ * TestRenderExecutors.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestRenderExecutors {
+
+    @Test
+    public void testPlatformThreadsBounded() throws Exception {
+        assertBounded(RenderExecutors.newExecutor(3, false), 3);
+    }
+
+    @Test
+    public void testVirtualThreadsBounded() throws Exception {
+        // falls back to platform threads if virtual threads are unsupported
+        assertBounded(RenderExecutors.newExecutor(3, true), 3);
+    }
+
+    @Test
+    public void testVirtualThreadsErrorsPerTask() throws Exception {
+        final ExecutorService executor = RenderExecutors.newExecutor(2, true);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 10; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        if (index % 3 == 0) {
+                            throw new VppException("task " + index);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    assertTrue(i % 3 != 0);
+                } catch (final ExecutionException e) {
+                    assertEquals("task " + i, e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBoundedExecutorShutdownNow() throws Exception {
+        assertShutdownNow(new RenderExecutors.BoundedExecutor(Executors
+            .newCachedThreadPool(), 1));
+    }
+
+    @Test
+    public void testVirtualThreadsShutdownNow() throws Exception {
+        Assume.assumeTrue(RenderExecutors.isVirtualThreadsSupported());
+        assertShutdownNow(RenderExecutors.newExecutor(1, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewExecutorZeroJobs() {
+        RenderExecutors.newExecutor(0, true);
+    }
+
+    /**
+     * Asserts that shutting down the given executor, which runs one task at a
+     * time, returns the submitted tasks that had not started and interrupts the
+     * running task.
+     */
+    private static void assertShutdownNow(ExecutorService executor)
+            throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<?> running = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                started.countDown();
+                Thread.sleep(60 * 1000);
+                return null;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        final List<Future<?>> waiting = new ArrayList<Future<?>>();
+        for (int i = 0; i < 3; i++) {
+            waiting.add(executor.submit(new Runnable() {
+                public void run() {
+                    fail("the task was run after shutdownNow()");
+                }
+            }));
+        }
+
+        final List<Runnable> notRun = executor.shutdownNow();
+        assertEquals(new HashSet<Object>(waiting), new HashSet<Object>(notRun));
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        try {
+            running.get();
+            fail("the running task was not interrupted");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+
+    private static void assertBounded(ExecutorService executor, int numJobs)
+            throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger numRun = new AtomicInteger();
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        final int now = running.incrementAndGet();
+                        while (true) {
+                            final int max = maxRunning.get();
+                            if (now <= max
+                                || maxRunning.compareAndSet(max, now)) {
+                                break;
+                            }
+                        }
+                        try {
+                            Thread.sleep(2);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        numRun.incrementAndGet();
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(50, numRun.get());
+        assertTrue(String.valueOf(maxRunning.get()),
+            maxRunning.get() <= numJobs);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * TestStreamChunker.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestStreamChunker {
+
+    @Test
+    public void testSafeLines() throws Exception {
+        assertChunks("a\n#if($x)\nb\n#end\nc", "a\n", "#if($x)\nb\n#end\n",
+            "c");
+    }
+
+    @Test
+    public void testNestedAndBracedDirectives() throws Exception {
+        assertChunks("#{foreach}($i in $l)\n#if($i)\n#end\n#{end}\nx\n",
+            "#{foreach}($i in $l)\n#if($i)\n#end\n#{end}\n", "x\n");
+    }
+
+    @Test
+    public void testOpenParentheses() throws Exception {
+        assertChunks("#set($a = [1,\n\")\",\n2])\n$b.c(1,\n2)\nx\n",
+            "#set($a = [1,\n\")\",\n2])\n", "$b.c(1,\n2)\n", "x\n");
+    }
+
+    @Test
+    public void testCommentsAndUnparsed() throws Exception {
+        assertChunks("#* #if(\n*#\n#[[ #if(\n]]#\n## #if($x)\nx\n",
+            "#* #if(\n*#\n", "#[[ #if(\n]]#\n", "## #if($x)\n", "x\n");
+    }
+
+    @Test
+    public void testTextThatIsNotADirective() throws Exception {
+        assertChunks("#define X 1\n\\#if($x)\n# heading\n",
+            "#define X 1\n", "\\#if($x)\n", "# heading\n");
+    }
+
+    @Test
+    public void testMacros() throws Exception {
+        assertChunks("#macro(m $x)\n$x\n#end\n#@m(1)\nbody\n#end\n",
+            "#macro(m $x)\n$x\n#end\n", "#@m(1)\nbody\n#end\n");
+    }
+
+    @Test
+    public void testTargetLength() throws Exception {
+        // lines are only combined while more input is ready
+        final StreamChunker chunker =
+            new StreamChunker(new StringReader("a\nb\nc\nd\n"), null, 4);
+        assertEquals("a\nb\n", chunker.nextChunk());
+        assertEquals("c\nd\n", chunker.nextChunk());
+        assertNull(chunker.nextChunk());
+    }
+
+    @Test
+    public void testDelimiter() throws Exception {
+        final StreamChunker chunker =
+            new StreamChunker(new StringReader("--\na\n#if(\n--\r\n--\nb"),
+                "--", 1);
+        assertEquals("a\n#if(\n", chunker.nextChunk());
+        assertEquals(2, chunker.getChunkLineNumber());
+        assertEquals("b", chunker.nextChunk());
+        assertEquals(6, chunker.getChunkLineNumber());
+        assertNull(chunker.nextChunk());
+    }
+
+    private static void assertChunks(String text, String... expected)
+            throws Exception {
+        final StreamChunker chunker =
+            new StreamChunker(new UnreadyReader(text), null, 1);
+        final List<String> chunks = new ArrayList<String>();
+        while (true) {
+            final String chunk = chunker.nextChunk();
+            if (chunk == null) {
+                break;
+            }
+            chunks.add(chunk);
+        }
+        assertEquals(Arrays.asList(expected), chunks);
+    }
+
+    /**
+     * A reader that never reports that it is ready, as if every line arrived
+     * separately.
+     */
+    private static class UnreadyReader extends Reader {
+
+        private final String text;
+        private int pos;
+
+        public UnreadyReader(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (this.pos == this.text.length()) {
+                return -1;
+            }
+            // one line at a time
+            int end = this.text.indexOf('\n', this.pos);
+            end = (end < 0) ? this.text.length() : end + 1;
+            end = Math.min(end, this.pos + length);
+            this.text.getChars(this.pos, end, buffer, offset);
+            final int numRead = end - this.pos;
+            this.pos = end;
+            return numRead;
+        }
+
+        @Override
+        public boolean ready() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * TestTemplateCache.java
+ * By: Denver Coneybeare
+ * 2011-09-25
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTemplateCache {
+
+    private RuntimeInstance engine;
+
+    @Before
+    public void setUp() {
+        this.engine = new RuntimeInstance();
+        this.engine.init();
+    }
+
+    @Test
+    public void testGetTemplateHit() {
+        final TemplateCache cache = new TemplateCache();
+        final Template t1 = cache.getTemplate(this.engine, "", "a", "$x");
+        final Template t2 = cache.getTemplate(this.engine, "", "b", "$x");
+        assertSame(t1, t2);
+        assertEquals("a", t2.getName());
+        assertEquals(1, cache.getNumHits());
+        assertEquals(1, cache.getNumMisses());
+        assertEquals("1", merge(t2, "x", "1"));
+        assertEquals("2", merge(t2, "x", "2"));
+    }
+
+    @Test
+    public void testGetTemplateConcurrentlyParsesOnce() throws Exception {
+        final TemplateCache cache = new TemplateCache();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("#set($x").append(i).append(" = ").append(i).append(")");
+        }
+        final String text = sb.toString();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    cache.getTemplate(engine, "", "t", text);
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, cache.getNumMisses());
+        assertEquals(threads.length - 1, cache.getNumHits());
+    }
+
+    @Test
+    public void testGetTemplateDifferentConfigKey() {
+        final TemplateCache cache = new TemplateCache();
+        final Template t1 = cache.getTemplate(this.engine, "a", "t", "$x");
+        final Template t2 = cache.getTemplate(this.engine, "b", "t", "$x");
+        assertNotSame(t1, t2);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        final TemplateCache cache = new TemplateCache(2, 1000);
+        final Template t1 = cache.getTemplate(this.engine, "", "1", "1");
+        cache.getTemplate(this.engine, "", "2", "2");
+        cache.getTemplate(this.engine, "", "1", "1");
+        cache.getTemplate(this.engine, "", "3", "3");
+        assertEquals(2, cache.size());
+        assertSame(t1, cache.getTemplate(this.engine, "", "1", "1"));
+        assertEquals(3, cache.getNumMisses());
+        cache.getTemplate(this.engine, "", "2", "2");
+        assertEquals(4, cache.getNumMisses());
+    }
+
+    @Test
+    public void testEvictByChars() {
+        final TemplateCache cache = new TemplateCache(100, 5);
+        cache.getTemplate(this.engine, "", "1", "123");
+        cache.getTemplate(this.engine, "", "2", "456");
+        assertEquals(1, cache.size());
+        cache.getTemplate(this.engine, "", "3", "123456");
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        final TemplateCache cache = new TemplateCache(0, 0);
+        final Template t1 = cache.getTemplate(this.engine, "", "1", "1");
+        final Template t2 = cache.getTemplate(this.engine, "", "1", "1");
+        assertNotSame(t1, t2);
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = ParseErrorException.class)
+    public void testGetTemplateParseError() {
+        new TemplateCache().getTemplate(this.engine, "", "bad", "#if(");
+    }
+
+    private static String merge(Template template, String key, String value) {
+        final VelocityContext context = new VelocityContext();
+        context.put(key, value);
+        final StringWriter writer = new StringWriter();
+        template.merge(context, writer);
+        return writer.toString();
+    }
+}
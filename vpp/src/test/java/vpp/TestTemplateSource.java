@@ -0,0 +1,136 @@
+/*
+ * TestTemplateSource.java
+ * By: Denver Coneybeare
+ * Oct 10, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTemplateSource {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testReadSmallFile() throws Exception {
+        final File file =
+            TestVpp.createFile(this.tempDir.getRoot(), "a.vm", "café $x");
+        final TemplateSource source = TemplateSource.read(file, UTF8);
+        assertEquals("café $x", source.toString());
+        assertEquals(7, source.length());
+        assertEquals(TemplateSource.fromString("café $x").getKey(), source
+            .getKey());
+    }
+
+    @Test
+    public void testReadMappedFile() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() <= TemplateSource.MAP_THRESHOLD) {
+            sb.append("line é $x\n");
+        }
+        final String text = sb.toString();
+        final File file =
+            TestVpp.createFile(this.tempDir.getRoot(), "big.vm", text);
+        final TemplateSource source = TemplateSource.read(file, UTF8);
+        assertEquals(text, source.toString());
+        assertEquals(TemplateSource.fromString(text).getKey(), source.getKey());
+        assertEquals(TemplateSource.read(
+            new ByteArrayInputStream(text.getBytes("UTF-8")), UTF8).getKey(),
+            source.getKey());
+    }
+
+    @Test
+    public void testKeyIncludesCharset() throws Exception {
+        final byte[] bytes = "abc".getBytes("US-ASCII");
+        final TemplateSource utf8 =
+            TemplateSource.read(new ByteArrayInputStream(bytes), UTF8);
+        final TemplateSource latin1 =
+            TemplateSource.read(new ByteArrayInputStream(bytes), Charset
+                .forName("ISO-8859-1"));
+        assertEquals(utf8.toString(), latin1.toString());
+        assertFalse(utf8.getKey().equals(latin1.getKey()));
+    }
+
+    @Test
+    public void testOpenReaderIsIndependent() throws Exception {
+        final TemplateSource source = TemplateSource.fromString("hello");
+        final Reader reader1 = source.openReader();
+        assertEquals('h', reader1.read());
+        final Reader reader2 = source.openReader();
+        final char[] buffer = new char[10];
+        assertEquals(5, reader2.read(buffer, 0, buffer.length));
+        assertEquals(-1, reader2.read(buffer, 0, buffer.length));
+        assertEquals('e', reader1.read());
+    }
+
+    @Test
+    public void testPlainText() throws Exception {
+        final TemplateSource plain = read("café\n\\x", UTF8);
+        assertTrue(plain.isPlainText());
+        final ByteBuffer bytes = plain.getPlainTextBytes();
+        assertEquals(8, bytes.remaining());
+        assertEquals('c', bytes.get());
+        assertEquals(8, plain.getPlainTextBytes().remaining());
+
+        assertFalse(read("a # b", UTF8).isPlainText());
+        assertFalse(read("$", UTF8).isPlainText());
+        assertNull(read("a # b", UTF8).getPlainTextBytes());
+        assertTrue(read("", UTF8).isPlainText());
+
+        // the search of eight bytes at a time finds the characters anywhere
+        final String text = "0123456789abcdefghij";
+        for (int i = 0; i <= text.length(); i++) {
+            final String withSyntax =
+                text.substring(0, i) + "$" + text.substring(i);
+            assertFalse(withSyntax, read(withSyntax, UTF8).isPlainText());
+        }
+    }
+
+    @Test
+    public void testPlainTextOtherCharsets() throws Exception {
+        final Charset utf16 = Charset.forName("UTF-16BE");
+        assertTrue(read("abc", utf16).isPlainText());
+        assertNull(read("abc", utf16).getPlainTextBytes());
+        assertFalse(read("a#c", utf16).isPlainText());
+
+        // '\u0123' and '\u2400' encode to bytes that include '#' and '$'
+        assertTrue(read("\u0123\u2400", utf16).isPlainText());
+
+        assertTrue(TemplateSource.fromString("abc").isPlainText());
+        assertFalse(TemplateSource.fromString("$abc").isPlainText());
+        assertNull(TemplateSource.fromString("abc").getPlainTextBytes());
+    }
+
+    private static TemplateSource read(String text, Charset charset)
+            throws Exception {
+        return TemplateSource.read(new ByteArrayInputStream(text
+            .getBytes(charset.name())), charset);
+    }
+
+    @Test(expected = CharacterCodingException.class)
+    public void testReadMalformed() throws Exception {
+        final byte[] bytes = new byte[] { 'a', (byte) 0xC3 };
+        TemplateSource.read(new ByteArrayInputStream(bytes), UTF8);
+    }
+}
@@ -0,0 +1,711 @@
+/*
+ * TestVpp.java
+ * By: Denver Coneybeare
+ * 2011-09-20
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestVpp {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testRunConcatenated() throws Exception {
+        final File in1 = this.createFile("in1.vm", "#set($x = \"one\")a=$a\n");
+        final File in2 = this.createFile("in2.vm", "x=$x\n");
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in1.getPath());
+        options.addInputPath(in2.getPath());
+        options.setOutputPath(out.getPath());
+        options.setDefine("a", "A");
+        new Vpp(options).run();
+
+        assertEquals("a=A\nx=one\n", readFile(out));
+    }
+
+    @Test
+    public void testRunConcatenatedParallelMatchesSerial() throws Exception {
+        this.createFile("inc.txt", "i\n");
+        final VppOptions options = new VppOptions();
+        for (int i = 0; i < 20; i++) {
+            final File in =
+                this.createFile("in" + i + ".vm", "#foreach($i in [1.." + i
+                    + "])$name$i #end#include(\"inc.txt\")");
+            options.addInputPath(in.getPath());
+        }
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+        options.setOutputPath(out.getPath());
+        options.setDefine("name", "n");
+        final Vpp serialVpp = new Vpp(options,
+            new VppEngine(this.tempDir.getRoot()));
+        serialVpp.run();
+        final String expected = readFile(out);
+        assertTrue(expected, expected.contains("i\nn1 n2 i\n"));
+
+        options.setJobs(4);
+        final RunStats[] runStats = new RunStats[1];
+        final Vpp parallelVpp = new Vpp(options,
+            new VppEngine(this.tempDir.getRoot()));
+        parallelVpp.addListener(new VppListener() {
+            public void outputFinished(OutputStats stats) {
+                // only the run statistics are checked
+            }
+
+            public void runFinished(RunStats stats) {
+                runStats[0] = stats;
+            }
+        });
+        parallelVpp.run();
+        assertEquals(expected, readFile(out));
+        final OutputStats stats = runStats[0].getOutputs().get(0);
+        assertEquals(out.length(), stats.getBytesOut());
+        assertEquals(1, stats.getDependencyPaths().length);
+
+        // an input that sets a value used by the next is rendered serially
+        final VppOptions setOptions = new VppOptions();
+        setOptions.addInputPath(this.createFile("set.vm", "#set($x = 1)")
+            .getPath());
+        setOptions.addInputPath(this.createFile("get.vm", "x=$x").getPath());
+        setOptions.setOutputPath(out.getPath());
+        setOptions.setJobs(2);
+        final Vpp setVpp = new Vpp(setOptions);
+        setVpp.addListener(new VppListener() {
+            public void outputFinished(OutputStats stats) {
+                // only the run statistics are checked
+            }
+
+            public void runFinished(RunStats stats) {
+                runStats[0] = stats;
+            }
+        });
+        setVpp.run();
+        assertEquals("x=1", readFile(out));
+
+        // the inputs that were loaded concurrently are not loaded again
+        final OutputStats setStats = runStats[0].getOutputs().get(0);
+        assertEquals(2, setStats.getCacheMisses());
+        assertEquals(0, setStats.getCacheHits());
+    }
+
+    @Test
+    public void testRunConcatenatedParallelManyInputs() throws Exception {
+        // more input files than jobs are rendered a few at a time, in order
+        final VppOptions options = new VppOptions();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            options.addInputPath(this.createFile("in" + i + ".vm",
+                i + "$x,").getPath());
+            expected.append(i).append("-,");
+        }
+        options.setDefine("x", "-");
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+        options.setOutputPath(out.getPath());
+        options.setJobs(3);
+        new Vpp(options).run();
+        assertEquals(expected.toString(), readFile(out));
+    }
+
+    @Test
+    public void testRunConcatenatedParallelFailure() throws Exception {
+        final VppOptions options = new VppOptions();
+        options.addInputPath(this.createFile("in1.vm", "one").getPath());
+        final File bad = this.createFile("in2.vm", "$bad.substring(5)");
+        options.addInputPath(bad.getPath());
+        options.addInputPath(this.createFile("in3.vm", "three").getPath());
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+        options.setOutputPath(out.getPath());
+        options.setDefine("bad", "x");
+        options.setJobs(3);
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                bad.getPath() + ": "));
+        }
+        assertFalse(out.exists());
+        assertEquals(3, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testRunPlainText() throws Exception {
+        final File plain = this.createFile("plain.txt", "café \\ 100%\r\n");
+        final File in = this.createFile("in.vm", "$a");
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(plain.getPath());
+        options.addInputPath(in.getPath());
+        options.addInputPath(plain.getPath());
+        options.setOutputPath(out.getPath());
+        options.setDefine("a", "A");
+        new Vpp(options).run();
+        assertEquals("café \\ 100%\r\nAcafé \\ 100%\r\n", readFile(out));
+
+        // the text is encoded again if the output encoding differs
+        options.setOutputEncoding("ISO-8859-1");
+        new Vpp(options).run();
+        assertEquals(27, out.length());
+        options.setOutputEncoding("US-ASCII");
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                "output is not encodable as US-ASCII"));
+        }
+    }
+
+    @Test
+    public void testRunOutputSymbolicLink() throws Exception {
+        Assume.assumeTrue(isPosix());
+        final File in = this.createFile("in.vm", "new");
+        final File target = this.createFile("target.txt", "old");
+        final File link = new File(this.tempDir.getRoot(), "link.txt");
+        java.nio.file.Files.createSymbolicLink(link.toPath(),
+            target.toPath());
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(link.getPath());
+        new Vpp(options).run();
+
+        assertTrue(java.nio.file.Files.isSymbolicLink(link.toPath()));
+        assertEquals("new", readFile(target));
+        // no temporary file is left behind
+        assertEquals(3, this.tempDir.getRoot().list().length);
+
+        // a failed render leaves both the link and its target alone
+        createFile(this.tempDir.getRoot(), "in.vm", "ok\n$a.foo(\n");
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            // expected
+        }
+        assertTrue(java.nio.file.Files.isSymbolicLink(link.toPath()));
+        assertEquals("new", readFile(target));
+        assertEquals(3, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testRunOutputPermissionsKept() throws Exception {
+        Assume.assumeTrue(isPosix());
+        final File in = this.createFile("in.vm", "new");
+        final File out = this.createFile("out.sh", "old");
+        final Set<PosixFilePermission> permissions =
+            PosixFilePermissions.fromString("rwxr-x---");
+        java.nio.file.Files.setPosixFilePermissions(out.toPath(),
+            permissions);
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        new Vpp(options).run();
+
+        assertEquals("new", readFile(out));
+        assertEquals(permissions,
+            java.nio.file.Files.getPosixFilePermissions(out.toPath()));
+    }
+
+    @Test
+    public void testRunOutputDevice() throws Exception {
+        final File devNull = new File("/dev/null");
+        Assume.assumeTrue(devNull.exists() && !devNull.isFile());
+        final File in = this.createFile("in.vm", "text");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(devNull.getPath());
+        new Vpp(options).run();
+
+        assertTrue(devNull.exists() && !devNull.isFile());
+    }
+
+    @Test
+    public void testRunPerFileParallelMatchesSerial() throws Exception {
+        final VppOptions serialOptions = new VppOptions();
+        final VppOptions parallelOptions = new VppOptions();
+        for (int i = 0; i < 20; i++) {
+            final File in =
+                this.createFile("in" + i + ".txt.vm", "#foreach($i in [1.." + i
+                    + "])$name$i #end\n");
+            serialOptions.addInputPath(in.getPath());
+            parallelOptions.addInputPath(in.getPath());
+        }
+
+        final File serialDir = new File(this.tempDir.getRoot(), "serial");
+        serialOptions.setOutputDirectory(serialDir.getPath());
+        serialOptions.setStripSuffix(".vm");
+        serialOptions.setDefine("name", "n");
+        new Vpp(serialOptions).run();
+
+        final File parallelDir = new File(this.tempDir.getRoot(), "parallel");
+        parallelOptions.setOutputDirectory(parallelDir.getPath());
+        parallelOptions.setStripSuffix(".vm");
+        parallelOptions.setDefine("name", "n");
+        parallelOptions.setJobs(4);
+        new Vpp(parallelOptions).run();
+
+        for (int i = 0; i < 20; i++) {
+            final String name = "in" + i + ".txt";
+            final String expected = readFile(new File(serialDir, name));
+            final String actual = readFile(new File(parallelDir, name));
+            assertEquals(name, expected, actual);
+        }
+        assertEquals("n1 n2 n3 ", readFile(new File(serialDir, "in3.txt")));
+    }
+
+    @Test
+    public void testRunPerFileReportsEachFailure() throws Exception {
+        final File good = this.createFile("good.vm", "good\n");
+        final File bad1 = this.createFile("bad1.vm", "#if(\n");
+        final File bad2 = this.createFile("bad2.vm", "#foreach(\n");
+        final File outDir = new File(this.tempDir.getRoot(), "out");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(bad1.getPath());
+        options.addInputPath(good.getPath());
+        options.addInputPath(bad2.getPath());
+        options.setOutputDirectory(outDir.getPath());
+        options.setJobs(3);
+
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            final String message = e.getMessage();
+            assertTrue(message,
+                message.startsWith("2 of 3 input files failed"));
+            assertTrue(message, message.contains(bad1.getPath()));
+            assertTrue(message, message.contains(bad2.getPath()));
+            assertTrue(message, message.indexOf(bad1.getPath()) < message
+                .indexOf(bad2.getPath()));
+        }
+
+        assertEquals("good\n", readFile(new File(outDir, "good.vm")));
+        assertFalse(new File(outDir, "bad1.vm").exists());
+        assertFalse(new File(outDir, "bad2.vm").exists());
+    }
+
+    @Test(expected = VppException.class)
+    public void testRunPerFileOutputCollision() throws Exception {
+        final File dir1 = this.tempDir.newFolder("dir1");
+        final File dir2 = this.tempDir.newFolder("dir2");
+        final VppOptions options = new VppOptions();
+        options.addInputPath(createFile(dir1, "a.vm", "1").getPath());
+        options.addInputPath(createFile(dir2, "a.vm", "2").getPath());
+        options.setOutputDirectory(new File(this.tempDir.getRoot(), "out")
+            .getPath());
+        new Vpp(options).run();
+    }
+
+    @Test
+    public void testRunPerFileExpandedMirrorsTree() throws Exception {
+        final File srcDir = this.tempDir.newFolder("src");
+        final File subDir = new File(srcDir, "sub");
+        assertTrue(subDir.mkdir());
+        createFile(srcDir, "a.txt.vm", "a=$x\n");
+        createFile(subDir, "b.txt.vm", "b=$x\n");
+        createFile(subDir, "c.txt", "not a template\n");
+        createFile(subDir, "bad.txt.vm", "#if(\n");
+        final File outDir = new File(this.tempDir.getRoot(), "out");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(srcDir.getPath() + "/**/*.vm");
+        options.addExcludePattern("bad.*");
+        options.setOutputDirectory(outDir.getPath());
+        options.setStripSuffix(".vm");
+        options.setJobs(2);
+        options.setDefine("x", "1");
+        new Vpp(options).run();
+
+        assertEquals("a=1\n", readFile(new File(outDir, "a.txt")));
+        assertEquals("b=1\n", readFile(new File(outDir, "sub/b.txt")));
+        assertFalse(new File(outDir, "sub/c.txt").exists());
+        assertFalse(new File(outDir, "sub/bad.txt").exists());
+    }
+
+    @Test
+    public void testRunPerFileExpandedOutputInInputDirectory()
+            throws Exception {
+        final File srcDir = this.tempDir.newFolder("src");
+        createFile(srcDir, "a.txt", "a=$x\n");
+        final File outDir = new File(srcDir, "out");
+        assertTrue(outDir.mkdir());
+        createFile(outDir, "stale.txt", "$x\n");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(srcDir.getPath());
+        options.setOutputDirectory(outDir.getPath());
+        options.setDefine("x", "1");
+        new Vpp(options).run();
+        new Vpp(options).run();
+
+        // files in the output directory are never rendered as inputs
+        assertEquals("a=1\n", readFile(new File(outDir, "a.txt")));
+        assertEquals(2, outDir.list().length);
+    }
+
+    @Test
+    public void testRunConcatenatedDirectory() throws Exception {
+        final File srcDir = this.tempDir.newFolder("src");
+        createFile(srcDir, "2.vm", "two\n");
+        createFile(srcDir, "1.vm", "one\n");
+        final File in = this.createFile("first.vm", "first\n");
+        final File out = new File(this.tempDir.getRoot(), "out");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.addInputPath(srcDir.getPath());
+        options.setOutputPath(out.getPath());
+        new Vpp(options).run();
+
+        assertEquals("first\none\ntwo\n", readFile(out));
+    }
+
+    @Test
+    public void testRunIncremental() throws Exception {
+        final File in1 = this.createFile("in1.vm", "1$a");
+        final File in2 = this.createFile("in2.vm", "2$a");
+        final File outDir = new File(this.tempDir.getRoot(), "out");
+        final File manifest = new File(this.tempDir.getRoot(), "manifest");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in1.getPath());
+        options.addInputPath(in2.getPath());
+        options.setOutputDirectory(outDir.getPath());
+        options.setManifestPath(manifest.getPath());
+        options.setDefine("a", "A");
+
+        final VppEngine engine = new VppEngine();
+        final TemplateCache cache = engine.getTemplateCache();
+        new Vpp(options, engine).run();
+        assertEquals(2, cache.getNumMisses());
+        assertEquals("1A", readFile(new File(outDir, "in1.vm")));
+
+        // nothing changed
+        new Vpp(options, engine).run();
+        assertEquals(0, cache.getNumHits());
+
+        // an input changed
+        createFile(this.tempDir.getRoot(), "in2.vm", "2$a$a");
+        new Vpp(options, engine).run();
+        assertEquals(3, cache.getNumMisses());
+        assertEquals("2AA", readFile(new File(outDir, "in2.vm")));
+
+        // a define changed
+        options.setDefine("a", "B");
+        new Vpp(options, engine).run();
+        assertEquals(2, cache.getNumHits());
+        assertEquals("1B", readFile(new File(outDir, "in1.vm")));
+
+        // an output was deleted
+        new File(outDir, "in1.vm").delete();
+        new Vpp(options, engine).run();
+        assertEquals(3, cache.getNumHits());
+        assertEquals("1B", readFile(new File(outDir, "in1.vm")));
+    }
+
+    @Test
+    public void testRunKeepUnchanged() throws Exception {
+        final File in = this.createFile("in.vm", "x$a");
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        options.setKeepUnchanged(true);
+        options.setDefine("a", "A");
+        new Vpp(options).run();
+        assertEquals("xA", readFile(out));
+
+        // the same output leaves the output file untouched
+        assertTrue(out.setLastModified(out.lastModified() - 10000));
+        final long lastModified = out.lastModified();
+        new Vpp(options).run();
+        assertEquals(lastModified, out.lastModified());
+        assertEquals(2, this.tempDir.getRoot().list().length);
+
+        // different output of the same size replaces the output file
+        options.setDefine("a", "B");
+        new Vpp(options).run();
+        assertEquals("xB", readFile(out));
+        assertTrue(lastModified != out.lastModified());
+        assertEquals(2, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testRunDefineFiles() throws Exception {
+        final File in = this.createFile("in.vm", "#foreach($x in $list)$x,"
+            + "#end#if(!$debug)release#end $name $map.k $a");
+        final File json = this.createFile("defines.json", "{\"list\": [1, 2], "
+            + "\"debug\": false, \"name\": \"json\", \"map\": {\"k\": 7}}");
+        final File properties =
+            this.createFile("defines.properties", "name=props\na=A\n");
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+        final File manifest = new File(this.tempDir.getRoot(), "manifest");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        options.setManifestPath(manifest.getPath());
+        options.addDefineFile(json.getPath());
+        options.addDefineFile(properties.getPath());
+        options.setDefine("a", "cmd");
+
+        final VppEngine engine = new VppEngine();
+        new Vpp(options, engine).run();
+        assertEquals("1,2,release props 7 cmd", readFile(out));
+
+        // unchanged define files are neither parsed again nor cause the
+        // output to be rendered again
+        new Vpp(options, engine).run();
+        assertEquals(2, engine.getDefineFileCache().getNumParses());
+        assertEquals(1, engine.getTemplateCache().getNumMisses()
+            + engine.getTemplateCache().getNumHits());
+
+        this.createFile("defines.properties", "name=changed\n");
+        assertTrue(properties
+            .setLastModified(properties.lastModified() - 10000));
+        new Vpp(options, engine).run();
+        assertEquals("1,2,release changed 7 cmd", readFile(out));
+    }
+
+    @Test
+    public void testRunStreaming() throws Exception {
+        final String input =
+            "#macro(m $x)<$x>#end\n#set($n = 1)\n#m($n)\n"
+                + "#foreach($i in [1..2])\n$i\n#end\n$a\n";
+        final VppOptions options = new VppOptions();
+        options.setStreaming(true);
+        options.setDefine("a", "A");
+        final Vpp vpp = new Vpp(options);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vpp.setStandardStreams(
+            new ByteArrayInputStream(input.getBytes("UTF-8")), out);
+        vpp.run();
+
+        // the same output as rendering the input as one template
+        assertEquals("<1>1\n2\nA\n", out.toString("UTF-8"));
+        // the chunks are not added to the template cache
+        assertEquals(0, vpp.getEngine().getTemplateCache().size());
+    }
+
+    @Test
+    public void testSharedEngine() throws Exception {
+        this.createFile("header.vm", "header:$a\n");
+        final File in = this.createFile("in.vm", "#parse(\"header.vm\")body\n");
+        final VppEngine engine =
+            new VppEngine(this.tempDir.getRoot(), new TemplateCache(), null);
+
+        for (int i = 0; i < 3; i++) {
+            final File out = new File(this.tempDir.getRoot(), "out" + i);
+            final VppOptions options = new VppOptions();
+            options.addInputPath(in.getPath());
+            options.setOutputPath(out.getPath());
+            options.setDefine("a", String.valueOf(i));
+            final Vpp vpp = new Vpp(options, engine);
+            vpp.run();
+            assertTrue(vpp.getEngine() == engine);
+            assertEquals("header:" + i + "\nbody\n", readFile(out));
+        }
+
+        assertEquals(1, engine.getTemplateCache().getNumMisses());
+        assertEquals(2, engine.getTemplateCache().getNumHits());
+    }
+
+    @Test
+    public void testRunEncodings() throws Exception {
+        final File in = new File(this.tempDir.getRoot(), "in.vm");
+        final OutputStream inStream = new FileOutputStream(in);
+        try {
+            inStream.write("caf\u00e9 $a".getBytes("ISO-8859-1"));
+        } finally {
+            inStream.close();
+        }
+        final File out = new File(this.tempDir.getRoot(), "out.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        options.setDefine("a", "\u00fc");
+        options.setInputEncoding("ISO-8859-1");
+        options.setOutputEncoding("UTF-16BE");
+        new Vpp(options).run();
+
+        final byte[] expected = "caf\u00e9 \u00fc".getBytes("UTF-16BE");
+        final InputStream outStream = new FileInputStream(out);
+        try {
+            final byte[] actual = new byte[(int) out.length()];
+            assertEquals(actual.length, outStream.read(actual));
+            assertTrue(java.util.Arrays.equals(expected, actual));
+        } finally {
+            outStream.close();
+        }
+    }
+
+    @Test
+    public void testRunFailureLeavesOldOutput() throws Exception {
+        final File in = this.createFile("in.vm", "ok\n$a.foo(\n");
+        final File out = this.createFile("out.txt", "old");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            // expected
+        }
+
+        assertEquals("old", readFile(out));
+        assertEquals(2, this.tempDir.getRoot().list().length);
+
+        options.setOutputEncoding("US-ASCII");
+        createFile(this.tempDir.getRoot(), "in.vm", "caf\u00e9");
+        try {
+            new Vpp(options).run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("US-ASCII"));
+        }
+        assertEquals("old", readFile(out));
+        assertEquals(2, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testListenerStats() throws Exception {
+        final File in1 = this.createFile("in1.vm", "one $a\n");
+        final File in2 = this.createFile("in2.vm", "#if(\n");
+        final File in3 = this.createFile("in3.vm", "one $a\n");
+        final File outDir = new File(this.tempDir.getRoot(), "out");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in1.getPath());
+        options.addInputPath(in2.getPath());
+        options.addInputPath(in3.getPath());
+        options.setOutputDirectory(outDir.getPath());
+        options.setDefine("a", "A");
+
+        final List<OutputStats> outputs =
+            Collections.synchronizedList(new ArrayList<OutputStats>());
+        final RunStats[] runStats = new RunStats[1];
+        final Vpp vpp = new Vpp(options);
+        vpp.addListener(new VppListener() {
+            public void outputFinished(OutputStats stats) {
+                outputs.add(stats);
+            }
+
+            public void runFinished(RunStats stats) {
+                runStats[0] = stats;
+            }
+        });
+        try {
+            vpp.run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            // expected
+        }
+
+        assertEquals(3, outputs.size());
+        final RunStats stats = runStats[0];
+        assertEquals(3, stats.getOutputs().size());
+        assertEquals(in1.getPath(),
+            stats.getOutputs().get(0).getInputPaths()[0]);
+        assertEquals(1, stats.getNumFailed());
+        assertTrue(stats.getOutputs().get(1).getError()
+            .contains(in2.getPath()));
+        assertEquals(3, stats.getNumInputs());
+        assertEquals(19, stats.getBytesIn());
+        assertEquals(12, stats.getBytesOut());
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(2, stats.getCacheMisses());
+        assertTrue(stats.getWallNanos() > 0);
+        assertTrue(stats.getRenderNanos() > 0);
+
+        final StringWriter json = new StringWriter();
+        StatsReport.write(stats, json);
+        assertTrue(json.toString(), json.toString().startsWith(
+            "{\"version\":1,\"wallNanos\":"));
+        assertTrue(json.toString(), json.toString().contains(
+            "\"outputs\":3,\"skipped\":0,\"failed\":1,\"inputs\":3,"
+                + "\"bytesIn\":19,\"bytesOut\":12,\"cacheHits\":1,"
+                + "\"cacheMisses\":2,"));
+    }
+
+    private File createFile(String name, String contents) throws IOException {
+        return createFile(this.tempDir.getRoot(), name, contents);
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews()
+            .contains("posix");
+    }
+
+    static File createFile(File dir, String name, String contents)
+            throws IOException {
+        final File file = new File(dir, name);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static String readFile(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int numRead =
+                    in.read(bytes, offset, bytes.length - offset);
+                if (numRead < 0) {
+                    break;
+                }
+                offset += numRead;
+            }
+            return new String(bytes, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * TestVppBatch.java
+ * By: Denver Coneybeare
+ * Oct 15, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static vpp.TestVpp.createFile;
+import static vpp.TestVpp.readFile;
+
+import java.io.File;
+import java.io.StringReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestVppBatch {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testRun() throws Exception {
+        final File root = this.tempDir.getRoot();
+        createFile(root, "page.vm", "$greeting $name $n\n");
+        createFile(root, "header.vm", "#set($name = \"header\")");
+
+        final VppOptions baseOptions = new VppOptions();
+        baseOptions.addInputPath(new File(root, "page.vm").getPath());
+        baseOptions.setDefine("greeting", "hello");
+        baseOptions.setDefine("name", "base");
+        baseOptions.setJobs(4);
+
+        final StringBuilder batchFile = new StringBuilder();
+        batchFile.append("# jobs\n\n");
+        for (int i = 0; i < 20; i++) {
+            batchFile.append("{\"output\": \"out/" + i + ".txt\", "
+                + "\"defines\": {\"name\": \"n" + i + "\", \"n\": " + i
+                + "}}\n");
+        }
+        batchFile.append("{\"input\": [\"header.vm\", \"page.vm\"], "
+            + "\"output\": \"out/header.txt\", "
+            + "\"defines\": {\"greeting\": \"hi\", \"n\": true}}\n");
+
+        final VppEngine engine =
+            new VppEngine(root, new TemplateCache(), null);
+        final VppBatch batch = new VppBatch(baseOptions, engine);
+        batch.readJobs(new StringReader(batchFile.toString()), "batch", root);
+        assertEquals(21, batch.getNumJobs());
+
+        final StatsReport report = new StatsReport();
+        batch.addListener(report);
+        new File(root, "out").mkdir();
+        batch.run();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("hello n" + i + " " + i + "\n", readFile(new File(
+                root, "out/" + i + ".txt")));
+        }
+        assertEquals("hi header true\n", readFile(new File(root,
+            "out/header.txt")));
+
+        // page.vm is parsed once and shared by every job
+        assertEquals(2, engine.getTemplateCache().getNumMisses());
+        assertEquals(21, report.getRunStats().getOutputs().size());
+        assertEquals("out/0.txt".replace('/', File.separatorChar),
+            report.getRunStats().getOutputs().get(0).getOutputPath()
+                .substring(root.getPath().length() + 1));
+    }
+
+    @Test
+    public void testRunNullDefineHidesBaseDefine() throws Exception {
+        final File root = this.tempDir.getRoot();
+        createFile(root, "page.vm", "[$!greeting]");
+
+        final VppOptions baseOptions = new VppOptions();
+        baseOptions.addInputPath(new File(root, "page.vm").getPath());
+        baseOptions.setDefine("greeting", "hello");
+
+        final VppBatch batch = new VppBatch(baseOptions,
+            new VppEngine(root, new TemplateCache(), null));
+        batch.readJobs(new StringReader(
+            "{\"output\": \"a.txt\"}\n" + "{\"output\": \"b.txt\", "
+                + "\"defines\": {\"greeting\": null}}\n"),
+            "batch", root);
+        batch.run();
+
+        assertEquals("[hello]", readFile(new File(root, "a.txt")));
+        assertEquals("[]", readFile(new File(root, "b.txt")));
+    }
+
+    @Test
+    public void testRunReportsEachFailure() throws Exception {
+        final File root = this.tempDir.getRoot();
+        final VppOptions baseOptions = new VppOptions();
+        baseOptions.setJobs(2);
+        final VppBatch batch = new VppBatch(baseOptions);
+        createFile(root, "good.vm", "good");
+        batch.readJobs(new StringReader(
+            "{\"input\": \"missing1.vm\", \"output\": \"1.txt\"}\n"
+                + "{\"input\": \"good.vm\", \"output\": \"2.txt\"}\n"
+                + "{\"input\": \"missing3.vm\", \"output\": \"3.txt\"}\n"),
+            "batch", root);
+
+        try {
+            batch.run();
+            fail("VppException should have been thrown");
+        } catch (final VppException e) {
+            final String message = e.getMessage();
+            assertTrue(message, message.startsWith("2 of 3 jobs failed:\n"
+                + "  batch:1: "));
+            assertTrue(message, message.contains("\n  batch:3: "));
+        }
+        assertEquals("good", readFile(new File(root, "2.txt")));
+    }
+
+    @Test
+    public void testReadJobsInvalid() throws Exception {
+        final String[] invalid =
+            { "[1]", "{\"output\": \"x\"", "{\"input\": 1, \"output\": \"x\"}",
+                "{\"input\": \"a\", \"output\": \"x\", \"bogus\": 1}",
+                "{\"input\": \"a\", \"output\": \"x\", "
+                    + "\"defines\": {\"a\": []}}",
+                "{\"input\": \"a\"}", "{\"output\": \"x\"}" };
+        for (final String line : invalid) {
+            final VppBatch batch = new VppBatch(new VppOptions());
+            try {
+                batch.readJobs(new StringReader("\n" + line + "\n"), "b", null);
+                fail("VppException should have been thrown: " + line);
+            } catch (final VppException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("b:2: "));
+            }
+            assertEquals(0, batch.getNumJobs());
+        }
+    }
+}
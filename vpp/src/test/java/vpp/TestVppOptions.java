@@ -0,0 +1,139 @@
+/*
+ * TestVppOptions.java
+ * By: Denver Coneybeare
+ * Oct 16, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TestVppOptions {
+
+    @Test
+    public void testSnapshot() {
+        final VppOptions options = new VppOptions();
+        options.addInputPath("a.vm");
+        options.addInputPath("b.vm");
+        options.addIncludePattern("*.vm");
+        options.setOutputDirectory("out");
+        options.setStripSuffix(".vm");
+        options.setJobs(3);
+        options.setInputEncoding("latin1");
+        options.setDefine("name", "value");
+
+        final VppOptionsSnapshot snapshot = options.snapshot();
+        assertEquals(Arrays.asList("a.vm", "b.vm"), snapshot.getInputPaths());
+        assertEquals(Arrays.asList("*.vm"), snapshot.getIncludePatterns());
+        assertEquals(Collections.emptyList(), snapshot.getExcludePatterns());
+        assertEquals("out", snapshot.getOutputDirectory());
+        assertNull(snapshot.getOutputPath());
+        assertEquals(".vm", snapshot.getStripSuffix());
+        assertEquals(3, snapshot.getJobs());
+        assertEquals("ISO-8859-1", snapshot.getInputEncoding());
+        assertEquals(Charset.forName("ISO-8859-1"),
+            snapshot.getInputCharset());
+        assertEquals(Charset.forName(VppOptions.DEFAULT_ENCODING),
+            snapshot.getOutputCharset());
+        assertEquals("value", snapshot.getDefine("name"));
+        assertNull(snapshot.getDefine(null));
+    }
+
+    @Test
+    public void testSnapshotIsReused() {
+        final VppOptions options = new VppOptions();
+        options.addInputPath("a.vm");
+        final VppOptionsSnapshot snapshot = options.snapshot();
+        assertSame(snapshot, options.snapshot());
+
+        options.setJobs(2);
+        assertNotSame(snapshot, options.snapshot());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByChanges() {
+        final VppOptions options = new VppOptions();
+        options.addInputPath("a.vm");
+        options.setDefine("name", "old");
+        final VppOptionsSnapshot snapshot = options.snapshot();
+
+        options.addInputPath("b.vm");
+        options.removeInputPath("a.vm");
+        options.setDefine("name", "new");
+        options.setDefine("other", "value");
+
+        assertEquals(Arrays.asList("a.vm"), snapshot.getInputPaths());
+        assertEquals(Collections.singletonMap("name", "old"),
+            snapshot.getDefines());
+        assertEquals(Arrays.asList("b.vm"),
+            options.snapshot().getInputPaths());
+        assertEquals("new", options.snapshot().getDefine("name"));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        final VppOptions options = new VppOptions();
+        options.addInputPath("a.vm");
+        final VppOptions copy = new VppOptions(options);
+        copy.addInputPath("b.vm");
+        assertEquals(1, options.getNumInputPaths());
+        assertEquals(2, copy.getNumInputPaths());
+
+        // the original's lists are copied too before it modifies them
+        options.addIncludePattern("*.vm");
+        options.addExcludePattern("x.vm");
+        options.addDefineFile("defines.properties");
+        options.removeInputPath("a.vm");
+        assertEquals(0, copy.getIncludePatterns().length);
+        assertEquals(0, copy.getExcludePatterns().length);
+        assertEquals(0, copy.getDefineFiles().length);
+        assertEquals(Arrays.asList("a.vm", "b.vm"),
+            Arrays.asList(copy.getInputPaths()));
+    }
+
+    @Test
+    public void testSnapshotListsAreNotAffectedByChanges() {
+        final VppOptions options = new VppOptions();
+        options.addIncludePattern("*.vm");
+        final VppOptionsSnapshot snapshot = options.snapshot();
+
+        options.addIncludePattern("*.txt");
+        options.addExcludePattern("x.vm");
+        options.addDefineFile("defines.properties");
+
+        assertEquals(Arrays.asList("*.vm"), snapshot.getIncludePatterns());
+        assertEquals(0, snapshot.getExcludePatterns().size());
+        assertEquals(0, snapshot.getDefineFiles().size());
+        assertEquals(Arrays.asList("*.vm", "*.txt"),
+            options.snapshot().getIncludePatterns());
+    }
+
+    @Test
+    public void testClearDefines() {
+        final VppOptions options = new VppOptions();
+        options.setDefine("a", "b");
+        final VppOptionsSnapshot snapshot = options.snapshot();
+        options.clearDefines();
+        assertEquals(0, options.getDefineKeys().length);
+        assertEquals("b", snapshot.getDefine("a"));
+        assertNull(options.snapshot().getDefine("a"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsUnmodifiable() {
+        final VppOptions options = new VppOptions();
+        options.snapshot().getInputPaths().add("a.vm");
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * TestVppServer.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static vpp.TestVpp.createFile;
+import static vpp.TestVpp.readFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestVppServer {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File tokenFile;
+    private VppServer server;
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws Exception {
+        this.tokenFile = new File(this.tempDir.getRoot(), "daemon.token");
+        final VppServer server = new VppServer(0, this.tokenFile);
+        this.server = server;
+        this.serverSocket = server.listen();
+        this.serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.serve(TestVppServer.this.serverSocket);
+                } catch (final VppException e) {
+                    // the socket was closed by tearDown()
+                }
+            }
+        };
+        this.serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.serverSocket.close();
+        this.serverThread.join();
+    }
+
+    @Test
+    public void testTokenFile() throws Exception {
+        assertEquals(32, this.tokenFile.length());
+        assertTrue(this.tokenFile.canRead());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains(
+            "posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"),
+                Files.getPosixFilePermissions(this.tokenFile.toPath()));
+        }
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        final File root = this.tempDir.newFolder("work");
+        createFile(root, "in.vm", "#set($x = 6 * 7)$x $greeting\n");
+        createFile(root, "other.vm", "#include(\"in.vm\")");
+
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        final VppClient client = this.createClient();
+        final int exitCode =
+            client.forward(new String[] { "-D", "greeting=hi", "in.vm" },
+                root, stdout, new PrintStream(stderr, true));
+        assertEquals(0, exitCode);
+        assertEquals("42 hi\n", stdout.toString("UTF-8"));
+        assertEquals("", stderr.toString("UTF-8"));
+
+        // relative output paths are resolved against the working directory
+        assertEquals(0, client.forward(new String[] { "-o", "out.txt",
+            "other.vm" }, root, stdout, new PrintStream(stderr, true)));
+        assertEquals("#set($x = 6 * 7)$x $greeting\n", readFile(new File(root,
+            "out.txt")));
+    }
+
+    @Test
+    public void testForwardSeesChangedTemplates() throws Exception {
+        final File root = this.tempDir.newFolder("work");
+        createFile(root, "in.vm", "#parse(\"inc.vm\")");
+        createFile(root, "inc.vm", "old");
+        final VppClient client = this.createClient();
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        assertEquals(0, client.forward(new String[] { "in.vm" }, root, stdout,
+            System.err));
+        assertEquals("old", stdout.toString("UTF-8"));
+
+        // a template changed right after a request is seen by the next one
+        createFile(root, "inc.vm", "new");
+        stdout.reset();
+        assertEquals(0, client.forward(new String[] { "in.vm" }, root, stdout,
+            System.err));
+        assertEquals("new", stdout.toString("UTF-8"));
+    }
+
+    @Test
+    public void testEnginesBounded() throws Exception {
+        final VppClient client = this.createClient();
+        for (int i = 0; i < VppServer.MAX_ENGINES + 2; i++) {
+            final File root = this.tempDir.newFolder("work" + i);
+            createFile(root, "in.vm", "$x");
+            final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            assertEquals(0, client.forward(new String[] { "-D", "x=" + i,
+                "in.vm" }, root, stdout, System.err));
+            assertEquals(String.valueOf(i), stdout.toString("UTF-8"));
+        }
+        assertEquals(VppServer.MAX_ENGINES, this.server.getNumEngines());
+    }
+
+    @Test
+    public void testForwardFailure() throws Exception {
+        final File root = this.tempDir.newFolder("work");
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        final int exitCode =
+            this.createClient().forward(new String[] { "missing.vm" }, root,
+                stdout, new PrintStream(stderr, true));
+        assertEquals(1, exitCode);
+        assertEquals(0, stdout.size());
+        assertTrue(stderr.toString("UTF-8").startsWith("ERROR: "));
+    }
+
+    @Test(expected = ConnectException.class)
+    public void testForwardNoTokenFile() throws Exception {
+        final VppClient client =
+            new VppClient(this.serverSocket.getLocalPort(), new File(
+                this.tempDir.getRoot(), "missing.token"));
+        client.forward(new String[] { "in.vm" }, this.tempDir.getRoot(),
+            new ByteArrayOutputStream(), System.err);
+    }
+
+    @Test
+    public void testBadProtocolVersion() throws Exception {
+        final Socket socket = this.connect();
+        try {
+            final DataOutputStream out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(VppServer.PROTOCOL_VERSION + 1);
+            out.flush();
+            final DataInputStream in =
+                new DataInputStream(socket.getInputStream());
+            assertEquals(2, in.readInt());
+            assertEquals("unsupported protocol version: "
+                + (VppServer.PROTOCOL_VERSION + 1), VppServer.readString(in));
+            assertEquals(0, in.readLong());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testBadToken() throws Exception {
+        final Socket socket = this.connect();
+        try {
+            final DataOutputStream out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(VppServer.PROTOCOL_VERSION);
+            final byte[] token = VppServer.readTokenFile(this.tokenFile);
+            token[0] ^= 1;
+            out.write(token);
+            out.flush();
+            // the daemon responds before reading the rest of the request
+            final DataInputStream in =
+                new DataInputStream(socket.getInputStream());
+            assertEquals(2, in.readInt());
+            assertEquals("invalid daemon token", VppServer.readString(in));
+            assertEquals(0, in.readLong());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testTooManyArguments() throws Exception {
+        final Socket socket = this.connect();
+        try {
+            final DataOutputStream out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(VppServer.PROTOCOL_VERSION);
+            out.write(VppServer.readTokenFile(this.tokenFile));
+            VppServer.writeString(out, this.tempDir.getRoot().getPath());
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+            // the daemon closes the connection without responding
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private VppClient createClient() {
+        return new VppClient(this.serverSocket.getLocalPort(), this.tokenFile);
+    }
+
+    private Socket connect() throws Exception {
+        return new Socket("127.0.0.1", this.serverSocket.getLocalPort());
+    }
+}
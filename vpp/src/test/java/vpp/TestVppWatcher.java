@@ -0,0 +1,196 @@
+/*
+ * TestVppWatcher.java
+ * By: Denver Coneybeare
+ * Oct 13, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp;
+
+import static org.junit.Assert.assertEquals;
+import static vpp.TestVpp.createFile;
+import static vpp.TestVpp.readFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestVppWatcher {
+
+    /**
+     * The maximum time to wait for the file system to report a change; some
+     * platforms poll for changes every few seconds.
+     */
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testRendersOnlyAffectedInputs() throws Exception {
+        final File inDir = this.tempDir.newFolder("in");
+        final File outDir = this.tempDir.newFolder("out");
+        createFile(inDir, "header.vm", "h1\n");
+        final File in1 =
+            createFile(inDir, "in1.vm", "#parse(\"header.vm\")a\n");
+        final File in2 = createFile(inDir, "in2.vm", "b\n");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in1.getPath());
+        options.addInputPath(in2.getPath());
+        options.setOutputDirectory(outDir.getPath());
+
+        final Properties properties = new Properties();
+        properties.setProperty("file.resource.loader.cache", "false");
+        final VppEngine engine =
+            new VppEngine(inDir, new TemplateCache(), properties);
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final VppWatcher watcher =
+            new VppWatcher(options, engine, 50, new PrintStream(log, true));
+        try {
+            watcher.start();
+            final File out1 = new File(outDir, "in1.vm");
+            final File out2 = new File(outDir, "in2.vm");
+            assertEquals("h1\na\n", readFile(out1));
+            assertEquals("b\n", readFile(out2));
+
+            // changing the parsed template renders only the input parsing it
+            out2.delete();
+            createFile(inDir, "header.vm", "h2\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("h2\na\n", readFile(out1));
+            assertEquals(false, out2.exists());
+
+            // a failed render is reported and the watcher keeps going
+            createFile(inDir, "in2.vm", "#if(\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals(true, log.toString("UTF-8").contains("ERROR: "));
+            createFile(inDir, "in2.vm", "c\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("c\n", readFile(out2));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testOutputInInputDirectory() throws Exception {
+        final File dir = this.tempDir.getRoot();
+        final File in = createFile(dir, "page.vm", "a\n");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputDirectory(dir.getPath());
+        options.setStripSuffix(".vm");
+
+        final VppWatcher watcher = this.createWatcher(options, dir);
+        try {
+            watcher.start();
+            final File out = new File(dir, "page");
+            assertEquals("a\n", readFile(out));
+
+            // the input is rendered again although it is in the output
+            // directory, but writing the output does not render it again
+            createFile(dir, "page.vm", "b\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("b\n", readFile(out));
+            assertEquals(0, watcher.poll(1000));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testOutputFileInSearchedDirectory() throws Exception {
+        final File dir = this.tempDir.getRoot();
+        createFile(dir, "a.vm", "a\n");
+        createFile(dir, "b.vm", "b\n");
+        final File out = new File(dir, "all.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(new File(dir, "*.vm").getPath());
+        options.setOutputPath(out.getPath());
+
+        final VppWatcher watcher = this.createWatcher(options, dir);
+        try {
+            watcher.start();
+            assertEquals("a\nb\n", readFile(out));
+
+            // writing the output file does not render the inputs again
+            createFile(dir, "b.vm", "c\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("a\nc\n", readFile(out));
+            assertEquals(0, watcher.poll(1000));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testDeletedDirectoryIsWatchedAgain() throws Exception {
+        final File dir = this.tempDir.getRoot();
+        final File libDir = this.tempDir.newFolder("lib");
+        final File header = createFile(libDir, "header.vm", "h1\n");
+        final File in =
+            createFile(dir, "page.vm", "#parse(\"lib/header.vm\")a\n");
+        final File out = new File(dir, "page.txt");
+
+        final VppOptions options = new VppOptions();
+        options.addInputPath(in.getPath());
+        options.setOutputPath(out.getPath());
+
+        final VppWatcher watcher = this.createWatcher(options, dir);
+        try {
+            watcher.start();
+            assertEquals("h1\na\n", readFile(out));
+
+            // deleting the directory of the parsed template fails the render
+            // but does not stop the watcher
+            header.delete();
+            libDir.delete();
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("h1\na\n", readFile(out));
+
+            // re-creating it renders the input again
+            libDir.mkdir();
+            createFile(libDir, "header.vm", "h2\n");
+            assertEquals(1, this.pollUntilRendered(watcher));
+            assertEquals("h2\na\n", readFile(out));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test(expected = VppException.class)
+    public void testRequiresInputPaths() throws Exception {
+        new VppWatcher(new VppOptions(), System.err);
+    }
+
+    private VppWatcher createWatcher(VppOptions options, File root)
+            throws VppException {
+        final Properties properties = new Properties();
+        properties.setProperty("file.resource.loader.cache", "false");
+        final VppEngine engine =
+            new VppEngine(root, new TemplateCache(), properties);
+        return new VppWatcher(options, engine, 50, new PrintStream(
+            new ByteArrayOutputStream(), true));
+    }
+
+    private int pollUntilRendered(VppWatcher watcher) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            final int numRendered = watcher.poll(1000);
+            if (numRendered > 0) {
+                return numRendered;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * TestChannelWriter.java
+ * By: Denver Coneybeare
+ * Oct 09, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+public class TestChannelWriter {
+
+    @Test
+    public void testWriteSmallBuffer() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MessageDigest digest = Digests.newDigest();
+        final ChannelWriter writer =
+            new ChannelWriter(Channels.newChannel(out), true, Charset
+                .forName("UTF-8"), digest, 8);
+
+        // the supplementary character straddles the character buffer
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append("aé😀");
+        }
+        final String text = expected.toString();
+        for (int i = 0; i < text.length(); i++) {
+            if (i % 3 == 0) {
+                writer.write(text.charAt(i));
+            } else {
+                writer.write(text, i, 1);
+            }
+        }
+        writer.close();
+
+        final byte[] bytes = out.toByteArray();
+        assertEquals(text, new String(bytes, "UTF-8"));
+        assertEquals(Digests.digest(bytes, 0, bytes.length), Digests
+            .toHex(digest.digest()));
+    }
+
+    @Test
+    public void testFlushDoesNotCloseChannel() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChannelWriter writer =
+            new ChannelWriter(Channels.newChannel(out), false, Charset
+                .forName("ISO-8859-1"), null);
+        writer.write("café".toCharArray());
+        writer.flush();
+        assertEquals(4, out.size());
+        writer.write("!");
+        writer.close();
+        writer.close();
+        assertEquals("café!", new String(out.toByteArray(), "ISO-8859-1"));
+
+        try {
+            writer.write("x");
+            fail("IOException should have been thrown");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPooledBuffersAreReset() throws Exception {
+        final Charset ascii = Charset.forName("US-ASCII");
+        for (int i = 0; i < 3; i++) {
+            // leave characters and a failed encoding in the buffers
+            final ChannelWriter failed =
+                new ChannelWriter(Channels.newChannel(
+                    new ByteArrayOutputStream()), true, ascii, null);
+            failed.write("abcé");
+            try {
+                failed.close();
+                fail("CharacterCodingException should have been thrown");
+            } catch (final CharacterCodingException e) {
+                // expected
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ChannelWriter writer =
+                new ChannelWriter(Channels.newChannel(out), true,
+                    (i == 1) ? Charset.forName("UTF-16BE") : ascii, null);
+            writer.write("xyz");
+            writer.close();
+            assertEquals((i == 1) ? 6 : 3, out.size());
+            if (i != 1) {
+                assertEquals("xyz", out.toString("US-ASCII"));
+            }
+        }
+    }
+
+    @Test
+    public void testPooledBuffersKeptPerCharset() throws Exception {
+        final Charset latin9 = Charset.forName("ISO-8859-15");
+        final Charset utf16 = Charset.forName("UTF-16LE");
+        new ChannelWriter(Channels.newChannel(new ByteArrayOutputStream()),
+            true, latin9, null).close();
+        final int numPooled = ChannelWriter.getNumPooledBuffers(latin9);
+        assertTrue(numPooled > 0);
+
+        // a writer for another encoding leaves the pooled buffers alone
+        new ChannelWriter(Channels.newChannel(new ByteArrayOutputStream()),
+            true, utf16, null).close();
+        assertEquals(numPooled, ChannelWriter.getNumPooledBuffers(latin9));
+
+        final ChannelWriter writer =
+            new ChannelWriter(Channels.newChannel(new ByteArrayOutputStream()),
+                true, latin9, null);
+        assertEquals(numPooled - 1, ChannelWriter.getNumPooledBuffers(latin9));
+        writer.close();
+    }
+
+    @Test(expected = CharacterCodingException.class)
+    public void testUnmappableCharacter() throws Exception {
+        final ChannelWriter writer =
+            new ChannelWriter(Channels.newChannel(new ByteArrayOutputStream()),
+                true, Charset.forName("US-ASCII"), null);
+        writer.write("café");
+        writer.close();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * TestJsonParser.java
+ * By: Denver Coneybeare
+ * Oct 15, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestJsonParser {
+
+    @Test
+    public void testNested() throws Exception {
+        final Object value =
+            JsonParser.parse(" {\"a\": 1, \"b\": [\"x\", null, true, {}],"
+                + " \"c\": false, \"d\": -2.5e1} ");
+        final Map<String, Object> expected =
+            new LinkedHashMap<String, Object>();
+        expected.put("a", Long.valueOf(1));
+        expected.put("b", Arrays.asList(new Object[] { "x", null,
+            Boolean.TRUE, new LinkedHashMap<String, Object>() }));
+        expected.put("c", Boolean.FALSE);
+        expected.put("d", Double.valueOf(-25));
+        assertEquals(expected, value);
+    }
+
+    @Test
+    public void testScalars() throws Exception {
+        assertNull(JsonParser.parse("null"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), JsonParser.parse(String
+            .valueOf(Long.MIN_VALUE)));
+        assertEquals(Double.valueOf(1e20),
+            JsonParser.parse("100000000000000000000"));
+        assertEquals(Arrays.asList(new Object[0]), JsonParser.parse("[ ]"));
+    }
+
+    @Test
+    public void testRoundTripsEscapes() throws Exception {
+        final String s = "q\"b\\n\nt\tc\u0001\u2028\u00e9/";
+        final StringWriter out = new StringWriter();
+        new JsonWriter(out).value(s);
+        assertEquals(s, JsonParser.parse(out.toString()));
+        assertEquals("/", JsonParser.parse("\"\\/\""));
+    }
+
+    @Test
+    public void testErrors() {
+        final List<String> invalid =
+            Arrays.asList("", "{", "[1,]", "{\"a\" 1}", "{a:1}", "\"abc",
+                "\"\\x\"", "01x", "-", "1.", "tru", "1 2", "\"\n\"");
+        for (final String text : invalid) {
+            try {
+                JsonParser.parse(text);
+                fail("ParseException should have been thrown: " + text);
+            } catch (final ParseException e) {
+                // expected
+            }
+        }
+    }
+}
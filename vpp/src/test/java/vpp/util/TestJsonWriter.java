@@ -0,0 +1,50 @@
+/*
+ * TestJsonWriter.java
+ * By: Denver Coneybeare
+ * Oct 12, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class TestJsonWriter {
+
+    @Test
+    public void testNested() throws Exception {
+        final StringWriter out = new StringWriter();
+        final JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("a").value(1);
+        json.name("b").beginArray().value("x").nullValue().value(true)
+            .beginObject().endObject().endArray();
+        json.name("c").value(false);
+        json.endObject();
+        assertEquals("{\"a\":1,\"b\":[\"x\",null,true,{}],\"c\":false}", out
+            .toString());
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        final StringWriter out = new StringWriter();
+        new JsonWriter(out).value("q\"b\\n\nt\tc\u0001 é");
+        assertEquals("\"q\\\"b\\\\n\\nt\\tc\\u0001\\u2028é\"", out.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testValueWithoutName() throws Exception {
+        new JsonWriter(new StringWriter()).beginObject().value(1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMismatchedEnd() throws Exception {
+        new JsonWriter(new StringWriter()).beginObject().endArray();
+    }
+}
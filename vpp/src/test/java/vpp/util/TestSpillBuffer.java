@@ -0,0 +1,108 @@
+/*
+ * TestSpillBuffer.java
+ * By: Denver Coneybeare
+ * Oct 17, 2011
+ *
+ * Copyright 2011 Denver Coneybeare
+ * This file is released under the Apache License Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+package vpp.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpillBuffer {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testInMemory() throws Exception {
+        final byte[] data = createData(SpillBuffer.SEGMENT_SIZE * 2 + 5);
+        final SpillBuffer buffer =
+            new SpillBuffer(data.length, this.tempDir.getRoot());
+        write(buffer, data, 7);
+        assertFalse(buffer.isSpilled());
+        assertEquals(data.length, buffer.size());
+        assertArrayEquals(data, transfer(buffer));
+        buffer.close();
+        assertEquals(0, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        final byte[] data = createData(SpillBuffer.SEGMENT_SIZE * 3 + 11);
+        final SpillBuffer buffer =
+            new SpillBuffer(1000, this.tempDir.getRoot());
+        write(buffer, data, 333);
+        assertTrue(buffer.isSpilled());
+        assertEquals(data.length, buffer.size());
+        assertEquals(1, this.tempDir.getRoot().list().length);
+        assertArrayEquals(data, transfer(buffer));
+
+        // writing after a transfer appends to the bytes already written
+        buffer.write('x');
+        final byte[] result = transfer(buffer);
+        assertEquals(data.length + 1, result.length);
+        assertEquals('x', result[data.length]);
+
+        buffer.close();
+        assertEquals(0, this.tempDir.getRoot().list().length);
+    }
+
+    @Test
+    public void testZeroThreshold() throws Exception {
+        final SpillBuffer buffer = new SpillBuffer(0, this.tempDir.getRoot());
+        assertArrayEquals(new byte[0], transfer(buffer));
+        buffer.write(new byte[] { 1, 2 }, 0, 2);
+        assertTrue(buffer.isSpilled());
+        assertArrayEquals(new byte[] { 1, 2 }, transfer(buffer));
+        buffer.close();
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        final SpillBuffer buffer = new SpillBuffer();
+        buffer.close();
+        buffer.close();
+        try {
+            buffer.write(1);
+            fail("IOException should have been thrown");
+        } catch (final IOException e) {
+            assertEquals("buffer closed", e.getMessage());
+        }
+    }
+
+    private static byte[] createData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static void write(SpillBuffer buffer, byte[] data, int chunkSize)
+            throws IOException {
+        for (int i = 0; i < data.length; i += chunkSize) {
+            buffer.write(data, i, Math.min(chunkSize, data.length - i));
+        }
+    }
+
+    private static byte[] transfer(SpillBuffer buffer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+}